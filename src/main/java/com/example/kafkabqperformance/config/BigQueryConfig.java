@@ -4,6 +4,9 @@ import com.google.auth.oauth2.GoogleCredentials;
 import com.google.auth.oauth2.ServiceAccountCredentials;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteSettings;
+import com.google.cloud.http.HttpTransportOptions;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -14,6 +17,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 
 @Configuration
+@Slf4j
 public class BigQueryConfig {
 
     @Value("${bigquery.project-id}")
@@ -22,8 +26,19 @@ public class BigQueryConfig {
     @Value("${bigquery.credentials-path:/config/gcp-credentials.json}")
     private String credentialsPath;
 
+    @Value("${bigquery.transport.http.connect-timeout-ms:20000}")
+    private int connectTimeoutMs;
+
+    @Value("${bigquery.transport.http.read-timeout-ms:60000}")
+    private int readTimeoutMs;
+
+    /**
+     * Credentials shared by the BigQuery and Storage Write API clients, so one access token is
+     * refreshed for both. They are scoped once here; clients do not re-scope credentials that
+     * already carry scopes.
+     */
     @Bean
-    public BigQuery bigQuery() throws IOException {
+    public GoogleCredentials googleCredentials() throws IOException {
         GoogleCredentials credentials;
 
         try {
@@ -34,14 +49,26 @@ public class BigQueryConfig {
             }
         } catch (Exception e) {
             // Fall back to application default credentials
-            System.out.println("Unable to load credentials from file: " + credentialsPath + 
-                               ". Falling back to application default credentials. Error: " + e.getMessage());
+            log.warn("Unable to load credentials from file: {}. Falling back to application default credentials. Error: {}",
+                    credentialsPath, e.getMessage());
             credentials = GoogleCredentials.getApplicationDefault();
         }
 
+        // The Write API scopes (bigquery, bigquery.insertdata, cloud-platform) cover the BigQuery API as well
+        return credentials.createScopedRequired()
+                ? credentials.createScoped(BigQueryWriteSettings.getDefaultServiceScopes())
+                : credentials;
+    }
+
+    @Bean
+    public BigQuery bigQuery(GoogleCredentials googleCredentials) {
         return BigQueryOptions.newBuilder()
                 .setProjectId(projectId)
-                .setCredentials(credentials)
+                .setCredentials(googleCredentials)
+                .setTransportOptions(HttpTransportOptions.newBuilder()
+                        .setConnectTimeout(connectTimeoutMs)
+                        .setReadTimeout(readTimeoutMs)
+                        .build())
                 .build()
                 .getService();
     }
@@ -1,26 +1,112 @@
 package com.example.kafkabqperformance.config;
 
+import com.example.kafkabqperformance.monitoring.GrpcChannelMetrics;
+import com.google.api.gax.core.FixedCredentialsProvider;
+import com.google.api.gax.core.InstantiatingExecutorProvider;
+import com.google.api.gax.grpc.ChannelPoolSettings;
+import com.google.api.gax.grpc.InstantiatingGrpcChannelProvider;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
 import com.google.cloud.bigquery.storage.v1.BigQueryWriteSettings;
-import org.springframework.beans.factory.annotation.Qualifier;
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.threeten.bp.Duration;
 
 import java.io.IOException;
+import java.util.List;
 
+/**
+ * Storage Write API client on a tunable gRPC channel pool
+ *
+ * <p>All stream writers share this client, and with it the channel pool, the executor and the
+ * credentials of {@link BigQueryConfig}. The pool grows while the open append streams exceed
+ * max-rpcs-per-channel per channel and shrinks when they fall under min-rpcs-per-channel.</p>
+ */
 @Configuration
+@Slf4j
 public class BigQueryWriteConfig {
 
+    @Value("${bigquery.transport.channel-pool.initial-size:2}")
+    private int initialChannels;
+
+    @Value("${bigquery.transport.channel-pool.min-size:1}")
+    private int minChannels;
+
+    @Value("${bigquery.transport.channel-pool.max-size:8}")
+    private int maxChannels;
+
+    @Value("${bigquery.transport.channel-pool.min-rpcs-per-channel:0}")
+    private int minRpcsPerChannel;
+
+    @Value("${bigquery.transport.channel-pool.max-rpcs-per-channel:50}")
+    private int maxRpcsPerChannel;
+
+    @Value("${bigquery.transport.executor-threads:8}")
+    private int executorThreads;
+
+    @Value("${bigquery.transport.keepalive-time-ms:60000}")
+    private long keepAliveTimeMs;
+
+    @Value("${bigquery.transport.keepalive-timeout-ms:20000}")
+    private long keepAliveTimeoutMs;
+
+    @Value("${bigquery.transport.keepalive-without-calls:false}")
+    private boolean keepAliveWithoutCalls;
+
+    @Value("${bigquery.transport.flow-control-window-bytes:1048576}")
+    private int flowControlWindowBytes;
+
+    @Value("${bigquery.transport.max-inbound-message-bytes:2147483647}")
+    private int maxInboundMessageBytes;
+
     @Bean
-    public BigQueryWriteClient bigQueryWriteClient() throws IOException {
-        // Use application default credentials to simplify setup
-        GoogleCredentials credentials = GoogleCredentials.getApplicationDefault();
-        
+    public BigQueryWriteClient bigQueryWriteClient(GoogleCredentials googleCredentials,
+                                                   GrpcChannelMetrics channelMetrics) throws IOException {
+        int max = Math.max(1, maxChannels);
+        int min = Math.max(1, Math.min(minChannels, max));
+        int initial = Math.max(min, Math.min(initialChannels, max));
+        int maxRpcs = Math.max(1, maxRpcsPerChannel);
+        int minRpcs = Math.max(0, Math.min(minRpcsPerChannel, maxRpcs));
+
+        InstantiatingGrpcChannelProvider channelProvider = BigQueryWriteSettings.defaultGrpcTransportProviderBuilder()
+                .setChannelPoolSettings(ChannelPoolSettings.builder()
+                        .setInitialChannelCount(initial)
+                        .setMinChannelCount(min)
+                        .setMaxChannelCount(max)
+                        .setMinRpcsPerChannel(minRpcs)
+                        .setMaxRpcsPerChannel(maxRpcs)
+                        .build())
+                .setKeepAliveTime(Duration.ofMillis(keepAliveTimeMs))
+                .setKeepAliveTimeout(Duration.ofMillis(keepAliveTimeoutMs))
+                .setKeepAliveWithoutCalls(keepAliveWithoutCalls)
+                .setMaxInboundMessageSize(maxInboundMessageBytes)
+                .setChannelConfigurator(builder -> {
+                    // The flow-control window is a Netty transport setting, not part of ManagedChannelBuilder
+                    if (builder instanceof NettyChannelBuilder) {
+                        ((NettyChannelBuilder) builder).flowControlWindow(flowControlWindowBytes);
+                    } else {
+                        log.warn("gRPC channel builder {} is not Netty, flow-control window left at its default",
+                                builder.getClass().getName());
+                    }
+                    return builder;
+                })
+                .setInterceptorProvider(() -> List.of(channelMetrics))
+                .build();
+        channelMetrics.describePool(min, max, maxRpcs);
+
         BigQueryWriteSettings settings = BigQueryWriteSettings.newBuilder()
-            .setCredentialsProvider(() -> credentials)
+            .setCredentialsProvider(FixedCredentialsProvider.create(googleCredentials))
+            .setTransportChannelProvider(channelProvider)
+            .setBackgroundExecutorProvider(InstantiatingExecutorProvider.newBuilder()
+                    .setExecutorThreadCount(Math.max(1, executorThreads))
+                    .build())
             .build();
-            
+
+        log.info("Storage Write API client: {}-{} channels (initial {}), up to {} streams per channel, {} executor threads",
+                min, max, initial, maxRpcs, executorThreads);
         return BigQueryWriteClient.create(settings);
     }
-} 
\ No newline at end of file
+}
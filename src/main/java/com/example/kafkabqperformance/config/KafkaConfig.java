@@ -1,6 +1,12 @@
 package com.example.kafkabqperformance.config;
 
+import com.example.kafkabqperformance.consumer.ExactlyOnceCoordinator;
+import com.example.kafkabqperformance.consumer.KafkaToBigQueryConsumer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
@@ -9,12 +15,16 @@ import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.listener.ContainerProperties;
 
+import java.time.Duration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @EnableKafka
 @Configuration
+@Slf4j
 public class KafkaConfig {
 
     @Value("${spring.kafka.bootstrap-servers}")
@@ -23,22 +33,95 @@ public class KafkaConfig {
     @Value("${spring.kafka.consumer.group-id}")
     private String groupId;
 
+    /**
+     * When true the whole poll result is delivered to the batch listener
+     * instead of invoking the record listener once per message
+     */
+    @Value("${kafka.listener.batch-enabled:false}")
+    private boolean batchListenerEnabled;
+
+    @Value("${kafka.listener.max-poll-records:500}")
+    private int maxPollRecords;
+
+    @Value("${kafka.topic}")
+    private String topic;
+
+    /**
+     * Fixed listener concurrency, used when partition-parallel mode is off
+     */
+    @Value("${kafka.listener.concurrency:1}")
+    private int concurrency;
+
+    /**
+     * When true one listener thread is started per partition (capped at max-concurrency)
+     * and the sink pipeline runs one writer shard per partition
+     */
+    @Value("${kafka.listener.partition-parallel:false}")
+    private boolean partitionParallel;
+
+    /**
+     * Upper bound for partition-parallel concurrency; 0 means the number of available cores
+     */
+    @Value("${kafka.listener.max-concurrency:0}")
+    private int maxConcurrency;
+
+    /**
+     * When true the listener is started by SinkReadiness once every sink has warmed up,
+     * instead of together with the application context
+     */
+    @Value("${kafka.listener.start-after-warmup:true}")
+    private boolean startAfterWarmup;
+
     @Bean
-    public ConsumerFactory<String, String> consumerFactory() {
+    public ConsumerFactory<String, byte[]> consumerFactory() {
         Map<String, Object> props = new HashMap<>();
         props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
-        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class);
+        props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxPollRecords);
         return new DefaultKafkaConsumerFactory<>(props);
     }
 
     @Bean
-    public ConcurrentKafkaListenerContainerFactory<String, String> kafkaListenerContainerFactory() {
-        ConcurrentKafkaListenerContainerFactory<String, String> factory =
+    public ConcurrentKafkaListenerContainerFactory<String, byte[]> kafkaListenerContainerFactory(
+            ExactlyOnceCoordinator exactlyOnceCoordinator) {
+        ConcurrentKafkaListenerContainerFactory<String, byte[]> factory =
                 new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(consumerFactory());
+        factory.setBatchListener(batchListenerEnabled);
+        factory.setConcurrency(listenerConcurrency());
+        if (exactlyOnceCoordinator.isEnabled()) {
+            // Offsets are committed by the coordinator once the appends are acknowledged, never by the container
+            factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+            factory.getContainerProperties().setConsumerRebalanceListener(exactlyOnceCoordinator);
+        }
+        // Only one of the record/batch listener endpoints may join the consumer group
+        factory.setContainerCustomizer(container -> {
+            boolean batchEndpoint = KafkaToBigQueryConsumer.BATCH_LISTENER_ID.equals(container.getListenerId());
+            container.setAutoStartup(batchEndpoint == batchListenerEnabled && !startAfterWarmup);
+        });
         return factory;
     }
+
+    private int listenerConcurrency() {
+        if (!partitionParallel) {
+            return concurrency;
+        }
+
+        int limit = maxConcurrency > 0 ? maxConcurrency : Runtime.getRuntime().availableProcessors();
+        try (Consumer<String, byte[]> consumer = consumerFactory().createConsumer()) {
+            List<PartitionInfo> partitions = consumer.partitionsFor(topic, Duration.ofSeconds(10));
+            int partitionCount = partitions == null ? 1 : Math.max(1, partitions.size());
+            int derived = Math.min(partitionCount, limit);
+            log.info("Partition-parallel mode: topic {} has {} partitions, using listener concurrency {}",
+                    topic, partitionCount, derived);
+            return derived;
+        } catch (Exception e) {
+            log.warn("Unable to read partition count for topic {}, using listener concurrency {}: {}",
+                    topic, limit, e.getMessage());
+            return limit;
+        }
+    }
 }
@@ -0,0 +1,342 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops redelivered messages by ID before they reach the sinks
+ * 
+ * <p>Two layers, both covering a sliding time window:</p>
+ * <ul>
+ *   <li>an exact, insertion-ordered set of the most recent IDs, which answers for the hot end of the
+ *       window where Kafka redeliveries after a rebalance land</li>
+ *   <li>a Bloom filter split into two generations of half a window each; the older one is cleared and
+ *       reused when the newer one is full of age. It covers the rest of the window in a few bits per ID,
+ *       at the cost of dropping a unique message with probability {@code false-positive-rate}</li>
+ * </ul>
+ * 
+ * <p>An ID is only recorded in the window once every sink has flushed its message
+ * ({@link #markDelivered(List)}); until then it is held as pending in memory, so duplicates within
+ * the running process are still dropped, but a message that was never written is not remembered
+ * and passes the filter when Kafka redelivers it. With a checkpoint file configured the Bloom bits
+ * live in a memory-mapped file instead of the heap, so a restarted pod keeps its window.
+ * Messages without an ID are always passed on.</p>
+ * 
+ * <p>The filter runs in the {@link SinkPipeline}; the exactly-once path does not go through it, because
+ * its stream offsets depend on every record producing the same rows on redelivery.</p>
+ */
+@Component
+@Slf4j
+public class DuplicateFilter implements MetricsSource {
+
+    private static final long MAGIC = 0x4b42514465647570L;
+    private static final int HEADER_BYTES = 64;
+
+    private final boolean enabled;
+    private final long generationMs;
+    private final int exactCapacity;
+    private final long bitsPerGeneration;
+    private final int hashCount;
+
+    private final LinkedHashMap<String, Boolean> recentIds;
+    private final Set<String> pendingIds = new HashSet<>();
+    private final LongBuffer[] generations = new LongBuffer[2];
+    private final long[] generationStarts = new long[2];
+    private int current;
+    private ByteBuffer header;
+    private MappedByteBuffer checkpoint;
+    private FileChannel checkpointChannel;
+
+    private final AtomicLong checkedMessages = new AtomicLong(0);
+    private final AtomicLong exactDuplicates = new AtomicLong(0);
+    private final AtomicLong probableDuplicates = new AtomicLong(0);
+    private final AtomicLong rotations = new AtomicLong(0);
+
+    public DuplicateFilter(
+            @Value("${performance.dedup.enabled:true}") boolean enabled,
+            @Value("${performance.dedup.window-ms:600000}") long windowMs,
+            @Value("${performance.dedup.expected-ids:1000000}") long expectedIds,
+            @Value("${performance.dedup.false-positive-rate:0.000001}") double falsePositiveRate,
+            @Value("${performance.dedup.exact-capacity:100000}") int exactCapacity,
+            @Value("${performance.dedup.checkpoint-file:}") String checkpointFile) {
+        this.enabled = enabled;
+        this.generationMs = Math.max(1, windowMs / 2);
+        this.exactCapacity = Math.max(1, exactCapacity);
+        // Standard Bloom sizing for one generation, which holds at most half of the expected IDs per window
+        long perGeneration = Math.max(1, expectedIds / 2);
+        double bits = -perGeneration * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.bitsPerGeneration = Math.max(64, ((long) Math.ceil(bits) + 63) / 64 * 64);
+        this.hashCount = Math.max(1, (int) Math.round((double) bitsPerGeneration / perGeneration * Math.log(2)));
+        this.recentIds = new LinkedHashMap<>(Math.min(this.exactCapacity, 1 << 16), 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > DuplicateFilter.this.exactCapacity;
+            }
+        };
+
+        if (!enabled) {
+            return;
+        }
+        if (checkpointFile == null || checkpointFile.isEmpty()) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = LongBuffer.allocate((int) (bitsPerGeneration / 64));
+                generationStarts[i] = now;
+            }
+        } else {
+            openCheckpoint(Paths.get(checkpointFile));
+        }
+
+        log.info("Initialized duplicate filter with a {} ms window, {} Bloom bits per generation, {} hashes, {} exact IDs{}",
+                windowMs, bitsPerGeneration, hashCount, this.exactCapacity,
+                checkpointChannel != null ? ", checkpointed to " + checkpointFile : "");
+    }
+
+    /**
+     * Layout: a header (magic, bits per generation, hash count, current generation and both generation
+     * start times) followed by the two bit arrays
+     */
+    private void openCheckpoint(Path file) {
+        long words = bitsPerGeneration / 64;
+        long size = HEADER_BYTES + 2 * words * Long.BYTES;
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            checkpointChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean restored = checkpointChannel.size() == size;
+            MappedByteBuffer mapped = checkpointChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            checkpoint = mapped;
+            header = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            restored = restored && header.getLong(0) == MAGIC && header.getLong(8) == bitsPerGeneration
+                    && header.getInt(16) == hashCount;
+
+            for (int i = 0; i < generations.length; i++) {
+                mapped.position(HEADER_BYTES + (int) (i * words * Long.BYTES));
+                ByteBuffer slice = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+                slice.limit((int) (words * Long.BYTES));
+                generations[i] = slice.asLongBuffer();
+            }
+
+            long now = System.currentTimeMillis();
+            if (restored) {
+                current = header.getInt(20);
+                generationStarts[0] = header.getLong(24);
+                generationStarts[1] = header.getLong(32);
+                log.info("Restored duplicate filter window from {}", file);
+            } else {
+                clear(generations[0]);
+                clear(generations[1]);
+                generationStarts[0] = now;
+                generationStarts[1] = now;
+                header.putLong(0, MAGIC);
+                header.putLong(8, bitsPerGeneration);
+                header.putInt(16, hashCount);
+            }
+            writeHeader();
+            rotateIfDue(now);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to use duplicate filter checkpoint {}, keeping the window on the heap: {}", file, e.getMessage());
+            closeCheckpoint();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < generations.length; i++) {
+                generations[i] = LongBuffer.allocate((int) words);
+                generationStarts[i] = now;
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Drops the messages whose IDs were delivered within the window or are still on their way to the sinks.
+     * The IDs of the messages passed on are pending until {@link #markDelivered(List)} or {@link #release(List)}.
+     * 
+     * @return The messages whose IDs have not been seen within the window, in their original order
+     */
+    public synchronized List<KafkaMessage> filter(List<KafkaMessage> messages) {
+        if (!enabled) {
+            return messages;
+        }
+
+        rotateIfDue(System.currentTimeMillis());
+        List<KafkaMessage> unique = new ArrayList<>(messages.size());
+        for (KafkaMessage message : messages) {
+            checkedMessages.incrementAndGet();
+            String id = message.getId();
+            if (id == null) {
+                unique.add(message);
+                continue;
+            }
+            if (recentIds.containsKey(id) || pendingIds.contains(id)) {
+                exactDuplicates.incrementAndGet();
+                continue;
+            }
+            long[] hashes = hash(id);
+            if (mightContain(generations[0], hashes) || mightContain(generations[1], hashes)) {
+                probableDuplicates.incrementAndGet();
+                continue;
+            }
+            pendingIds.add(id);
+            unique.add(message);
+        }
+        return unique;
+    }
+
+    /**
+     * Records the IDs of messages every sink has flushed, so later redeliveries are dropped
+     */
+    public synchronized void markDelivered(List<KafkaMessage> messages) {
+        if (!enabled) {
+            return;
+        }
+
+        rotateIfDue(System.currentTimeMillis());
+        for (KafkaMessage message : messages) {
+            String id = message.getId();
+            if (id != null && pendingIds.remove(id)) {
+                recentIds.put(id, Boolean.TRUE);
+                put(generations[current], hash(id));
+            }
+        }
+    }
+
+    /**
+     * Forgets pending IDs of messages that were not written, so their redelivery is passed on
+     */
+    public synchronized void release(List<KafkaMessage> messages) {
+        if (!enabled) {
+            return;
+        }
+        for (KafkaMessage message : messages) {
+            if (message.getId() != null) {
+                pendingIds.remove(message.getId());
+            }
+        }
+    }
+
+    private void rotateIfDue(long now) {
+        if (now - generationStarts[current] < generationMs) {
+            return;
+        }
+        int next = 1 - current;
+        if (now - generationStarts[current] >= 2 * generationMs) {
+            // Idle for a whole window: nothing in either generation is recent any more
+            clear(generations[current]);
+        }
+        clear(generations[next]);
+        generationStarts[next] = now;
+        current = next;
+        rotations.incrementAndGet();
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        if (header == null) {
+            return;
+        }
+        header.putInt(20, current);
+        header.putLong(24, generationStarts[0]);
+        header.putLong(32, generationStarts[1]);
+    }
+
+    private static long[] hash(String id) {
+        ByteBuffer hash = ByteBuffer.wrap(Hashing.murmur3_128().hashString(id, StandardCharsets.UTF_8).asBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        return new long[] {hash.getLong(), hash.getLong()};
+    }
+
+    private boolean mightContain(LongBuffer bits, long[] hashes) {
+        long combined = hashes[0];
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bitsPerGeneration;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += hashes[1];
+        }
+        return true;
+    }
+
+    private void put(LongBuffer bits, long[] hashes) {
+        long combined = hashes[0];
+        for (int i = 0; i < hashCount; i++) {
+            long bit = (combined & Long.MAX_VALUE) % bitsPerGeneration;
+            int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | (1L << bit));
+            combined += hashes[1];
+        }
+    }
+
+    private static void clear(LongBuffer bits) {
+        for (int i = 0; i < bits.capacity(); i++) {
+            bits.put(i, 0L);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void closeCheckpoint() {
+        if (checkpointChannel == null) {
+            return;
+        }
+        try {
+            if (checkpoint != null) {
+                checkpoint.force();
+            }
+            checkpointChannel.close();
+        } catch (IOException e) {
+            log.warn("Unable to close duplicate filter checkpoint: {}", e.getMessage());
+        }
+        checkpointChannel = null;
+        checkpoint = null;
+        header = null;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "dedup";
+    }
+
+    @Override
+    public synchronized Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("checkedMessages", checkedMessages.get());
+        metrics.put("exactDuplicatesDropped", exactDuplicates.get());
+        metrics.put("probableDuplicatesDropped", probableDuplicates.get());
+        metrics.put("recentIds", recentIds.size());
+        metrics.put("pendingIds", pendingIds.size());
+        metrics.put("bloomBitsPerGeneration", bitsPerGeneration);
+        metrics.put("bloomHashes", hashCount);
+        metrics.put("rotations", rotations.get());
+        metrics.put("checkpointed", checkpointChannel != null);
+        return metrics;
+    }
+}
@@ -0,0 +1,188 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.service.CommittedStreamWriter;
+import com.example.kafkabqperformance.service.CommittedStreamWriter.Checkpoint;
+import com.example.kafkabqperformance.service.CommittedStreamWriter.PartitionStream;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Kafka side of exactly-once delivery to the {@link CommittedStreamWriter}
+ * 
+ * <p>Partition streams are opened from the checkpoint stored in the committed offset's
+ * metadata when partitions are assigned. Offsets are committed by the listener thread,
+ * and only up to the rows the Storage Write API has acknowledged; the container itself
+ * runs with manual acks and never commits. A partition whose append failed is rewound:
+ * the consumer seeks back to the last acknowledged checkpoint and the records are appended
+ * again at the same stream offsets.</p>
+ */
+@Component
+@Slf4j
+public class ExactlyOnceCoordinator implements ConsumerAwareRebalanceListener {
+
+    private final CommittedStreamWriter streamWriter;
+    private final long drainTimeoutMs;
+    private final long rewindBackoffMs;
+
+    private final Map<TopicPartition, PartitionStream> streams = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, Long> committedOffsets = new ConcurrentHashMap<>();
+
+    public ExactlyOnceCoordinator(
+            CommittedStreamWriter streamWriter,
+            @Value("${bigquery.write-api.exactly-once.drain-timeout-ms:30000}") long drainTimeoutMs,
+            @Value("${bigquery.write-api.exactly-once.rewind-backoff-ms:1000}") long rewindBackoffMs) {
+        this.streamWriter = streamWriter;
+        this.drainTimeoutMs = drainTimeoutMs;
+        this.rewindBackoffMs = rewindBackoffMs;
+    }
+
+    public boolean isEnabled() {
+        return streamWriter.isEnabled();
+    }
+
+    @Override
+    public void onPartitionsAssigned(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (!isEnabled() || partitions.isEmpty()) {
+            return;
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> committed = consumer.committed(new HashSet<>(partitions));
+        for (TopicPartition partition : partitions) {
+            OffsetAndMetadata offset = committed.get(partition);
+            long kafkaOffset = offset != null ? offset.offset() : consumer.position(partition);
+            Checkpoint checkpoint = offset != null ? Checkpoint.fromMetadata(offset.offset(), offset.metadata()) : null;
+            try {
+                streams.put(partition, streamWriter.open(partition.partition(), checkpoint, kafkaOffset));
+                committedOffsets.put(partition, kafkaOffset);
+            } catch (IOException | RuntimeException e) {
+                throw new IllegalStateException("Unable to open the write stream for " + partition, e);
+            }
+        }
+    }
+
+    @Override
+    public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            PartitionStream stream = streams.remove(partition);
+            if (stream == null) {
+                continue;
+            }
+            try {
+                stream.awaitPending(drainTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Checkpoint checkpoint = stream.getAcknowledged();
+            Long committed = committedOffsets.remove(partition);
+            if (committed == null || checkpoint.getKafkaOffset() > committed) {
+                offsets.put(partition, new OffsetAndMetadata(checkpoint.getKafkaOffset(), checkpoint.toMetadata()));
+            }
+            stream.close();
+        }
+
+        if (!offsets.isEmpty()) {
+            try {
+                consumer.commitSync(offsets);
+            } catch (RuntimeException e) {
+                // The next owner resumes from the previous checkpoint; the stream offsets reject the overlap
+                log.warn("Unable to commit checkpoints of revoked partitions {}: {}", offsets.keySet(), e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onPartitionsLost(Consumer<?, ?> consumer, Collection<TopicPartition> partitions) {
+        if (!isEnabled()) {
+            return;
+        }
+        for (TopicPartition partition : partitions) {
+            PartitionStream stream = streams.remove(partition);
+            committedOffsets.remove(partition);
+            if (stream != null) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Commits the acknowledged checkpoints of the consumer's partitions and rewinds failed ones
+     * Must be called on the consumer's listener thread
+     */
+    public void commitAcknowledged(Consumer<?, ?> consumer) throws InterruptedException {
+        Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (TopicPartition partition : consumer.assignment()) {
+            PartitionStream stream = streams.get(partition);
+            if (stream == null) {
+                continue;
+            }
+            if (stream.isFailed()) {
+                rewind(consumer, partition, stream);
+                continue;
+            }
+            Checkpoint checkpoint = stream.getAcknowledged();
+            Long committed = committedOffsets.get(partition);
+            if (committed == null || checkpoint.getKafkaOffset() > committed) {
+                offsets.put(partition, new OffsetAndMetadata(checkpoint.getKafkaOffset(), checkpoint.toMetadata()));
+            }
+        }
+
+        if (offsets.isEmpty()) {
+            return;
+        }
+        consumer.commitAsync(offsets, (committed, error) -> {
+            if (error != null) {
+                log.warn("Unable to commit checkpoints {}: {}", committed.keySet(), error.getMessage());
+                return;
+            }
+            committed.forEach((partition, offset) -> committedOffsets.merge(partition, offset.offset(), Math::max));
+        });
+    }
+
+    /**
+     * Appends a partition's decoded records to its stream
+     * 
+     * @param messages Rows decoded from the records, in offset order
+     * @param nextOffset Offset after the last record of the run
+     * @return false if the partition was rewound instead; the records will be delivered again
+     */
+    public boolean append(Consumer<?, ?> consumer, TopicPartition partition, List<KafkaMessage> messages, long nextOffset)
+            throws InterruptedException {
+        PartitionStream stream = streams.get(partition);
+        if (stream == null) {
+            log.warn("No write stream is open for {}, skipping {} records", partition, messages.size());
+            return false;
+        }
+        if (stream.isFailed()) {
+            rewind(consumer, partition, stream);
+            return false;
+        }
+        stream.append(messages, nextOffset);
+        return true;
+    }
+
+    private void rewind(Consumer<?, ?> consumer, TopicPartition partition, PartitionStream stream) throws InterruptedException {
+        Thread.sleep(rewindBackoffMs);
+        Checkpoint checkpoint = stream.rewind(drainTimeoutMs);
+        consumer.seek(partition, checkpoint.getKafkaOffset());
+        log.info("Rewound {} to offset {} ({})", partition, checkpoint.getKafkaOffset(), checkpoint.toMetadata());
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Decodes raw Kafka record values into {@link KafkaMessage} in a single streaming pass
+ * 
+ * <p>The record bytes are read token by token with a Jackson streaming parser, without
+ * an intermediate String or tree. The original bytes are kept on the message so the sinks
+ * can write raw_payload directly from them.</p>
+ */
+@Component
+public class KafkaMessageDecoder {
+
+    private final JsonFactory jsonFactory;
+
+    public KafkaMessageDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * @param payload Record value as received from Kafka
+     * @return Decoded message, carrying the original bytes as its raw payload
+     * @throws IOException if the payload is not a JSON object
+     */
+    public KafkaMessage decode(byte[] payload) throws IOException {
+        KafkaMessage message = new KafkaMessage();
+        message.setRawPayload(payload);
+
+        try (JsonParser parser = jsonFactory.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(parser, "Expected a JSON object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                switch (field) {
+                    case "id":
+                        message.setId(textValue(parser, value));
+                        break;
+                    case "message":
+                        message.setMessage(textValue(parser, value));
+                        break;
+                    case "source":
+                        message.setSource(textValue(parser, value));
+                        break;
+                    case "priority":
+                        message.setPriority(intValue(parser, value));
+                        break;
+                    case "timestamp":
+                        message.setTimestamp(instantValue(parser, value));
+                        break;
+                    default:
+                        // Unknown fields are ignored, like @JsonIgnoreProperties(ignoreUnknown = true)
+                        parser.skipChildren();
+                }
+            }
+        }
+
+        return message;
+    }
+
+    private static String textValue(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token.isScalarValue()) {
+            return parser.getValueAsString();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static Integer intValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getIntValue();
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                return text.isEmpty() ? null : Integer.valueOf(text);
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException(parser, "Expected a number for priority");
+        }
+    }
+
+    /**
+     * Mirrors the JavaTimeModule defaults: ISO-8601 strings, or epoch seconds with an optional fraction
+     */
+    private static Instant instantValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                try {
+                    return Instant.parse(parser.getText().trim());
+                } catch (DateTimeParseException e) {
+                    throw new JsonParseException(parser, "Invalid timestamp: " + parser.getText(), e);
+                }
+            case VALUE_NUMBER_INT:
+                return Instant.ofEpochSecond(parser.getLongValue());
+            case VALUE_NUMBER_FLOAT:
+                BigDecimal seconds = parser.getDecimalValue();
+                long wholeSeconds = seconds.longValue();
+                long nanos = seconds.subtract(BigDecimal.valueOf(wholeSeconds)).movePointRight(9).longValue();
+                return Instant.ofEpochSecond(wholeSeconds, nanos);
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new JsonParseException(parser, "Expected a timestamp");
+        }
+    }
+}
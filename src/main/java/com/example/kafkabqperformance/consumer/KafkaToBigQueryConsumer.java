@@ -1,125 +1,113 @@
 package com.example.kafkabqperformance.consumer;
 
 import com.example.kafkabqperformance.model.KafkaMessage;
-// import com.example.kafkabqperformance.monitoring.PerformanceMonitor;
-import com.example.kafkabqperformance.service.BigQueryWriteService;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Kafka listener that decodes messages and hands them to the {@link SinkPipeline}
+ * 
+ * <p>Record values arrive as raw bytes and are decoded once by {@link KafkaMessageDecoder}.
+ * The listener thread never writes to BigQuery itself; writes and flushes run on the
+ * pipeline's sink workers.</p>
+ * 
+ * <p>In exactly-once mode the Storage Write API rows go to the {@link ExactlyOnceCoordinator}
+ * instead, which appends them on the listener thread and commits the offsets itself.</p>
+ */
 @Component
 @Slf4j
 public class KafkaToBigQueryConsumer {
 
-    private final ObjectMapper objectMapper;
-    private final BigQueryWriteService legacyBigQueryWriteService;
-    private final BigQueryWriteService writeApiBigQueryWriteService;
-    // private final PerformanceMonitor performanceMonitor;
-    private final int batchSize;
-    
-    private final ConcurrentLinkedQueue<KafkaMessage> legacyQueue = new ConcurrentLinkedQueue<>();
-    private final ConcurrentLinkedQueue<KafkaMessage> writeApiQueue = new ConcurrentLinkedQueue<>();
+    public static final String RECORD_LISTENER_ID = "kafkaToBigQueryRecordListener";
+    public static final String BATCH_LISTENER_ID = "kafkaToBigQueryBatchListener";
+
+    private final KafkaMessageDecoder messageDecoder;
+    private final SinkPipeline sinkPipeline;
+    private final ExactlyOnceCoordinator exactlyOnceCoordinator;
     
     private final AtomicInteger totalProcessed = new AtomicInteger(0);
-    private final AtomicInteger legacyProcessed = new AtomicInteger(0);
-    private final AtomicInteger writeApiProcessed = new AtomicInteger(0);
     
     @Autowired
-    public KafkaToBigQueryConsumer(
-            ObjectMapper objectMapper,
-            @Qualifier("legacyBigQueryWriteService") BigQueryWriteService legacyBigQueryWriteService,
-            @Qualifier("writeApiBigQueryWriteService") BigQueryWriteService writeApiBigQueryWriteService,
-            // PerformanceMonitor performanceMonitor,
-            @Value("${performance.batch-size}") int batchSize) {
-        this.objectMapper = objectMapper;
-        this.legacyBigQueryWriteService = legacyBigQueryWriteService;
-        this.writeApiBigQueryWriteService = writeApiBigQueryWriteService;
-        // this.performanceMonitor = performanceMonitor;
-        this.batchSize = batchSize;
+    public KafkaToBigQueryConsumer(KafkaMessageDecoder messageDecoder, SinkPipeline sinkPipeline,
+                                   ExactlyOnceCoordinator exactlyOnceCoordinator) {
+        this.messageDecoder = messageDecoder;
+        this.sinkPipeline = sinkPipeline;
+        this.exactlyOnceCoordinator = exactlyOnceCoordinator;
     }
 
-    @KafkaListener(topics = "${kafka.topic}")
-    public void consume(String message) {
-        try {
-            KafkaMessage kafkaMessage = objectMapper.readValue(message, KafkaMessage.class);
-            
-            // Add to both queues to compare performance
-            legacyQueue.add(kafkaMessage);
-            writeApiQueue.add(kafkaMessage);
-            
-            int processed = totalProcessed.incrementAndGet();
-            if (processed % 1000 == 0) {
-                log.info("Processed {} messages", processed);
-            }
-            
-            // Process in batches if we've reached the batch size
-            if (legacyQueue.size() >= batchSize) {
-                processBatch(legacyQueue, legacyBigQueryWriteService, true);
+    @KafkaListener(id = RECORD_LISTENER_ID, idIsGroup = false, topics = "${kafka.topic}", batch = "false")
+    public void consume(ConsumerRecord<String, byte[]> record, Consumer<?, ?> consumer) throws InterruptedException {
+        process(Collections.singletonList(record), consumer);
+    }
+
+    /**
+     * Batch listener used when kafka.listener.batch-enabled is set.
+     * The whole poll result is deserialized in one pass and handed to the sinks as one unit per partition,
+     * which keeps each partition's records together on its pipeline shard.
+     */
+    @KafkaListener(id = BATCH_LISTENER_ID, idIsGroup = false, topics = "${kafka.topic}", batch = "true")
+    public void consumeBatch(List<ConsumerRecord<String, byte[]>> records, Consumer<?, ?> consumer) throws InterruptedException {
+        process(records, consumer);
+    }
+
+    private void process(List<ConsumerRecord<String, byte[]>> records, Consumer<?, ?> consumer) throws InterruptedException {
+        Map<TopicPartition, List<KafkaMessage>> messagesByPartition = new LinkedHashMap<>();
+        Map<TopicPartition, Long> nextOffsets = new HashMap<>();
+        int count = 0;
+        for (ConsumerRecord<String, byte[]> record : records) {
+            TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+            List<KafkaMessage> messages = messagesByPartition.computeIfAbsent(partition, p -> new ArrayList<>(records.size()));
+            nextOffsets.put(partition, record.offset() + 1);
+            if (record.value() == null) {
+                continue;
             }
-            
-            if (writeApiQueue.size() >= batchSize) {
-                processBatch(writeApiQueue, writeApiBigQueryWriteService, false);
+            try {
+                messages.add(messageDecoder.decode(record.value()));
+                count++;
+            } catch (IOException | RuntimeException e) {
+                log.error("Error deserializing Kafka message at {}-{}@{}: {}", record.topic(), record.partition(),
+                        record.offset(), new String(record.value(), StandardCharsets.UTF_8), e);
             }
-            
-        } catch (JsonProcessingException e) {
-            log.error("Error deserializing Kafka message: {}", message, e);
-        }
-    }
-    
-    private void processBatch(ConcurrentLinkedQueue<KafkaMessage> queue, BigQueryWriteService service, boolean isLegacy) {
-        if (queue.isEmpty()) {
-            return;
         }
-        
-        try {
-            long startTime = System.currentTimeMillis();
-            
-            // Convert queue to list for processing
-            List<KafkaMessage> batch = new ArrayList<>(queue);
-            queue.clear(); // Clear the queue after copying to list
-            
-            service.writeToBigQuery(batch);
-            int flushed = service.flush();
-            
-            long duration = System.currentTimeMillis() - startTime;
-            String serviceType = isLegacy ? "Legacy" : "Write API";
-            
-            log.debug("{}: Processed batch of {} messages in {} ms", serviceType, flushed, duration);
-            
-            // Record performance metrics
-            // performanceMonitor.recordBatchPerformance(isLegacy, flushed, duration);
-            
-            // Update counters
-            if (isLegacy) {
-                legacyProcessed.addAndGet(flushed);
-            } else {
-                writeApiProcessed.addAndGet(flushed);
+
+        if (exactlyOnceCoordinator.isEnabled()) {
+            // Skipped records still advance the partition's checkpoint, so partitions are passed on even when empty
+            exactlyOnceCoordinator.commitAcknowledged(consumer);
+            Iterator<Map.Entry<TopicPartition, List<KafkaMessage>>> partitions = messagesByPartition.entrySet().iterator();
+            while (partitions.hasNext()) {
+                Map.Entry<TopicPartition, List<KafkaMessage>> entry = partitions.next();
+                if (!exactlyOnceCoordinator.append(consumer, entry.getKey(), entry.getValue(), nextOffsets.get(entry.getKey()))) {
+                    count -= entry.getValue().size();
+                    partitions.remove();
+                }
             }
-        } catch (Exception e) {
-            log.error("Error processing batch with {}", isLegacy ? "Legacy service" : "Write API service", e);
         }
-    }
-    
-    @Scheduled(fixedDelayString = "${performance.flush-interval-ms}")
-    public void scheduledFlush() {
-        // Flush any remaining messages in the queues
-        if (!legacyQueue.isEmpty()) {
-            processBatch(legacyQueue, legacyBigQueryWriteService, true);
+
+        if (count <= 0) {
+            return;
         }
-        
-        if (!writeApiQueue.isEmpty()) {
-            processBatch(writeApiQueue, writeApiBigQueryWriteService, false);
+
+        int previous = totalProcessed.getAndAdd(count);
+        if ((previous + count) / 1000 > previous / 1000) {
+            log.info("Processed {} messages", previous + count);
         }
+
+        messagesByPartition.forEach((partition, messages) -> sinkPipeline.submit(partition.partition(), messages));
     }
 }
@@ -0,0 +1,156 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Byte-accounted budget for all rows buffered between the Kafka listener and BigQuery
+ * 
+ * <p>The sink pipeline reserves the estimated size of every batch once when it is handed off
+ * to the sinks and releases it once every sink has flushed the batch. When the buffered total crosses the high
+ * watermark all listener containers are paused (the consumer keeps polling for group
+ * membership but fetches nothing), and they are resumed once the total falls back below
+ * the low watermark. This keeps the heap bounded when BigQuery slows down.</p>
+ */
+@Component
+@Slf4j
+public class MemoryBudget implements MetricsSource {
+
+    /**
+     * Rough fixed overhead per buffered row: object headers, references and the row map/JSON built by the sinks
+     */
+    private static final int ROW_OVERHEAD_BYTES = 512;
+
+    private final ObjectProvider<KafkaListenerEndpointRegistry> registryProvider;
+    private final boolean enabled;
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+
+    private final AtomicLong usedBytes = new AtomicLong(0);
+    private final AtomicLong peakBytes = new AtomicLong(0);
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    private final AtomicLong pauseCount = new AtomicLong(0);
+    private final AtomicLong totalPausedMs = new AtomicLong(0);
+    private volatile long pausedSince;
+
+    public MemoryBudget(
+            ObjectProvider<KafkaListenerEndpointRegistry> registryProvider,
+            @Value("${performance.memory-budget.enabled:true}") boolean enabled,
+            @Value("${performance.memory-budget.high-watermark-bytes:67108864}") long highWatermarkBytes,
+            @Value("${performance.memory-budget.low-watermark-bytes:33554432}") long lowWatermarkBytes) {
+        this.registryProvider = registryProvider;
+        this.enabled = enabled;
+        this.highWatermarkBytes = highWatermarkBytes;
+        this.lowWatermarkBytes = Math.min(lowWatermarkBytes, highWatermarkBytes);
+
+        log.info("Initialized memory budget (enabled: {}) with high watermark: {} bytes, low watermark: {} bytes",
+                enabled, highWatermarkBytes, this.lowWatermarkBytes);
+    }
+
+    /**
+     * Estimates the heap footprint of one buffered message
+     */
+    public static long estimateSize(KafkaMessage message) {
+        long size = ROW_OVERHEAD_BYTES;
+        size += 2L * length(message.getId());
+        size += 2L * length(message.getMessage());
+        size += 2L * length(message.getSource());
+        if (message.getRawPayload() != null) {
+            size += message.getRawPayload().length;
+        }
+        return size;
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    public void reserve(long bytes) {
+        long used = usedBytes.addAndGet(bytes);
+        peakBytes.accumulateAndGet(used, Math::max);
+
+        if (enabled && used >= highWatermarkBytes) {
+            evaluate();
+        }
+    }
+
+    public void release(long bytes) {
+        long used = usedBytes.addAndGet(-bytes);
+
+        if (used <= lowWatermarkBytes) {
+            evaluate();
+        }
+    }
+
+    /**
+     * Pauses or resumes the containers from the current total, under one lock with the state change,
+     * so a resume can never overtake the pause it is meant to undo
+     */
+    private synchronized void evaluate() {
+        long used = usedBytes.get();
+        if (enabled && !paused.get() && used >= highWatermarkBytes) {
+            paused.set(true);
+            pausedSince = System.currentTimeMillis();
+            pauseCount.incrementAndGet();
+            log.warn("Memory budget exceeded high watermark ({} >= {} bytes), pausing Kafka consumption",
+                    used, highWatermarkBytes);
+            forEachContainer(MessageListenerContainer::pause);
+        } else if (paused.get() && used <= lowWatermarkBytes) {
+            paused.set(false);
+            long pausedMs = System.currentTimeMillis() - pausedSince;
+            totalPausedMs.addAndGet(pausedMs);
+            log.info("Memory budget below low watermark ({} <= {} bytes) after {} ms, resuming Kafka consumption",
+                    used, lowWatermarkBytes, pausedMs);
+            forEachContainer(MessageListenerContainer::resume);
+        }
+    }
+
+    public boolean isPaused() {
+        return paused.get();
+    }
+
+    private void forEachContainer(Consumer<MessageListenerContainer> action) {
+        KafkaListenerEndpointRegistry registry = registryProvider.getIfAvailable();
+        if (registry == null) {
+            return;
+        }
+        for (MessageListenerContainer container : registry.getListenerContainers()) {
+            if (container.isRunning()) {
+                action.accept(container);
+            }
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "memoryBudget";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        boolean currentlyPaused = paused.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("usedBytes", usedBytes.get());
+        metrics.put("peakBytes", peakBytes.get());
+        metrics.put("highWatermarkBytes", highWatermarkBytes);
+        metrics.put("lowWatermarkBytes", lowWatermarkBytes);
+        metrics.put("paused", currentlyPaused);
+        metrics.put("pauseCount", pauseCount.get());
+        metrics.put("totalPausedMs", totalPausedMs.get()
+                + (currentlyPaused ? System.currentTimeMillis() - pausedSince : 0));
+        return metrics;
+    }
+}
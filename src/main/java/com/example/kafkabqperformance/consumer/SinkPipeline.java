@@ -0,0 +1,187 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.example.kafkabqperformance.service.BigQueryWriteService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Staged pipeline between the Kafka listener and the BigQuery sinks
+ * 
+ * <p>The listener thread only enqueues; every sink has its own {@link SinkWorker} that
+ * performs the writes and flushes. The bounded handoff queues push back on the listener
+ * when a sink falls behind, instead of letting a slow append stall polling.</p>
+ * 
+ * <p>In partition-parallel mode the pipeline is split into shards. Each Kafka partition is
+ * pinned to one shard, and every shard owns its own workers and its own write service
+ * instances (buffer and stream writer), so shards never contend with each other while
+ * records of one partition stay in order.</p>
+ */
+@Component
+@Slf4j
+public class SinkPipeline implements MetricsSource {
+
+    private final Map<String, BigQueryWriteService> sinks = new LinkedHashMap<>();
+    private final Map<Integer, List<SinkWorker>> shards = new ConcurrentHashMap<>();
+    private final MemoryBudget memoryBudget;
+    private final DuplicateFilter duplicateFilter;
+    private final int shardCount;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int queueCapacityRows;
+
+    @Autowired
+    public SinkPipeline(
+            @Qualifier("legacyBigQueryWriteService") BigQueryWriteService legacyBigQueryWriteService,
+            @Qualifier("writeApiBigQueryWriteService") BigQueryWriteService writeApiBigQueryWriteService,
+            @Qualifier("loadJobBigQueryWriteService") ObjectProvider<BigQueryWriteService> loadJobBigQueryWriteService,
+            MemoryBudget memoryBudget,
+            DuplicateFilter duplicateFilter,
+            @Value("${performance.batch-size}") int batchSize,
+            @Value("${performance.flush-interval-ms}") long flushIntervalMs,
+            @Value("${performance.pipeline.queue-capacity-rows:10000}") int queueCapacityRows,
+            @Value("${kafka.listener.partition-parallel:false}") boolean partitionParallel,
+            @Value("${performance.pipeline.max-shards:0}") int maxShards,
+            @Value("${bigquery.write-api.exactly-once.enabled:false}") boolean exactlyOnce) {
+        this.memoryBudget = memoryBudget;
+        this.duplicateFilter = duplicateFilter;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.queueCapacityRows = queueCapacityRows;
+        this.shardCount = !partitionParallel ? 1
+                : maxShards > 0 ? maxShards : Runtime.getRuntime().availableProcessors();
+
+        sinks.put("legacy", legacyBigQueryWriteService);
+        // In exactly-once mode the Storage Write API rows are appended by the ExactlyOnceCoordinator
+        if (!exactlyOnce) {
+            sinks.put("writeApi", writeApiBigQueryWriteService);
+        }
+        // The load-job sink only exists when enabled with bigquery.load-job.enabled
+        loadJobBigQueryWriteService.ifAvailable(service -> sinks.put("loadJob", service));
+
+        log.info("Initialized sink pipeline with {} sinks, up to {} shards, batch size: {}, queue capacity: {} rows",
+                sinks.size(), shardCount, batchSize, queueCapacityRows);
+    }
+
+    /**
+     * Hands a batch of messages from one partition to every sink of the partition's shard
+     * Redelivered IDs are dropped first, by the {@link DuplicateFilter}, and recorded there only once
+     * every sink has flushed the batch. The sinks share the batch, so its bytes are reserved in the
+     * {@link MemoryBudget} once, until the last sink has flushed it.
+     * Blocks while any sink's handoff queue is full, which is how backpressure reaches the listener
+     */
+    public void submit(int partition, List<KafkaMessage> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return;
+        }
+        messages = duplicateFilter.filter(messages);
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        long bytes = 0;
+        for (KafkaMessage message : messages) {
+            bytes += MemoryBudget.estimateSize(message);
+        }
+
+        List<SinkWorker> workers = shardFor(partition);
+        memoryBudget.reserve(bytes);
+        Consumer<Boolean> onFlushed = deliveryTracker(messages, bytes, workers.size());
+        int handedOff = 0;
+        try {
+            for (SinkWorker worker : workers) {
+                worker.submit(messages, onFlushed);
+                handedOff++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while handing off {} messages to the sinks", messages.size());
+            for (int i = handedOff; i < workers.size(); i++) {
+                onFlushed.accept(false);
+            }
+        }
+    }
+
+    /**
+     * Counts down the sinks of a batch; when the last one reports, the batch's bytes are released and its
+     * IDs are recorded as delivered if every flush succeeded, or released for redelivery otherwise
+     */
+    private Consumer<Boolean> deliveryTracker(List<KafkaMessage> messages, long bytes, int sinkCount) {
+        AtomicInteger remaining = new AtomicInteger(sinkCount);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        return flushed -> {
+            if (!flushed) {
+                failed.set(true);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                memoryBudget.release(bytes);
+                if (failed.get()) {
+                    duplicateFilter.release(messages);
+                } else {
+                    duplicateFilter.markDelivered(messages);
+                }
+            }
+        };
+    }
+
+    private List<SinkWorker> shardFor(int partition) {
+        int shard = Math.floorMod(partition, shardCount);
+        return shards.computeIfAbsent(shard, this::createShard);
+    }
+
+    private List<SinkWorker> createShard(int shard) {
+        List<SinkWorker> workers = new ArrayList<>(sinks.size());
+        sinks.forEach((name, service) -> {
+            SinkWorker worker = new SinkWorker(name + "-" + shard, service.forShard(shard),
+                    batchSize, flushIntervalMs, queueCapacityRows);
+            worker.start();
+            workers.add(worker);
+        });
+        log.info("Started pipeline shard {}", shard);
+        return workers;
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (List<SinkWorker> workers : shards.values()) {
+            for (SinkWorker worker : workers) {
+                try {
+                    worker.stop(flushIntervalMs * 2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "pipeline";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("shards", shards.size());
+        metrics.put("maxShards", shardCount);
+        shards.values().forEach(workers ->
+                workers.forEach(worker -> metrics.put(worker.getName(), worker.getMetrics())));
+        return metrics;
+    }
+}
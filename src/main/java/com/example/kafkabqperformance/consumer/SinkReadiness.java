@@ -0,0 +1,167 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.example.kafkabqperformance.monitoring.WarmupAware;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Warms up the sinks after startup and only then starts the Kafka listener
+ * 
+ * <p>Every {@link WarmupAware} bean is warmed up in turn on a background thread, with
+ * exponential backoff between failed attempts. Until all of them are warm the readiness
+ * endpoint reports not ready, so no traffic is routed to the pod, and the listener
+ * container stays stopped, so no partitions are assigned to it.</p>
+ */
+@Component
+@Slf4j
+public class SinkReadiness implements MetricsSource {
+
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    private final ObjectProvider<WarmupAware> participants;
+    private final ObjectProvider<KafkaListenerEndpointRegistry> registryProvider;
+    private final boolean startAfterWarmup;
+    private final String listenerId;
+
+    private final Map<String, SinkState> states = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+    private volatile Thread warmupThread;
+
+    public SinkReadiness(
+            ObjectProvider<WarmupAware> participants,
+            ObjectProvider<KafkaListenerEndpointRegistry> registryProvider,
+            @Value("${kafka.listener.start-after-warmup:true}") boolean startAfterWarmup,
+            @Value("${kafka.listener.batch-enabled:false}") boolean batchListenerEnabled) {
+        this.participants = participants;
+        this.registryProvider = registryProvider;
+        this.startAfterWarmup = startAfterWarmup;
+        this.listenerId = batchListenerEnabled
+                ? KafkaToBigQueryConsumer.BATCH_LISTENER_ID : KafkaToBigQueryConsumer.RECORD_LISTENER_ID;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startWarmup() {
+        List<WarmupAware> sinks = participants.orderedStream().collect(Collectors.toList());
+        sinks.forEach(sink -> states.put(sink.getWarmupName(), new SinkState()));
+
+        Thread thread = new Thread(() -> warmUpAll(sinks), "sink-warmup");
+        thread.setDaemon(true);
+        warmupThread = thread;
+        thread.start();
+    }
+
+    private void warmUpAll(List<WarmupAware> sinks) {
+        long start = System.nanoTime();
+        try {
+            for (WarmupAware sink : sinks) {
+                warmUp(sink);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        ready = true;
+        log.info("All {} sinks warmed up in {} ms", sinks.size(), (System.nanoTime() - start) / 1_000_000);
+        if (startAfterWarmup) {
+            startListener();
+        }
+    }
+
+    private void warmUp(WarmupAware sink) throws InterruptedException {
+        SinkState state = states.get(sink.getWarmupName());
+        long backoffMs = 500;
+        while (true) {
+            state.attempts++;
+            long start = System.nanoTime();
+            Map<String, Long> steps = Collections.synchronizedMap(new LinkedHashMap<>());
+            state.steps = steps;
+            try {
+                sink.warmUp(steps);
+                state.warmupMs = (System.nanoTime() - start) / 1_000_000;
+                state.lastError = null;
+                state.ready = true;
+                log.info("Sink {} warmed up in {} ms: {}", sink.getWarmupName(), state.warmupMs, steps);
+                return;
+            } catch (Exception e) {
+                state.lastError = String.valueOf(e.getMessage());
+                log.warn("Warm-up of sink {} failed (attempt {}), retrying in {} ms: {}",
+                        sink.getWarmupName(), state.attempts, backoffMs, e.getMessage());
+            }
+            Thread.sleep(backoffMs);
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+        }
+    }
+
+    private void startListener() {
+        KafkaListenerEndpointRegistry registry = registryProvider.getIfAvailable();
+        MessageListenerContainer container = registry != null ? registry.getListenerContainer(listenerId) : null;
+        if (container == null) {
+            log.warn("Listener container {} not found, nothing to start", listenerId);
+            return;
+        }
+        if (!container.isRunning()) {
+            container.start();
+            log.info("Started Kafka listener {}", listenerId);
+        }
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @PreDestroy
+    public void stop() {
+        Thread thread = warmupThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "readiness";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("ready", ready);
+        states.forEach((name, state) -> {
+            Map<String, Object> sink = new LinkedHashMap<>();
+            sink.put("ready", state.ready);
+            sink.put("attempts", state.attempts);
+            Map<String, Long> steps = state.steps;
+            synchronized (steps) {
+                sink.put("steps", new LinkedHashMap<>(steps));
+            }
+            sink.put("warmupMs", state.warmupMs);
+            sink.put("lastError", state.lastError);
+            metrics.put(name, sink);
+        });
+        return metrics;
+    }
+
+    private static final class SinkState {
+        private volatile boolean ready;
+        private volatile int attempts;
+        private volatile Map<String, Long> steps = Collections.emptyMap();
+        private volatile long warmupMs;
+        private volatile String lastError;
+    }
+}
@@ -0,0 +1,217 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.service.BigQueryWriteService;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Dedicated sink stage of the ingest pipeline
+ * 
+ * <p>The Kafka listener hands batches over through a bounded queue, measured in rows.
+ * A single worker thread drains the queue, accumulates rows up to the batch size (or the
+ * flush interval) and owns all serialization and appends for its sink, so a slow BigQuery
+ * call never runs on the listener thread.</p>
+ */
+@Slf4j
+class SinkWorker implements Runnable {
+
+    private final String name;
+    private final BigQueryWriteService service;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int capacityRows;
+
+    private final LinkedBlockingQueue<Handoff> handoff = new LinkedBlockingQueue<>();
+    private final Semaphore capacity;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Listener stage metrics
+    private final AtomicLong queuedRows = new AtomicLong(0);
+    private final AtomicLong handoffWaitNanos = new AtomicLong(0);
+    private final AtomicLong maxHandoffWaitNanos = new AtomicLong(0);
+    private final AtomicLong handoffs = new AtomicLong(0);
+
+    // Sink stage metrics
+    private final AtomicLong bufferedRows = new AtomicLong(0);
+    private final AtomicLong inFlightRows = new AtomicLong(0);
+    private final AtomicLong batchesWritten = new AtomicLong(0);
+    private final AtomicLong rowsCompleted = new AtomicLong(0);
+    private final AtomicLong writeNanos = new AtomicLong(0);
+    private final AtomicLong failedBatches = new AtomicLong(0);
+
+    SinkWorker(String name, BigQueryWriteService service, int batchSize, long flushIntervalMs, int capacityRows) {
+        this.name = name;
+        this.service = service;
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.capacityRows = capacityRows;
+        this.capacity = new Semaphore(capacityRows);
+        this.thread = new Thread(this, "sink-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Hands a batch to the sink, blocking while the handoff queue is full
+     * 
+     * @param batch Messages to write; the list must not be modified afterwards
+     * @param onFlushed Called once with whether the flush that carried the batch succeeded
+     */
+    void submit(List<KafkaMessage> batch, Consumer<Boolean> onFlushed) throws InterruptedException {
+        int permits = Math.min(batch.size(), capacityRows);
+        long start = System.nanoTime();
+        capacity.acquire(permits);
+        long waited = System.nanoTime() - start;
+
+        handoffWaitNanos.addAndGet(waited);
+        maxHandoffWaitNanos.accumulateAndGet(waited, Math::max);
+        handoffs.incrementAndGet();
+        queuedRows.addAndGet(batch.size());
+        handoff.add(new Handoff(batch, onFlushed));
+    }
+
+    @Override
+    public void run() {
+        List<KafkaMessage> buffer = new ArrayList<>(batchSize);
+        List<Handoff> bufferHandoffs = new ArrayList<>();
+        long lastFlush = System.currentTimeMillis();
+
+        while (running || !handoff.isEmpty()) {
+            try {
+                long waitMs = Math.max(1, flushIntervalMs - (System.currentTimeMillis() - lastFlush));
+                Handoff next = handoff.poll(waitMs, TimeUnit.MILLISECONDS);
+                if (next != null) {
+                    capacity.release(Math.min(next.batch.size(), capacityRows));
+                    queuedRows.addAndGet(-next.batch.size());
+                    buffer.addAll(next.batch);
+                    bufferHandoffs.add(next);
+                    bufferedRows.set(buffer.size());
+                }
+
+                boolean intervalElapsed = System.currentTimeMillis() - lastFlush >= flushIntervalMs;
+                if (buffer.size() >= batchSize || (intervalElapsed && !buffer.isEmpty())) {
+                    writeBatch(buffer, bufferHandoffs);
+                    buffer = new ArrayList<>(batchSize);
+                    bufferHandoffs = new ArrayList<>();
+                    lastFlush = System.currentTimeMillis();
+                } else if (intervalElapsed) {
+                    lastFlush = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        if (!buffer.isEmpty()) {
+            writeBatch(buffer, bufferHandoffs);
+        }
+        // Anything still queued after an interrupt is dropped, which gives its bytes back once every sink reported
+        Handoff leftover;
+        while ((leftover = handoff.poll()) != null) {
+            leftover.onFlushed.accept(false);
+        }
+        log.info("Sink worker {} stopped", name);
+    }
+
+    /**
+     * Buffers the batch in the sink and starts flushing it without waiting for the acknowledgement.
+     * The handoffs are only reported once the flush completes, so the memory budget covers
+     * rows that are still in flight.
+     */
+    private void writeBatch(List<KafkaMessage> batch, List<Handoff> handoffs) {
+        long start = System.nanoTime();
+        CompletableFuture<Integer> flushed;
+        try {
+            service.writeToBigQuery(batch);
+            flushed = service.flushAsync();
+        } catch (Exception e) {
+            failedBatches.incrementAndGet();
+            bufferedRows.set(0);
+            notifyFlushed(handoffs, false);
+            log.error("Error processing batch with {}", name, e);
+            return;
+        }
+
+        bufferedRows.set(0);
+        inFlightRows.addAndGet(batch.size());
+        flushed.whenComplete((count, error) -> {
+            inFlightRows.addAndGet(-batch.size());
+            notifyFlushed(handoffs, error == null);
+            if (error != null) {
+                failedBatches.incrementAndGet();
+                log.error("Error flushing batch with {}", name, error);
+                return;
+            }
+
+            long duration = System.nanoTime() - start;
+            writeNanos.addAndGet(duration);
+            batchesWritten.incrementAndGet();
+            rowsCompleted.addAndGet(batch.size());
+            log.debug("{}: Processed batch of {} messages in {} ms", name, batch.size(),
+                    TimeUnit.NANOSECONDS.toMillis(duration));
+        });
+    }
+
+    private static void notifyFlushed(List<Handoff> handoffs, boolean flushed) {
+        for (Handoff completed : handoffs) {
+            completed.onFlushed.accept(flushed);
+        }
+    }
+
+    void stop(long timeoutMs) throws InterruptedException {
+        running = false;
+        thread.join(timeoutMs);
+        if (thread.isAlive()) {
+            log.warn("Sink worker {} did not stop within {} ms, interrupting", name, timeoutMs);
+            thread.interrupt();
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Map<String, Object> getMetrics() {
+        long batches = batchesWritten.get();
+        long handoffCount = handoffs.get();
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("handoffQueueRows", queuedRows.get());
+        metrics.put("handoffCapacityRows", capacityRows);
+        metrics.put("handoffAvgWaitMs", handoffCount == 0 ? 0.0 : handoffWaitNanos.get() / 1_000_000.0 / handoffCount);
+        metrics.put("handoffMaxWaitMs", maxHandoffWaitNanos.get() / 1_000_000.0);
+        metrics.put("sinkBufferedRows", bufferedRows.get());
+        metrics.put("sinkInFlightRows", inFlightRows.get());
+        metrics.put("batchesWritten", batches);
+        metrics.put("rowsCompleted", rowsCompleted.get());
+        metrics.put("failedBatches", failedBatches.get());
+        metrics.put("avgBatchCompletionMs", batches == 0 ? 0.0 : writeNanos.get() / 1_000_000.0 / batches);
+        return metrics;
+    }
+
+    private static final class Handoff {
+        private final List<KafkaMessage> batch;
+        private final Consumer<Boolean> onFlushed;
+
+        private Handoff(List<KafkaMessage> batch, Consumer<Boolean> onFlushed) {
+            this.batch = batch;
+            this.onFlushed = onFlushed;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.example.kafkabqperformance.controller;
+
+import com.example.kafkabqperformance.model.BackfillRequest;
+import com.example.kafkabqperformance.service.BackfillService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Starts, follows and cancels backfills through pending write streams
+ */
+@RestController
+@RequestMapping("/api/backfill")
+public class BackfillController {
+
+    private final BackfillService backfillService;
+
+    public BackfillController(BackfillService backfillService) {
+        this.backfillService = backfillService;
+    }
+
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> start(@RequestBody BackfillRequest request) {
+        try {
+            return ResponseEntity.accepted().body(backfillService.start(request));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Collections.singletonMap("error", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Collections.singletonMap("error", e.getMessage()));
+        }
+    }
+
+    @GetMapping
+    public Map<String, Object> status() {
+        return backfillService.getStatus();
+    }
+
+    @DeleteMapping
+    public Map<String, Object> cancel() {
+        return backfillService.cancel();
+    }
+}
@@ -1,5 +1,8 @@
 package com.example.kafkabqperformance.controller;
 
+import com.example.kafkabqperformance.consumer.SinkReadiness;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -7,16 +10,44 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Simple controller to check if the application is running
+ * Simple controller to check if the application is running, and whether its sinks are warm
  */
 @RestController
 public class HealthController {
+
+    private final SinkReadiness sinkReadiness;
+
+    public HealthController(SinkReadiness sinkReadiness) {
+        this.sinkReadiness = sinkReadiness;
+    }
     
     @GetMapping("/health")
     public Map<String, Object> health() {
         Map<String, Object> response = new HashMap<>();
         response.put("status", "UP");
         response.put("message", "Application is running");
+        response.put("ready", sinkReadiness.isReady());
+        return response;
+    }
+
+    /**
+     * Liveness probe: the web server answers, nothing else is required
+     */
+    @GetMapping("/health/liveness")
+    public Map<String, Object> liveness() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", "UP");
         return response;
     }
+
+    /**
+     * Readiness probe: 503 until every sink has warmed up, with the warm-up state of each sink
+     */
+    @GetMapping("/health/readiness")
+    public ResponseEntity<Map<String, Object>> readiness() {
+        Map<String, Object> response = new HashMap<>(sinkReadiness.getMetrics());
+        response.put("status", sinkReadiness.isReady() ? "UP" : "WARMING_UP");
+        return ResponseEntity.status(sinkReadiness.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE)
+                .body(response);
+    }
 }
@@ -0,0 +1,43 @@
+package com.example.kafkabqperformance.controller;
+
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Exposes the metrics of every {@link MetricsSource} in the application context
+ */
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsController {
+
+    private final ObjectProvider<MetricsSource> metricsSources;
+
+    public MetricsController(ObjectProvider<MetricsSource> metricsSources) {
+        this.metricsSources = metricsSources;
+    }
+
+    @GetMapping
+    public Map<String, Object> allMetrics() {
+        Map<String, Object> response = new LinkedHashMap<>();
+        metricsSources.orderedStream()
+                .forEach(source -> response.put(source.getMetricsName(), source.getMetrics()));
+        return response;
+    }
+
+    @GetMapping("/{name}")
+    public ResponseEntity<Map<String, Object>> metrics(@PathVariable String name) {
+        return metricsSources.orderedStream()
+                .filter(source -> source.getMetricsName().equals(name))
+                .findFirst()
+                .map(source -> ResponseEntity.ok(source.getMetrics()))
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.kafkabqperformance.controller;
 
+import com.example.kafkabqperformance.consumer.SinkReadiness;
 import com.example.kafkabqperformance.model.KafkaMessage;
 import com.example.kafkabqperformance.service.BigQueryWriteService;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -7,6 +8,7 @@ import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
@@ -23,19 +25,28 @@ public class PerformanceController {
     private final BigQueryWriteService legacyBigQueryWriteService;
     private final BigQueryWriteService writeApiBigQueryWriteService;
     private final ObjectMapper objectMapper;
+    private final SinkReadiness sinkReadiness;
 
     @Autowired
     public PerformanceController(
             @Qualifier("legacyBigQueryWriteService") BigQueryWriteService legacyBigQueryWriteService,
             @Qualifier("writeApiBigQueryWriteService") BigQueryWriteService writeApiBigQueryWriteService,
-            ObjectMapper objectMapper) {
+            ObjectMapper objectMapper,
+            SinkReadiness sinkReadiness) {
         this.legacyBigQueryWriteService = legacyBigQueryWriteService;
         this.writeApiBigQueryWriteService = writeApiBigQueryWriteService;
         this.objectMapper = objectMapper;
+        this.sinkReadiness = sinkReadiness;
     }
 
+    /**
+     * 503 until every sink has warmed up, so callers do not start a test against cold sinks
+     */
     @GetMapping("/health")
     public ResponseEntity<String> healthCheck() {
+        if (!sinkReadiness.isReady()) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Service is warming up");
+        }
         return ResponseEntity.ok("Service is running");
     }
 
@@ -0,0 +1,38 @@
+package com.example.kafkabqperformance.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+/**
+ * Range of a topic to replay into BigQuery through pending write streams
+ * 
+ * <p>The start is a timestamp or an offset applied to every partition, the end likewise;
+ * without an end the backfill stops at the end offsets at the time it starts.</p>
+ */
+@Data
+@NoArgsConstructor
+public class BackfillRequest {
+
+    /**
+     * Topic to replay, defaults to the live topic
+     */
+    private String topic;
+
+    private Instant fromTimestamp;
+
+    private Instant toTimestamp;
+
+    private Long fromOffset;
+
+    /**
+     * Exclusive end offset for every partition
+     */
+    private Long toOffset;
+
+    /**
+     * Number of pending streams and consumers, defaults to backfill.parallelism
+     */
+    private Integer parallelism;
+}
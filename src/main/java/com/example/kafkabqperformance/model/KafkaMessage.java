@@ -1,12 +1,16 @@
 package com.example.kafkabqperformance.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 
 @Data
@@ -32,4 +36,20 @@ public class KafkaMessage {
     private Integer priority;
     
     // Add any other fields that might be in your Kafka messages
+    
+    /**
+     * Original Kafka record value, set when the message was decoded from Kafka
+     */
+    @JsonIgnore
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private byte[] rawPayload;
+    
+    /**
+     * @return the original record value as text, or the message text for messages not read from Kafka
+     */
+    @JsonIgnore
+    public String getRawPayloadText() {
+        return rawPayload != null ? new String(rawPayload, StandardCharsets.UTF_8) : message;
+    }
 }
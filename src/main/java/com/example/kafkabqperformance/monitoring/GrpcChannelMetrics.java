@@ -0,0 +1,114 @@
+package com.example.kafkabqperformance.monitoring;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ForwardingClientCall;
+import io.grpc.ForwardingClientCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client interceptor that tracks the calls running on the Storage Write API channel pool
+ *
+ * <p>Append streams are long-lived bidi calls, so the number of active calls is what fills the
+ * channels. Utilization is estimated the way the dynamic pool sizes itself: active calls spread
+ * over as many channels as needed to stay under the per-channel limit, within the pool bounds.</p>
+ */
+@Component
+public class GrpcChannelMetrics implements ClientInterceptor, MetricsSource {
+
+    private final AtomicLong callsStarted = new AtomicLong(0);
+    private final AtomicLong callsFailed = new AtomicLong(0);
+    private final AtomicLong activeCalls = new AtomicLong(0);
+    private final AtomicLong peakActiveCalls = new AtomicLong(0);
+    private final AtomicLong messagesSent = new AtomicLong(0);
+    private final AtomicLong messagesReceived = new AtomicLong(0);
+
+    private volatile int minChannels = 1;
+    private volatile int maxChannels = 1;
+    private volatile int maxRpcsPerChannel = Integer.MAX_VALUE;
+
+    /**
+     * Records the pool bounds the channel provider was built with, used to estimate utilization
+     */
+    public void describePool(int minChannels, int maxChannels, int maxRpcsPerChannel) {
+        this.minChannels = minChannels;
+        this.maxChannels = maxChannels;
+        this.maxRpcsPerChannel = maxRpcsPerChannel;
+    }
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+            MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+        return new ForwardingClientCall.SimpleForwardingClientCall<>(next.newCall(method, callOptions)) {
+            private final AtomicBoolean closed = new AtomicBoolean(false);
+
+            @Override
+            public void start(Listener<RespT> responseListener, Metadata headers) {
+                callsStarted.incrementAndGet();
+                peakActiveCalls.accumulateAndGet(activeCalls.incrementAndGet(), Math::max);
+                super.start(new ForwardingClientCallListener.SimpleForwardingClientCallListener<>(responseListener) {
+                    @Override
+                    public void onMessage(RespT message) {
+                        messagesReceived.incrementAndGet();
+                        super.onMessage(message);
+                    }
+
+                    @Override
+                    public void onClose(Status status, Metadata trailers) {
+                        if (closed.compareAndSet(false, true)) {
+                            activeCalls.decrementAndGet();
+                            if (!status.isOk()) {
+                                callsFailed.incrementAndGet();
+                            }
+                        }
+                        super.onClose(status, trailers);
+                    }
+                }, headers);
+            }
+
+            @Override
+            public void sendMessage(ReqT message) {
+                messagesSent.incrementAndGet();
+                super.sendMessage(message);
+            }
+        };
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "grpcChannels";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        long active = activeCalls.get();
+        int perChannel = maxRpcsPerChannel;
+        long needed = perChannel == Integer.MAX_VALUE ? minChannels : (active + perChannel - 1) / perChannel;
+        long channels = Math.max(minChannels, Math.min(maxChannels, needed));
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("minChannels", minChannels);
+        metrics.put("maxChannels", maxChannels);
+        metrics.put("maxRpcsPerChannel", perChannel);
+        metrics.put("estimatedChannels", channels);
+        metrics.put("activeCalls", active);
+        metrics.put("peakActiveCalls", peakActiveCalls.get());
+        metrics.put("callsStarted", callsStarted.get());
+        metrics.put("callsFailed", callsFailed.get());
+        metrics.put("messagesSent", messagesSent.get());
+        metrics.put("messagesReceived", messagesReceived.get());
+        metrics.put("channelUtilization", perChannel == Integer.MAX_VALUE || channels == 0
+                ? 0.0 : (double) active / (channels * (double) perChannel));
+        return metrics;
+    }
+}
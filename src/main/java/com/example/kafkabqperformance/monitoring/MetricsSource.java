@@ -0,0 +1,22 @@
+package com.example.kafkabqperformance.monitoring;
+
+import java.util.Map;
+
+/**
+ * Component that exposes a snapshot of its internal metrics
+ * 
+ * <p>All beans implementing this interface are collected by the metrics endpoint,
+ * so new subsystems only need to implement it to become visible.</p>
+ */
+public interface MetricsSource {
+
+    /**
+     * @return name under which the metrics are grouped in the report
+     */
+    String getMetricsName();
+
+    /**
+     * @return point-in-time snapshot of the metrics, keyed by metric name
+     */
+    Map<String, Object> getMetrics();
+}
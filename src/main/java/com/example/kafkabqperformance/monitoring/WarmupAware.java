@@ -0,0 +1,25 @@
+package com.example.kafkabqperformance.monitoring;
+
+import java.util.Map;
+
+/**
+ * Component that has to warm up before the Kafka listeners may hand it records
+ * 
+ * <p>All beans implementing this interface are warmed up once after startup; the
+ * application reports ready, and the listeners start, only when every one of them
+ * has succeeded.</p>
+ */
+public interface WarmupAware {
+
+    /**
+     * @return name under which the warm-up state is reported
+     */
+    String getWarmupName();
+
+    /**
+     * Opens connections and loads whatever the first write needs; retried until it succeeds
+     * 
+     * @param steps Completed steps, recorded in order with the milliseconds each took
+     */
+    void warmUp(Map<String, Long> steps) throws Exception;
+}
@@ -0,0 +1,229 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Quota-aware rate limit shared by both BigQuery sinks
+ * 
+ * <p>Every append and insertAll request reserves its rows and bytes against two token buckets
+ * and waits until both allow it, so requests leave at an even pace instead of in bursts. The
+ * allowed rates follow AIMD: each quota signal (RESOURCE_EXHAUSTED, rateLimitExceeded or
+ * quotaExceeded) cuts them by the decrease factor, at most once per cooldown, and every
+ * increase interval of successful requests without a signal raises them by a fixed step.
+ * The cooldown is jittered so pods that were throttled together do not recover in lockstep.</p>
+ * 
+ * <p>Waiting happens on the sinks' flush threads. A throttled sink therefore stops draining its
+ * handoff queue, and the backpressure reaches the Kafka listener through the sink pipeline.</p>
+ */
+@Component
+@Slf4j
+public class AdaptiveThrottler implements MetricsSource {
+
+    private static final Set<String> THROTTLE_REASONS = Set.of("rateLimitExceeded", "quotaExceeded");
+
+    private final boolean enabled;
+    private final double minRowsPerSecond;
+    private final double maxRowsPerSecond;
+    private final double minBytesPerSecond;
+    private final double maxBytesPerSecond;
+    private final double decreaseFactor;
+    private final double increaseFraction;
+    private final long increaseIntervalNanos;
+    private final long decreaseCooldownNanos;
+    private final long burstNanos;
+
+    private double rowsPerSecond;
+    private double bytesPerSecond;
+    private long rowsFreeAt = System.nanoTime();
+    private long bytesFreeAt = System.nanoTime();
+    private long lastIncreaseAt = System.nanoTime();
+    private long decreaseAllowedAt = System.nanoTime();
+
+    private final AtomicLong throttleSignals = new AtomicLong(0);
+    private final AtomicLong decreases = new AtomicLong(0);
+    private final AtomicLong increases = new AtomicLong(0);
+    private final AtomicLong pacedRequests = new AtomicLong(0);
+    private final AtomicLong pacedNanos = new AtomicLong(0);
+
+    public AdaptiveThrottler(
+            @Value("${bigquery.throttle.enabled:true}") boolean enabled,
+            @Value("${bigquery.throttle.initial-rows-per-second:50000}") double initialRowsPerSecond,
+            @Value("${bigquery.throttle.min-rows-per-second:100}") double minRowsPerSecond,
+            @Value("${bigquery.throttle.max-rows-per-second:500000}") double maxRowsPerSecond,
+            @Value("${bigquery.throttle.initial-bytes-per-second:52428800}") double initialBytesPerSecond,
+            @Value("${bigquery.throttle.min-bytes-per-second:102400}") double minBytesPerSecond,
+            @Value("${bigquery.throttle.max-bytes-per-second:524288000}") double maxBytesPerSecond,
+            @Value("${bigquery.throttle.decrease-factor:0.5}") double decreaseFactor,
+            @Value("${bigquery.throttle.increase-fraction:0.02}") double increaseFraction,
+            @Value("${bigquery.throttle.increase-interval-ms:1000}") long increaseIntervalMs,
+            @Value("${bigquery.throttle.decrease-cooldown-ms:2000}") long decreaseCooldownMs,
+            @Value("${bigquery.throttle.burst-ms:100}") long burstMs) {
+        this.enabled = enabled;
+        this.minRowsPerSecond = Math.max(1, minRowsPerSecond);
+        this.maxRowsPerSecond = Math.max(this.minRowsPerSecond, maxRowsPerSecond);
+        this.minBytesPerSecond = Math.max(1, minBytesPerSecond);
+        this.maxBytesPerSecond = Math.max(this.minBytesPerSecond, maxBytesPerSecond);
+        this.decreaseFactor = Math.min(Math.max(decreaseFactor, 0.05), 0.95);
+        this.increaseFraction = Math.max(0, increaseFraction);
+        this.increaseIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, increaseIntervalMs));
+        this.decreaseCooldownNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, decreaseCooldownMs));
+        this.burstNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, burstMs));
+        this.rowsPerSecond = clamp(initialRowsPerSecond, this.minRowsPerSecond, this.maxRowsPerSecond);
+        this.bytesPerSecond = clamp(initialBytesPerSecond, this.minBytesPerSecond, this.maxBytesPerSecond);
+
+        log.info("Initialized adaptive throttler (enabled: {}) at {} rows/s and {} bytes/s",
+                enabled, (long) rowsPerSecond, (long) bytesPerSecond);
+    }
+
+    /**
+     * Waits until the request fits the allowed rates
+     * 
+     * @param rows Rows in the request
+     * @param bytes Estimated request size
+     */
+    public void acquire(int rows, long bytes) throws InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        long waitNanos = reserve(rows, bytes);
+        if (waitNanos > 0) {
+            pacedRequests.incrementAndGet();
+            pacedNanos.addAndGet(waitNanos);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Books the request on both buckets; up to burst-ms of unused capacity may be spent at once
+     * 
+     * @return How long the caller has to wait before sending
+     */
+    private synchronized long reserve(int rows, long bytes) {
+        long now = System.nanoTime();
+        rowsFreeAt = Math.max(rowsFreeAt, now - burstNanos);
+        bytesFreeAt = Math.max(bytesFreeAt, now - burstNanos);
+        long start = Math.max(rowsFreeAt, bytesFreeAt);
+        rowsFreeAt = Math.max(rowsFreeAt, start) + (long) (rows * 1e9 / rowsPerSecond);
+        bytesFreeAt = Math.max(bytesFreeAt, start) + (long) (bytes * 1e9 / bytesPerSecond);
+        return start - now;
+    }
+
+    /**
+     * Additive increase, at most once per increase interval
+     */
+    public synchronized void onSuccess() {
+        long now = System.nanoTime();
+        if (!enabled || now - lastIncreaseAt < increaseIntervalNanos) {
+            return;
+        }
+        lastIncreaseAt = now;
+        double rows = Math.min(maxRowsPerSecond, rowsPerSecond + maxRowsPerSecond * increaseFraction);
+        double bytes = Math.min(maxBytesPerSecond, bytesPerSecond + maxBytesPerSecond * increaseFraction);
+        if (rows != rowsPerSecond || bytes != bytesPerSecond) {
+            rowsPerSecond = rows;
+            bytesPerSecond = bytes;
+            increases.incrementAndGet();
+        }
+    }
+
+    /**
+     * Multiplicative decrease if the error is a quota signal
+     * 
+     * @return true if the error was a quota signal
+     */
+    public boolean onError(Throwable error) {
+        if (!isThrottleSignal(error)) {
+            return false;
+        }
+        throttled();
+        return true;
+    }
+
+    /**
+     * Multiplicative decrease if any of the insertAll row errors is a quota signal
+     */
+    public boolean onErrors(Collection<BigQueryError> errors) {
+        for (BigQueryError error : errors) {
+            if (error != null && THROTTLE_REASONS.contains(error.getReason())) {
+                throttled();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void throttled() {
+        throttleSignals.incrementAndGet();
+        long now = System.nanoTime();
+        if (!enabled || now < decreaseAllowedAt) {
+            return;
+        }
+        // The signals of requests that were already on the wire count as one decrease
+        long jitter = decreaseCooldownNanos > 0 ? ThreadLocalRandom.current().nextLong(decreaseCooldownNanos / 2 + 1) : 0;
+        decreaseAllowedAt = now + decreaseCooldownNanos + jitter;
+        lastIncreaseAt = decreaseAllowedAt;
+        rowsPerSecond = Math.max(minRowsPerSecond, rowsPerSecond * decreaseFactor);
+        bytesPerSecond = Math.max(minBytesPerSecond, bytesPerSecond * decreaseFactor);
+        decreases.incrementAndGet();
+        log.warn("BigQuery quota signal, throttling to {} rows/s and {} bytes/s", (long) rowsPerSecond, (long) bytesPerSecond);
+    }
+
+    private static boolean isThrottleSignal(Throwable error) {
+        for (Throwable current = error; current != null; current = current.getCause()) {
+            if (current instanceof ApiException) {
+                return ((ApiException) current).getStatusCode().getCode() == StatusCode.Code.RESOURCE_EXHAUSTED;
+            }
+            if (current instanceof BigQueryException) {
+                BigQueryException exception = (BigQueryException) current;
+                return exception.getCode() == 429
+                        || (exception.getError() != null && THROTTLE_REASONS.contains(exception.getError().getReason()));
+            }
+            if (Status.fromThrowable(current).getCode() == Status.Code.RESOURCE_EXHAUSTED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double clamp(double value, double min, double max) {
+        return Math.min(max, Math.max(min, value));
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "throttle";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        synchronized (this) {
+            metrics.put("enabled", enabled);
+            metrics.put("allowedRowsPerSecond", (long) rowsPerSecond);
+            metrics.put("allowedBytesPerSecond", (long) bytesPerSecond);
+            metrics.put("backlogMs", TimeUnit.NANOSECONDS.toMillis(Math.max(0, Math.max(rowsFreeAt, bytesFreeAt) - System.nanoTime())));
+        }
+        metrics.put("throttleSignals", throttleSignals.get());
+        metrics.put("decreases", decreases.get());
+        metrics.put("increases", increases.get());
+        metrics.put("pacedRequests", pacedRequests.get());
+        metrics.put("pacedMs", TimeUnit.NANOSECONDS.toMillis(pacedNanos.get()));
+        return metrics;
+    }
+}
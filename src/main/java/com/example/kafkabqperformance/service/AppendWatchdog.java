@@ -0,0 +1,258 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Deadlines, stall detection and latency tracking shared by both BigQuery sinks
+ *
+ * <p>Every append and insertAll request gets a deadline on the watchdog's timer, after which the
+ * sink gives up on the response and retries the rows, so one stuck request cannot hold a flush
+ * thread or an in-flight window slot. Waits that deadlines do not cover (a full window, the
+ * throttler, a flush waiting for its appends) are registered as watches; a watch that lasts
+ * longer than the stall timeout is reported once, with the stack of the waiting thread.</p>
+ *
+ * <p>Request latencies are kept per sink in a window of recent samples. When hedging is enabled,
+ * a request still running after the p99 of that window is sent a second time; this is only done
+ * where the duplicate is dropped by BigQuery (insertAll rows carry an insertId).</p>
+ */
+@Component
+@Slf4j
+public class AppendWatchdog implements MetricsSource {
+
+    private static final int LATENCY_SAMPLES = 1024;
+    private static final int PERCENTILE_REFRESH_SAMPLES = 64;
+    private static final int STACK_FRAMES = 12;
+
+    private final long deadlineMs;
+    private final long flushTimeoutMs;
+    private final long stallTimeoutNanos;
+    private final boolean hedgeEnabled;
+    private final long hedgeMinDelayMs;
+    private final int hedgeMinSamples;
+
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "append-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+    private final Map<String, SinkStats> sinks = new ConcurrentHashMap<>();
+    private final AtomicLong stalls = new AtomicLong(0);
+
+    public AppendWatchdog(
+            @Value("${bigquery.append.deadline-ms:30000}") long deadlineMs,
+            @Value("${bigquery.append.flush-timeout-ms:120000}") long flushTimeoutMs,
+            @Value("${bigquery.append.stall-timeout-ms:60000}") long stallTimeoutMs,
+            @Value("${bigquery.append.watchdog-interval-ms:5000}") long checkIntervalMs,
+            @Value("${bigquery.append.hedge.enabled:false}") boolean hedgeEnabled,
+            @Value("${bigquery.append.hedge.min-delay-ms:250}") long hedgeMinDelayMs,
+            @Value("${bigquery.append.hedge.min-samples:100}") int hedgeMinSamples) {
+        this.deadlineMs = Math.max(1, deadlineMs);
+        this.flushTimeoutMs = Math.max(this.deadlineMs, flushTimeoutMs);
+        this.stallTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, stallTimeoutMs));
+        this.hedgeEnabled = hedgeEnabled;
+        this.hedgeMinDelayMs = Math.max(1, hedgeMinDelayMs);
+        this.hedgeMinSamples = Math.max(1, Math.min(hedgeMinSamples, LATENCY_SAMPLES));
+
+        long interval = Math.max(100, checkIntervalMs);
+        timer.scheduleWithFixedDelay(this::checkStalls, interval, interval, TimeUnit.MILLISECONDS);
+        log.info("Initialized append watchdog with {}ms deadlines, {}ms stall timeout, hedging: {}",
+                this.deadlineMs, stallTimeoutMs, hedgeEnabled);
+    }
+
+    /**
+     * @return how long a single append or insertAll request may run before it is abandoned
+     */
+    long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /**
+     * @return how long a synchronous flush waits for its appends, including their retries
+     */
+    long getFlushTimeoutMs() {
+        return flushTimeoutMs;
+    }
+
+    /**
+     * Runs the task once the request deadline has passed, unless the returned future is cancelled first
+     */
+    ScheduledFuture<?> scheduleDeadline(Runnable task) {
+        try {
+            return timer.schedule(task, deadlineMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, requests are no longer watched
+            return null;
+        }
+    }
+
+    /**
+     * Registers a wait of the current thread, reported as a stall if it is not closed within the stall timeout
+     *
+     * @param sink Sink the thread works for
+     * @param activity What the thread is waiting for, for the log
+     */
+    Watch watch(String sink, String activity) {
+        Watch watch = new Watch(sink, activity, Thread.currentThread());
+        watches.add(watch);
+        return watch;
+    }
+
+    void recordLatency(String sink, long nanos) {
+        stats(sink).record(nanos);
+    }
+
+    void onDeadlineExceeded(String sink) {
+        stats(sink).deadlinesExceeded.incrementAndGet();
+    }
+
+    void onHedge(String sink, boolean won) {
+        SinkStats stats = stats(sink);
+        stats.hedges.incrementAndGet();
+        if (won) {
+            stats.hedgeWins.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return delay after which a still running request of the sink is hedged,
+     *         or -1 when hedging is off or too few latencies have been recorded yet
+     */
+    long hedgeDelayMs(String sink) {
+        if (!hedgeEnabled) {
+            return -1;
+        }
+        SinkStats stats = stats(sink);
+        if (stats.sampleCount() < hedgeMinSamples) {
+            return -1;
+        }
+        long delay = Math.max(hedgeMinDelayMs, TimeUnit.NANOSECONDS.toMillis(stats.p99Nanos));
+        return delay < deadlineMs ? delay : -1;
+    }
+
+    private SinkStats stats(String sink) {
+        return sinks.computeIfAbsent(sink, ignored -> new SinkStats());
+    }
+
+    private void checkStalls() {
+        long now = System.nanoTime();
+        for (Watch watch : watches) {
+            long waitedNanos = now - watch.startNanos;
+            if (waitedNanos < stallTimeoutNanos || watch.reported) {
+                continue;
+            }
+            watch.reported = true;
+            stalls.incrementAndGet();
+            stats(watch.sink).stalls.incrementAndGet();
+            String stack = Arrays.stream(watch.thread.getStackTrace())
+                    .limit(STACK_FRAMES)
+                    .map(frame -> "\n\tat " + frame)
+                    .collect(Collectors.joining());
+            log.warn("Thread {} of sink {} has been {} for {} ms{}", watch.thread.getName(), watch.sink,
+                    watch.activity, TimeUnit.NANOSECONDS.toMillis(waitedNanos), stack);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "watchdog";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("deadlineMs", deadlineMs);
+        metrics.put("hedgeEnabled", hedgeEnabled);
+        metrics.put("activeWatches", watches.size());
+        metrics.put("stalls", stalls.get());
+        sinks.forEach((sink, stats) -> metrics.put(sink, stats.getMetrics()));
+        return metrics;
+    }
+
+    /**
+     * A registered wait; close it when the wait is over
+     */
+    final class Watch implements AutoCloseable {
+        private final String sink;
+        private final String activity;
+        private final Thread thread;
+        private final long startNanos = System.nanoTime();
+        private volatile boolean reported;
+
+        private Watch(String sink, String activity, Thread thread) {
+            this.sink = sink;
+            this.activity = activity;
+            this.thread = thread;
+        }
+
+        @Override
+        public void close() {
+            watches.remove(this);
+            if (reported) {
+                log.info("Thread {} of sink {} is no longer {} after {} ms", thread.getName(), sink, activity,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            }
+        }
+    }
+
+    /**
+     * Recent latencies of one sink in a ring buffer, with the p99 recomputed every few samples
+     */
+    private static final class SinkStats {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private long recorded;
+        private volatile long p99Nanos;
+        private final AtomicLong deadlinesExceeded = new AtomicLong(0);
+        private final AtomicLong hedges = new AtomicLong(0);
+        private final AtomicLong hedgeWins = new AtomicLong(0);
+        private final AtomicLong stalls = new AtomicLong(0);
+
+        private synchronized void record(long nanos) {
+            samples[(int) (recorded % LATENCY_SAMPLES)] = nanos;
+            recorded++;
+            if (recorded % PERCENTILE_REFRESH_SAMPLES == 0 || recorded < PERCENTILE_REFRESH_SAMPLES) {
+                int count = (int) Math.min(recorded, LATENCY_SAMPLES);
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                p99Nanos = sorted[Math.min(count - 1, (int) Math.ceil(count * 0.99) - 1)];
+            }
+        }
+
+        private synchronized int sampleCount() {
+            return (int) Math.min(recorded, LATENCY_SAMPLES);
+        }
+
+        private Map<String, Object> getMetrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("latencySamples", sampleCount());
+            metrics.put("p99LatencyMs", p99Nanos / 1_000_000.0);
+            metrics.put("deadlinesExceeded", deadlinesExceeded.get());
+            metrics.put("hedges", hedges.get());
+            metrics.put("hedgeWins", hedgeWins.get());
+            metrics.put("stalls", stalls.get());
+            return metrics;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.consumer.KafkaMessageDecoder;
+import com.example.kafkabqperformance.model.BackfillRequest;
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsRequest;
+import com.google.cloud.bigquery.storage.v1.BatchCommitWriteStreamsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.FinalizeWriteStreamResponse;
+import com.google.cloud.bigquery.storage.v1.StreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.common.util.concurrent.MoreExecutors;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Replays a range of a topic into BigQuery through application-created PENDING write streams
+ * 
+ * <p>A backfill runs next to live ingest without sharing its consumer group or its
+ * {@code _default} stream. The partitions of the range are spread over parallel workers;
+ * each worker has its own consumer, seeks its partitions to the start of the range and
+ * appends to its own pending stream with explicit offsets. Rows in pending streams stay
+ * invisible until all streams have been finalized and committed together with
+ * BatchCommitWriteStreams, so a backfill that fails or is cancelled leaves nothing behind.</p>
+ */
+@Service
+@Slf4j
+public class BackfillService implements MetricsSource {
+
+    public enum State { RUNNING, COMMITTED, FAILED, CANCELLED }
+
+    private final BigQuery bigQuery;
+    private final BigQueryWriteClient writeClient;
+    private final ConsumerFactory<String, byte[]> consumerFactory;
+    private final KafkaMessageDecoder decoder;
+    private final String projectId;
+    private final String datasetName;
+    private final String tableName;
+    private final String defaultTopic;
+    private final String groupId;
+    private final int defaultParallelism;
+    private final int maxAppendRows;
+    private final int maxInflightRequests;
+    private final long maxInflightBytes;
+
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "backfill-coordinator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<BackfillJob> currentJob = new AtomicReference<>();
+
+    public BackfillService(
+            BigQuery bigQuery,
+            BigQueryWriteClient writeClient,
+            ConsumerFactory<String, byte[]> consumerFactory,
+            KafkaMessageDecoder decoder,
+            @Value("${bigquery.project-id}") String projectId,
+            @Value("${bigquery.dataset}") String datasetName,
+            @Value("${bigquery.table}") String tableName,
+            @Value("${kafka.topic}") String defaultTopic,
+            @Value("${kafka.backfill.group-id:${spring.kafka.consumer.group-id}-backfill}") String groupId,
+            @Value("${kafka.backfill.parallelism:4}") int defaultParallelism,
+            @Value("${bigquery.write-api.max-append-rows:500}") int maxAppendRows,
+            @Value("${bigquery.write-api.max-inflight-requests:8}") int maxInflightRequests,
+            @Value("${bigquery.write-api.max-inflight-bytes:33554432}") long maxInflightBytes) {
+        this.bigQuery = bigQuery;
+        this.writeClient = writeClient;
+        this.consumerFactory = consumerFactory;
+        this.decoder = decoder;
+        this.projectId = projectId;
+        this.datasetName = datasetName;
+        this.tableName = tableName;
+        this.defaultTopic = defaultTopic;
+        this.groupId = groupId;
+        this.defaultParallelism = Math.max(1, defaultParallelism);
+        this.maxAppendRows = Math.max(1, maxAppendRows);
+        this.maxInflightRequests = maxInflightRequests;
+        this.maxInflightBytes = maxInflightBytes;
+    }
+
+    /**
+     * Starts a backfill in the background
+     * 
+     * @throws IllegalStateException if another backfill is still running
+     * @throws IllegalArgumentException if the request has no start
+     */
+    public Map<String, Object> start(BackfillRequest request) {
+        if (request.getFromTimestamp() == null && request.getFromOffset() == null) {
+            throw new IllegalArgumentException("A backfill needs fromTimestamp or fromOffset");
+        }
+        String topic = request.getTopic() != null ? request.getTopic() : defaultTopic;
+        int parallelism = request.getParallelism() != null ? Math.max(1, request.getParallelism()) : defaultParallelism;
+
+        BackfillJob job = new BackfillJob(topic, parallelism);
+        BackfillJob running = currentJob.get();
+        if ((running != null && running.state == State.RUNNING) || !currentJob.compareAndSet(running, job)) {
+            throw new IllegalStateException("A backfill is already running");
+        }
+
+        coordinator.submit(() -> run(job, request));
+        log.info("Started backfill of {} with {} streams", topic, parallelism);
+        return job.toStatus();
+    }
+
+    /**
+     * Cancels the running backfill; its streams are never committed
+     */
+    public Map<String, Object> cancel() {
+        BackfillJob job = currentJob.get();
+        if (job != null && job.state == State.RUNNING) {
+            job.cancelled = true;
+        }
+        return getStatus();
+    }
+
+    public Map<String, Object> getStatus() {
+        BackfillJob job = currentJob.get();
+        return job != null ? job.toStatus() : Collections.singletonMap("state", "IDLE");
+    }
+
+    private void run(BackfillJob job, BackfillRequest request) {
+        ExecutorService workers = Executors.newFixedThreadPool(job.parallelism);
+        try {
+            ProtoRowEncoder encoder = createEncoder();
+            List<List<PartitionRange>> assignments = planRanges(job, request);
+
+            List<Future<String>> streams = new ArrayList<>();
+            for (List<PartitionRange> ranges : assignments) {
+                streams.add(workers.submit(() -> replay(job, ranges, encoder)));
+            }
+            List<String> streamNames = new ArrayList<>();
+            for (Future<String> stream : streams) {
+                streamNames.add(stream.get());
+            }
+
+            if (job.cancelled) {
+                job.finish(State.CANCELLED, null);
+                log.warn("Backfill of {} cancelled, {} streams left uncommitted", job.topic, streamNames.size());
+                return;
+            }
+            commit(job, streamNames);
+        } catch (Exception e) {
+            log.error("Backfill of {} failed, no rows were committed", job.topic, e);
+            job.cancelled = true;
+            job.finish(State.FAILED, e.getMessage());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private ProtoRowEncoder createEncoder() throws Exception {
+        Table table = bigQuery.getTable(TableId.of(datasetName, tableName));
+        if (table == null) {
+            throw new IOException("Table not found: " + datasetName + "." + tableName);
+        }
+        return SchemaTranslator.encoderFor(datasetName + "." + tableName,
+                SchemaTranslator.toTableSchema(table.getDefinition().getSchema()));
+    }
+
+    /**
+     * Resolves the start and end offset of every partition and spreads the partitions over the workers
+     */
+    private List<List<PartitionRange>> planRanges(BackfillJob job, BackfillRequest request) {
+        List<List<PartitionRange>> assignments = new ArrayList<>();
+        try (Consumer<String, byte[]> consumer = createConsumer("planner")) {
+            List<TopicPartition> partitions = new ArrayList<>();
+            for (PartitionInfo info : consumer.partitionsFor(job.topic, Duration.ofSeconds(30))) {
+                partitions.add(new TopicPartition(info.topic(), info.partition()));
+            }
+
+            Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+            Map<TopicPartition, Long> starts = resolveOffsets(consumer, partitions, request.getFromTimestamp(),
+                    request.getFromOffset(), endOffsets);
+            Map<TopicPartition, Long> ends = resolveOffsets(consumer, partitions, request.getToTimestamp(),
+                    request.getToOffset(), endOffsets);
+
+            for (int i = 0; i < Math.min(job.parallelism, partitions.size()); i++) {
+                assignments.add(new ArrayList<>());
+            }
+            int next = 0;
+            for (TopicPartition partition : partitions) {
+                long start = starts.get(partition);
+                long end = Math.min(ends.get(partition), endOffsets.get(partition));
+                if (start < end) {
+                    assignments.get(next++ % assignments.size()).add(new PartitionRange(partition, start, end));
+                    job.plannedRecords.addAndGet(end - start);
+                }
+            }
+        }
+        assignments.removeIf(List::isEmpty);
+        log.info("Backfill of {} covers {} records on {} workers", job.topic, job.plannedRecords.get(), assignments.size());
+        return assignments;
+    }
+
+    private static Map<TopicPartition, Long> resolveOffsets(Consumer<String, byte[]> consumer, List<TopicPartition> partitions,
+                                                            Instant timestamp, Long offset, Map<TopicPartition, Long> endOffsets) {
+        Map<TopicPartition, Long> offsets = new HashMap<>();
+        if (timestamp != null) {
+            Map<TopicPartition, Long> query = new HashMap<>();
+            partitions.forEach(partition -> query.put(partition, timestamp.toEpochMilli()));
+            Map<TopicPartition, OffsetAndTimestamp> found = consumer.offsetsForTimes(query);
+            for (TopicPartition partition : partitions) {
+                OffsetAndTimestamp match = found.get(partition);
+                // No record at or after the timestamp means the range ends at the current end
+                offsets.put(partition, match != null ? match.offset() : endOffsets.get(partition));
+            }
+        } else {
+            partitions.forEach(partition -> offsets.put(partition, offset != null ? offset : endOffsets.get(partition)));
+        }
+        return offsets;
+    }
+
+    /**
+     * Copies the ranges of one worker into a new pending stream
+     * 
+     * @return Name of the pending stream
+     */
+    private String replay(BackfillJob job, List<PartitionRange> ranges, ProtoRowEncoder encoder) throws Exception {
+        WriteStream stream = writeClient.createWriteStream(CreateWriteStreamRequest.newBuilder()
+                .setParent(TableName.of(projectId, datasetName, tableName).toString())
+                .setWriteStream(WriteStream.newBuilder().setType(WriteStream.Type.PENDING).build())
+                .build());
+        InFlightWindow window = new InFlightWindow(maxInflightRequests, maxInflightBytes);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<ApiFuture<AppendRowsResponse>> pending = new ArrayList<>();
+        long streamOffset = 0;
+
+        try (StreamWriter writer = StreamWriter.newBuilder(stream.getName(), writeClient)
+                .setWriterSchema(encoder.getProtoSchema())
+                .build();
+             Consumer<String, byte[]> consumer = createConsumer(String.valueOf(ranges.get(0).partition.partition()))) {
+
+            Map<TopicPartition, Long> remaining = new HashMap<>();
+            List<TopicPartition> partitions = new ArrayList<>();
+            for (PartitionRange range : ranges) {
+                partitions.add(range.partition);
+                remaining.put(range.partition, range.end);
+            }
+            consumer.assign(partitions);
+            ranges.forEach(range -> consumer.seek(range.partition, range.start));
+
+            while (!remaining.isEmpty() && !job.cancelled) {
+                ConsumerRecords<String, byte[]> records = consumer.poll(Duration.ofMillis(500));
+                List<KafkaMessage> batch = new ArrayList<>(records.count());
+                for (TopicPartition partition : records.partitions()) {
+                    Long end = remaining.get(partition);
+                    if (end == null) {
+                        continue;
+                    }
+                    for (ConsumerRecord<String, byte[]> record : records.records(partition)) {
+                        if (record.offset() >= end) {
+                            break;
+                        }
+                        job.readRecords.incrementAndGet();
+                        if (record.value() == null) {
+                            continue;
+                        }
+                        try {
+                            batch.add(decoder.decode(record.value()));
+                        } catch (IOException | RuntimeException e) {
+                            // Same as the live listener: bad numbers or dates in one record must not fail the backfill
+                            job.skippedRecords.incrementAndGet();
+                            log.warn("Skipping undecodable record {}-{}@{}", partition.topic(), partition.partition(), record.offset());
+                        }
+                    }
+                }
+                for (TopicPartition partition : new ArrayList<>(remaining.keySet())) {
+                    if (consumer.position(partition) >= remaining.get(partition)) {
+                        remaining.remove(partition);
+                        consumer.pause(Collections.singleton(partition));
+                    }
+                }
+
+                for (int i = 0; i < batch.size(); i += maxAppendRows) {
+                    List<KafkaMessage> chunk = batch.subList(i, Math.min(i + maxAppendRows, batch.size()));
+                    pending.add(append(writer, encoder, window, chunk, streamOffset, job, failure));
+                    streamOffset += chunk.size();
+                }
+                pending.removeIf(Future::isDone);
+                if (failure.get() != null) {
+                    throw new IOException("Append to " + stream.getName() + " failed", failure.get());
+                }
+            }
+
+            ApiFutures.allAsList(pending).get();
+        }
+
+        if (failure.get() != null) {
+            throw new IOException("Append to " + stream.getName() + " failed", failure.get());
+        }
+        log.info("Backfill worker wrote {} rows to {}", streamOffset, stream.getName());
+        return stream.getName();
+    }
+
+    /**
+     * Appends one chunk at an explicit stream offset, so a resent append can never be written twice
+     */
+    private ApiFuture<AppendRowsResponse> append(StreamWriter writer, ProtoRowEncoder encoder, InFlightWindow window,
+                                                 List<KafkaMessage> chunk, long offset, BackfillJob job,
+                                                 AtomicReference<Throwable> failure) throws InterruptedException {
+        long bytes = chunk.stream().mapToLong(message -> 128L + (message.getRawPayload() != null ? message.getRawPayload().length : 0)).sum();
+        window.acquire(bytes);
+        ApiFuture<AppendRowsResponse> future = writer.append(encoder.encode(chunk), offset);
+        ApiFutures.addCallback(future, new ApiFutureCallback<AppendRowsResponse>() {
+            @Override
+            public void onSuccess(AppendRowsResponse response) {
+                window.release(bytes);
+                if (response.hasError()) {
+                    failure.compareAndSet(null, new IOException(response.getError().getMessage()));
+                    return;
+                }
+                job.appendedRows.addAndGet(chunk.size());
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                window.release(bytes);
+                failure.compareAndSet(null, error);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private void commit(BackfillJob job, List<String> streamNames) throws IOException {
+        if (streamNames.isEmpty()) {
+            // Nothing in the requested range; BatchCommitWriteStreams rejects an empty stream list
+            job.committedRows.set(0);
+            job.finish(State.COMMITTED, null);
+            log.info("Backfill of {} found no records to copy, nothing to commit", job.topic);
+            return;
+        }
+
+        long rows = 0;
+        for (String streamName : streamNames) {
+            FinalizeWriteStreamResponse finalized = writeClient.finalizeWriteStream(streamName);
+            rows += finalized.getRowCount();
+        }
+
+        BatchCommitWriteStreamsResponse response = writeClient.batchCommitWriteStreams(
+                BatchCommitWriteStreamsRequest.newBuilder()
+                        .setParent(TableName.of(projectId, datasetName, tableName).toString())
+                        .addAllWriteStreams(streamNames)
+                        .build());
+        if (!response.hasCommitTime()) {
+            throw new IOException("Commit of " + streamNames.size() + " streams failed: " + response.getStreamErrorsList());
+        }
+
+        job.committedRows.set(rows);
+        job.finish(State.COMMITTED, null);
+        log.info("Backfill of {} committed {} rows from {} streams", job.topic, rows, streamNames.size());
+    }
+
+    private Consumer<String, byte[]> createConsumer(String suffix) {
+        Properties overrides = new Properties();
+        overrides.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        return consumerFactory.createConsumer(groupId, "backfill-", suffix, overrides);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cancel();
+        coordinator.shutdownNow();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "backfill";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        return getStatus();
+    }
+
+    private static final class PartitionRange {
+        private final TopicPartition partition;
+        private final long start;
+        private final long end;
+
+        private PartitionRange(TopicPartition partition, long start, long end) {
+            this.partition = partition;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final class BackfillJob {
+        private final String topic;
+        private final int parallelism;
+        private final Instant startedAt = Instant.now();
+        private volatile Instant finishedAt;
+        private volatile State state = State.RUNNING;
+        private volatile boolean cancelled;
+        private volatile String error;
+        private final AtomicLong plannedRecords = new AtomicLong(0);
+        private final AtomicLong readRecords = new AtomicLong(0);
+        private final AtomicLong skippedRecords = new AtomicLong(0);
+        private final AtomicLong appendedRows = new AtomicLong(0);
+        private final AtomicLong committedRows = new AtomicLong(0);
+
+        private BackfillJob(String topic, int parallelism) {
+            this.topic = topic;
+            this.parallelism = parallelism;
+        }
+
+        private void finish(State finalState, String finalError) {
+            error = finalError;
+            finishedAt = Instant.now();
+            state = finalState;
+        }
+
+        private Map<String, Object> toStatus() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("state", state.name());
+            status.put("topic", topic);
+            status.put("streams", parallelism);
+            status.put("startedAt", startedAt.toString());
+            status.put("finishedAt", finishedAt != null ? finishedAt.toString() : null);
+            status.put("plannedRecords", plannedRecords.get());
+            status.put("readRecords", readRecords.get());
+            status.put("skippedRecords", skippedRecords.get());
+            status.put("appendedRows", appendedRows.get());
+            status.put("committedRows", committedRows.get());
+            status.put("error", error);
+            return status;
+        }
+    }
+}
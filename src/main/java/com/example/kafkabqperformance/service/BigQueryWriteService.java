@@ -3,6 +3,7 @@ package com.example.kafkabqperformance.service;
 import com.example.kafkabqperformance.model.KafkaMessage;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface BigQueryWriteService {
     
@@ -20,4 +21,26 @@ public interface BigQueryWriteService {
      * @return Number of successfully flushed records
      */
     int flush();
+    
+    /**
+     * Starts flushing pending writes without waiting for BigQuery to acknowledge them
+     * 
+     * @return Future completed once the rows buffered before this call have been written or have failed,
+     *         with the number of successfully flushed records
+     */
+    default CompletableFuture<Integer> flushAsync() {
+        return CompletableFuture.completedFuture(flush());
+    }
+    
+    /**
+     * Returns the write service instance that serves the given pipeline shard.
+     * Implementations with internal buffers return an instance with its own buffer and writer,
+     * so shards do not contend; the default shares this instance across all shards.
+     * 
+     * @param shard Shard index (0-based)
+     * @return Write service for the shard
+     */
+    default BigQueryWriteService forShard(int shard) {
+        return this;
+    }
 }
@@ -0,0 +1,394 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.Table;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.CreateWriteStreamRequest;
+import com.google.cloud.bigquery.storage.v1.Exceptions;
+import com.google.cloud.bigquery.storage.v1.StreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableName;
+import com.google.cloud.bigquery.storage.v1.WriteStream;
+import com.google.common.util.concurrent.MoreExecutors;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Storage Write API side of exactly-once delivery: one COMMITTED stream per Kafka partition
+ * 
+ * <p>Every row gets an explicit stream offset, assigned in Kafka offset order. The Kafka
+ * consumer commits a {@link Checkpoint} (the next Kafka offset together with the stream name
+ * and the matching stream offset) only once the appends up to it have been acknowledged.
+ * After a restart or rebalance the partition resumes on the same stream at the checkpoint's
+ * stream offset, so redelivered records are appended at the offsets they were written at
+ * before and the server rejects them with ALREADY_EXISTS instead of storing duplicates.</p>
+ * 
+ * <p>Row offsets are only reproducible if the same records always yield the same rows, so
+ * nothing non-deterministic (like the duplicate filter) may drop rows on this path.</p>
+ */
+@Component
+@Slf4j
+public class CommittedStreamWriter implements MetricsSource {
+
+    private final BigQuery bigQuery;
+    private final BigQueryWriteClient writeClient;
+    private final AdaptiveThrottler throttler;
+    private final String projectId;
+    private final String datasetName;
+    private final String tableName;
+    private final boolean enabled;
+    private final int maxAppendRows;
+    private final int maxInflightRequests;
+    private final long maxInflightBytes;
+
+    private volatile ProtoRowEncoder encoder;
+
+    private final AtomicLong appendedRows = new AtomicLong(0);
+    private final AtomicLong duplicateRows = new AtomicLong(0);
+    private final AtomicLong rewinds = new AtomicLong(0);
+
+    public CommittedStreamWriter(
+            BigQuery bigQuery,
+            BigQueryWriteClient writeClient,
+            AdaptiveThrottler throttler,
+            @Value("${bigquery.project-id}") String projectId,
+            @Value("${bigquery.dataset}") String datasetName,
+            @Value("${bigquery.table}") String tableName,
+            @Value("${bigquery.write-api.exactly-once.enabled:false}") boolean enabled,
+            @Value("${bigquery.write-api.max-append-rows:500}") int maxAppendRows,
+            @Value("${bigquery.write-api.max-inflight-requests:8}") int maxInflightRequests,
+            @Value("${bigquery.write-api.max-inflight-bytes:33554432}") long maxInflightBytes) {
+        this.bigQuery = bigQuery;
+        this.writeClient = writeClient;
+        this.throttler = throttler;
+        this.projectId = projectId;
+        this.datasetName = datasetName;
+        this.tableName = tableName;
+        this.enabled = enabled;
+        this.maxAppendRows = Math.max(1, maxAppendRows);
+        this.maxInflightRequests = maxInflightRequests;
+        this.maxInflightBytes = maxInflightBytes;
+
+        if (enabled) {
+            log.info("Exactly-once mode enabled: partitions are written to COMMITTED streams with explicit offsets");
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Opens the stream of a newly assigned partition
+     * 
+     * @param partition Kafka partition, used for logging
+     * @param checkpoint Last committed checkpoint of the partition, or null if it has none
+     * @param kafkaOffset Committed Kafka offset, where consumption resumes
+     */
+    public PartitionStream open(int partition, Checkpoint checkpoint, long kafkaOffset) throws IOException {
+        ProtoRowEncoder rowEncoder = encoder();
+        String streamName = null;
+        long streamOffset = 0;
+        if (checkpoint != null && isAppendable(checkpoint.streamName)) {
+            streamName = checkpoint.streamName;
+            streamOffset = checkpoint.streamOffset;
+        } else if (checkpoint != null) {
+            log.warn("Stream {} of partition {} is gone, rows appended after the last checkpoint may be written twice",
+                    checkpoint.streamName, partition);
+        }
+        if (streamName == null) {
+            WriteStream stream = writeClient.createWriteStream(CreateWriteStreamRequest.newBuilder()
+                    .setParent(TableName.of(projectId, datasetName, tableName).toString())
+                    .setWriteStream(WriteStream.newBuilder().setType(WriteStream.Type.COMMITTED).build())
+                    .build());
+            streamName = stream.getName();
+        }
+
+        log.info("Partition {} writes to {} from stream offset {} (Kafka offset {})", partition, streamName, streamOffset, kafkaOffset);
+        return new PartitionStream(partition, rowEncoder, new Checkpoint(kafkaOffset, streamName, streamOffset));
+    }
+
+    StreamWriter createWriter(String streamName, ProtoRowEncoder rowEncoder) throws IOException {
+        return StreamWriter.newBuilder(streamName, writeClient)
+                .setWriterSchema(rowEncoder.getProtoSchema())
+                .build();
+    }
+
+    boolean isAppendable(String streamName) {
+        try {
+            WriteStream stream = writeClient.getWriteStream(streamName);
+            return stream.getType() == WriteStream.Type.COMMITTED && !stream.hasCommitTime();
+        } catch (RuntimeException e) {
+            log.warn("Unable to look up stream {}: {}", streamName, e.getMessage());
+            return false;
+        }
+    }
+
+    ProtoRowEncoder encoder() throws IOException {
+        ProtoRowEncoder current = encoder;
+        if (current == null) {
+            synchronized (this) {
+                if (encoder == null) {
+                    Table table = bigQuery.getTable(TableId.of(datasetName, tableName));
+                    if (table == null) {
+                        throw new IOException("Table not found: " + datasetName + "." + tableName);
+                    }
+                    try {
+                        encoder = SchemaTranslator.encoderFor(datasetName + "." + tableName,
+                                SchemaTranslator.toTableSchema(table.getDefinition().getSchema()));
+                    } catch (Exception e) {
+                        throw new IOException("Unable to build the row encoder for " + tableName, e);
+                    }
+                }
+                current = encoder;
+            }
+        }
+        return current;
+    }
+
+    private static boolean isAlreadyExists(Throwable error) {
+        return error instanceof Exceptions.OffsetAlreadyExists
+                || Status.fromThrowable(error).getCode() == Status.Code.ALREADY_EXISTS;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "exactlyOnce";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("appendedRows", appendedRows.get());
+        metrics.put("duplicateRowsRejected", duplicateRows.get());
+        metrics.put("rewinds", rewinds.get());
+        return metrics;
+    }
+
+    /**
+     * Position of a partition that is safe to commit to Kafka: every row before the Kafka offset
+     * is stored in the stream below the stream offset
+     */
+    public static final class Checkpoint {
+        private final long kafkaOffset;
+        private final String streamName;
+        private final long streamOffset;
+
+        public Checkpoint(long kafkaOffset, String streamName, long streamOffset) {
+            this.kafkaOffset = kafkaOffset;
+            this.streamName = streamName;
+            this.streamOffset = streamOffset;
+        }
+
+        public long getKafkaOffset() {
+            return kafkaOffset;
+        }
+
+        /**
+         * @return Kafka commit metadata in the form {@code streamName:streamOffset}
+         */
+        public String toMetadata() {
+            return streamName + ":" + streamOffset;
+        }
+
+        /**
+         * @return the checkpoint stored in Kafka commit metadata, or null if there is none
+         */
+        public static Checkpoint fromMetadata(long kafkaOffset, String metadata) {
+            if (metadata == null) {
+                return null;
+            }
+            int separator = metadata.lastIndexOf(':');
+            if (separator <= 0) {
+                return null;
+            }
+            try {
+                return new Checkpoint(kafkaOffset, metadata.substring(0, separator), Long.parseLong(metadata.substring(separator + 1)));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The COMMITTED stream of one partition; appended to only by the partition's listener thread
+     */
+    public class PartitionStream {
+        private final int partition;
+        private StreamWriter writer;
+        private final ProtoRowEncoder rowEncoder;
+        private final InFlightWindow window = new InFlightWindow(maxInflightRequests, maxInflightBytes);
+        private final AtomicReference<Checkpoint> acknowledged;
+        private long nextStreamOffset;
+        private ApiFuture<AppendRowsResponse> lastAppend;
+
+        /**
+         * After (re)opening, rows up to the end of the stream may already exist. Rows are then sent one per
+         * append, so ALREADY_EXISTS always refers to exactly one row, until the first row is accepted.
+         */
+        private volatile boolean recovering = true;
+        private volatile Throwable failure;
+
+        private PartitionStream(int partition, ProtoRowEncoder rowEncoder, Checkpoint start) throws IOException {
+            this.partition = partition;
+            this.writer = createWriter(start.streamName, rowEncoder);
+            this.rowEncoder = rowEncoder;
+            this.acknowledged = new AtomicReference<>(start);
+            this.nextStreamOffset = start.streamOffset;
+        }
+
+        /**
+         * Appends the rows decoded from a run of records of this partition
+         * 
+         * @param rows Rows in Kafka offset order; may be empty if every record was skipped
+         * @param nextKafkaOffset Offset after the last record the rows were decoded from
+         */
+        public void append(List<KafkaMessage> rows, long nextKafkaOffset) throws InterruptedException {
+            int chunkRows = recovering ? 1 : maxAppendRows;
+            for (int i = 0; i < rows.size(); i += chunkRows) {
+                List<KafkaMessage> chunk = rows.subList(i, Math.min(i + chunkRows, rows.size()));
+                boolean last = i + chunk.size() >= rows.size();
+                send(chunk, last ? nextKafkaOffset : -1);
+            }
+            if (rows.isEmpty()) {
+                advanceAfterPending(nextKafkaOffset);
+            }
+        }
+
+        private void send(List<KafkaMessage> chunk, long nextKafkaOffset) throws InterruptedException {
+            long offset = nextStreamOffset;
+            nextStreamOffset += chunk.size();
+            long bytes = chunk.stream()
+                    .mapToLong(message -> 128L + (message.getRawPayload() != null ? message.getRawPayload().length : 0))
+                    .sum();
+
+            throttler.acquire(chunk.size(), bytes);
+            window.acquire(bytes);
+            ApiFuture<AppendRowsResponse> future = writer.append(rowEncoder.encode(chunk), offset);
+            lastAppend = future;
+            ApiFutures.addCallback(future, new ApiFutureCallback<AppendRowsResponse>() {
+                @Override
+                public void onSuccess(AppendRowsResponse response) {
+                    window.release(bytes);
+                    if (response.hasError()) {
+                        fail(Status.fromCodeValue(response.getError().getCode())
+                                .withDescription(response.getError().getMessage()).asRuntimeException());
+                        return;
+                    }
+                    recovering = false;
+                    throttler.onSuccess();
+                    appendedRows.addAndGet(chunk.size());
+                    acknowledge(nextKafkaOffset, offset + chunk.size());
+                }
+
+                @Override
+                public void onFailure(Throwable error) {
+                    window.release(bytes);
+                    if (isAlreadyExists(error)) {
+                        // Written before the last restart or rebalance
+                        duplicateRows.addAndGet(chunk.size());
+                        acknowledge(nextKafkaOffset, offset + chunk.size());
+                        return;
+                    }
+                    throttler.onError(error);
+                    fail(error);
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        private void advanceAfterPending(long nextKafkaOffset) {
+            ApiFuture<AppendRowsResponse> pending = lastAppend;
+            long streamOffset = nextStreamOffset;
+            if (pending == null || pending.isDone()) {
+                acknowledge(nextKafkaOffset, streamOffset);
+                return;
+            }
+            // Responses arrive in append order, so this runs once every earlier append has been answered
+            pending.addListener(() -> acknowledge(nextKafkaOffset, streamOffset), MoreExecutors.directExecutor());
+        }
+
+        private void acknowledge(long nextKafkaOffset, long streamOffset) {
+            if (nextKafkaOffset < 0 || failure != null) {
+                return;
+            }
+            Checkpoint checkpoint = new Checkpoint(nextKafkaOffset, acknowledged.get().streamName, streamOffset);
+            acknowledged.accumulateAndGet(checkpoint,
+                    (current, next) -> next.kafkaOffset > current.kafkaOffset ? next : current);
+        }
+
+        private void fail(Throwable error) {
+            if (failure == null) {
+                log.error("Append to the stream of partition {} failed, the partition will be rewound: {}",
+                        partition, error.getMessage());
+            }
+            failure = error;
+        }
+
+        /**
+         * @return Latest position whose rows have all been acknowledged
+         */
+        public Checkpoint getAcknowledged() {
+            return acknowledged.get();
+        }
+
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        /**
+         * Waits for outstanding appends, replaces the writer and moves the next stream offset back to the
+         * acknowledged checkpoint; the caller seeks the consumer to the checkpoint's Kafka offset
+         * 
+         * @return The checkpoint to resume from
+         */
+        public Checkpoint rewind(long timeoutMs) throws InterruptedException {
+            awaitPending(timeoutMs);
+            Checkpoint checkpoint = acknowledged.get();
+            try {
+                StreamWriter replacement = createWriter(checkpoint.streamName, rowEncoder);
+                writer.close();
+                writer = replacement;
+            } catch (IOException | RuntimeException e) {
+                // Keep the current writer; if it is broken the next append fails and rewinds again
+                log.warn("Unable to reopen the stream of partition {}: {}", partition, e.getMessage());
+            }
+            nextStreamOffset = checkpoint.streamOffset;
+            lastAppend = null;
+            recovering = true;
+            failure = null;
+            rewinds.incrementAndGet();
+            return checkpoint;
+        }
+
+        /**
+         * Waits until every append sent so far has been answered
+         */
+        public void awaitPending(long timeoutMs) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (window.getRequests() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+
+        public void close() {
+            writer.close();
+        }
+    }
+}
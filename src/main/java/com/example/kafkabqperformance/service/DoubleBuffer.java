@@ -0,0 +1,78 @@
+package com.example.kafkabqperformance.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Staging buffer for rows waiting to be flushed, written by many producer threads at once
+ * 
+ * <p>Producers append to the active half without locking. A flush swaps the halves and
+ * waits only for producers that were already appending to the half it took, so producers
+ * never wait for a flush to finish. Each producer registers on the half it read and then
+ * re-checks that it is still active, which guarantees that no row lands in a half after
+ * it has been drained.</p>
+ */
+class DoubleBuffer<T> {
+
+    private final AtomicReference<Half<T>> active = new AtomicReference<>(new Half<>());
+    private Half<T> spare = new Half<>();
+
+    /**
+     * Appends the items to the active half
+     * 
+     * @return Number of items in the active half after the append
+     */
+    int addAll(Collection<? extends T> items) {
+        while (true) {
+            Half<T> half = active.get();
+            half.writers.incrementAndGet();
+            try {
+                if (active.get() != half) {
+                    // Swapped out by a concurrent drain, append to the new active half instead
+                    continue;
+                }
+                half.items.addAll(items);
+                return half.size.addAndGet(items.size());
+            } finally {
+                half.writers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Swaps the halves and returns everything that was staged in the previously active one
+     */
+    synchronized List<T> drain() {
+        Half<T> full = active.getAndSet(spare);
+        while (full.writers.get() > 0) {
+            Thread.onSpinWait();
+        }
+
+        List<T> drained = new ArrayList<>(full.size.get());
+        T item;
+        while ((item = full.items.poll()) != null) {
+            drained.add(item);
+        }
+        full.size.set(0);
+        spare = full;
+        return drained;
+    }
+
+    int size() {
+        return active.get().size.get();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private static final class Half<T> {
+        private final ConcurrentLinkedQueue<T> items = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger(0);
+        private final AtomicInteger writers = new AtomicInteger(0);
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.kafkabqperformance.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the appends that are outstanding on one stream writer, by request count and by bytes
+ * 
+ * <p>A dispatching thread blocks in {@link #acquire(long)} while the window is full and is
+ * released by the completion callbacks of earlier appends. A single request larger than
+ * the byte limit is still admitted when nothing else is in flight.</p>
+ */
+class InFlightWindow {
+
+    private final int maxRequests;
+    private final long maxBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private int requests;
+    private long bytes;
+
+    private final AtomicLong acquired = new AtomicLong(0);
+    private final AtomicLong blockedAcquires = new AtomicLong(0);
+    private final AtomicLong blockedNanos = new AtomicLong(0);
+
+    InFlightWindow(int maxRequests, long maxBytes) {
+        this.maxRequests = Math.max(1, maxRequests);
+        this.maxBytes = Math.max(1, maxBytes);
+    }
+
+    void acquire(long size) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (isFull(size)) {
+                long start = System.nanoTime();
+                blockedAcquires.incrementAndGet();
+                while (isFull(size)) {
+                    available.await();
+                }
+                blockedNanos.addAndGet(System.nanoTime() - start);
+            }
+            requests++;
+            bytes += size;
+            acquired.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(long size) {
+        lock.lock();
+        try {
+            requests--;
+            bytes -= size;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(long size) {
+        return requests >= maxRequests || (requests > 0 && bytes + size > maxBytes);
+    }
+
+    int getMaxRequests() {
+        return maxRequests;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    int getRequests() {
+        lock.lock();
+        try {
+            return requests;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        lock.lock();
+        try {
+            metrics.put("inFlightRequests", requests);
+            metrics.put("inFlightBytes", bytes);
+        } finally {
+            lock.unlock();
+        }
+        metrics.put("maxInFlightRequests", maxRequests);
+        metrics.put("maxInFlightBytes", maxBytes);
+        metrics.put("appendsDispatched", acquired.get());
+        metrics.put("blockedDispatches", blockedAcquires.get());
+        metrics.put("blockedMs", TimeUnit.NANOSECONDS.toMillis(blockedNanos.get()));
+        return metrics;
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.api.core.ApiFuture;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableSchema;
+import com.google.protobuf.Descriptors;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Appends rows through a {@link JsonStreamWriter}, which converts JSON rows to protobuf client-side
+ */
+class JsonStreamAppender implements StreamAppender {
+
+    private final JsonStreamWriter streamWriter;
+
+    JsonStreamAppender(String streamName, TableSchema tableSchema, BigQueryWriteClient writeClient)
+            throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
+        this.streamWriter = JsonStreamWriter.newBuilder(streamName, tableSchema, writeClient).build();
+    }
+
+    @Override
+    public ApiFuture<AppendRowsResponse> append(List<KafkaMessage> messages)
+            throws IOException, Descriptors.DescriptorValidationException {
+        String now = Instant.now().toString();
+        JSONArray rows = new JSONArray(messages.size());
+        for (KafkaMessage message : messages) {
+            rows.put(toJson(message, now));
+        }
+        return streamWriter.append(rows);
+    }
+
+    /**
+     * Maps a message to a JSON row of the table, shared with the NDJSON files of the load-job sink
+     */
+    static JSONObject toJson(KafkaMessage message, String now) {
+        String submittedDate = message.getTimestamp() != null ? message.getTimestamp().toString() : now;
+        int rxDataId = message.getPriority() != null ? message.getPriority() : 0;
+        
+        // Create the nested api_response object
+        JSONObject apiResponse = new JSONObject()
+                .put("rx_data_id", rxDataId)
+                .put("errors", new JSONArray()) // Empty array
+                .put("submitted_date", submittedDate)
+                .put("process_date", now)
+                .put("aspn_id", 1000);
+        
+        return new JSONObject()
+                .put("uuid", message.getId())
+                .put("received_timestamp", now)
+                .put("raw_payload", message.getRawPayloadText())
+                .put("processing_timestamp", now)
+                .put("http_status_code", 200)
+                .put("api_response", apiResponse)
+                .put("submitted_date", submittedDate)
+                .put("process_date", now)
+                .put("aspn_id", 1000)
+                .put("rx_data_id", rxDataId);
+    }
+
+    @Override
+    public void close() {
+        streamWriter.close();
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.kafkabqperformance.service;
 
 import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.WarmupAware;
 import com.google.cloud.bigquery.*;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -9,13 +10,24 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -26,14 +38,25 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 @Service("legacyBigQueryWriteService")
 @Slf4j
-public class LegacyBigQueryWriteService implements BigQueryWriteService {
+public class LegacyBigQueryWriteService implements BigQueryWriteService, WarmupAware {
+
+    private static final String SINK_NAME = "legacy";
 
     private final BigQuery bigQuery;
     private final String datasetName;
     private final String tableName;
-    private final List<InsertAllRequest.RowToInsert> pendingRows = new ArrayList<>();
-    private final AtomicInteger pendingRowCount = new AtomicInteger(0);
+    private final DoubleBuffer<PendingRow> pendingRows = new DoubleBuffer<>();
+    
+    /**
+     * Rows that failed with retriable errors, released to the next flush once their backoff has expired
+     */
+    private final DelayQueue<DelayedRow> retryQueue = new DelayQueue<>();
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Map<Integer, LegacyBigQueryWriteService> shards = new ConcurrentHashMap<>();
+    private final RetryEngine retryEngine;
+    private final SpillLog spillLog;
+    private final AdaptiveThrottler throttler;
+    private final AppendWatchdog watchdog;
     
     /**
      * Maximum number of rows to buffer before auto-flushing to BigQuery
@@ -45,22 +68,95 @@ public class LegacyBigQueryWriteService implements BigQueryWriteService {
      * Maximum number of retry attempts for failed insertions
      */
     private final int maxRetryAttempts;
+    
+    /**
+     * Per-request limits for insertAll; larger flushes are split into chunks within both
+     */
+    private final int maxChunkRows;
+    private final long maxChunkBytes;
+    
+    /**
+     * Bounded pool that sends the chunks of a flush concurrently, shared by all shards
+     */
+    private final ExecutorService insertPool;
+    private final int insertParallelism;
+    
+    /**
+     * Threads that run the blocking insertAll calls, so the chunk's thread can stop waiting at the deadline.
+     * A call abandoned at its deadline keeps its thread until the HTTP read timeout ends it, so the pool is
+     * bounded: a request it cannot take is requeued, and a hedge it cannot take is not sent.
+     */
+    private final ExecutorService requestPool;
 
     @Autowired
     public LegacyBigQueryWriteService(
             BigQuery bigQuery,
+            RetryEngine retryEngine,
+            SpillLog spillLog,
+            AdaptiveThrottler throttler,
+            AppendWatchdog watchdog,
             @Value("${bigquery.dataset}") String datasetName,
             @Value("${bigquery.table}") String tableName,
             @Value("${bigquery.flush-threshold:500}") int flushThreshold,
-            @Value("${bigquery.max-retry-attempts:3}") int maxRetryAttempts) {
+            @Value("${bigquery.max-retry-attempts:3}") int maxRetryAttempts,
+            @Value("${bigquery.legacy.max-chunk-rows:500}") int maxChunkRows,
+            @Value("${bigquery.legacy.max-chunk-bytes:9437184}") long maxChunkBytes,
+            @Value("${bigquery.legacy.insert-parallelism:4}") int insertParallelism) {
         this.bigQuery = bigQuery;
+        this.retryEngine = retryEngine;
+        this.spillLog = spillLog;
+        this.throttler = throttler;
+        this.watchdog = watchdog;
         this.datasetName = datasetName;
         this.tableName = tableName;
         this.flushThreshold = flushThreshold;
         this.maxRetryAttempts = maxRetryAttempts;
+        this.maxChunkRows = Math.max(1, maxChunkRows);
+        this.maxChunkBytes = Math.max(1, maxChunkBytes);
+        this.insertParallelism = Math.max(1, insertParallelism);
+        this.insertPool = Executors.newFixedThreadPool(this.insertParallelism);
+        // A primary request and its hedge per parallel insert; as many again can queue behind abandoned ones
+        int requestThreads = this.insertParallelism * 2;
+        ThreadPoolExecutor requestPool = new ThreadPoolExecutor(requestThreads, requestThreads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(requestThreads), runnable -> {
+                    Thread thread = new Thread(runnable, "legacy-insert-request");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        requestPool.allowCoreThreadTimeOut(true);
+        this.requestPool = requestPool;
         
-        log.info("Initialized Legacy BigQuery service with flush threshold: {}, max retry attempts: {}", 
-                flushThreshold, maxRetryAttempts);
+        log.info("Initialized Legacy BigQuery service with flush threshold: {}, max retry attempts: {}, chunks of up to {} rows / {} bytes, {} parallel inserts", 
+                flushThreshold, maxRetryAttempts, this.maxChunkRows, this.maxChunkBytes, this.insertParallelism);
+    }
+    
+    /**
+     * Creates a shard instance that shares the client, retry engine and insert pool of its parent
+     * but owns its own pending buffer and flush executor
+     */
+    private LegacyBigQueryWriteService(LegacyBigQueryWriteService parent) {
+        this.bigQuery = parent.bigQuery;
+        this.retryEngine = parent.retryEngine;
+        this.spillLog = parent.spillLog;
+        this.throttler = parent.throttler;
+        this.watchdog = parent.watchdog;
+        this.datasetName = parent.datasetName;
+        this.tableName = parent.tableName;
+        this.flushThreshold = parent.flushThreshold;
+        this.maxRetryAttempts = parent.maxRetryAttempts;
+        this.maxChunkRows = parent.maxChunkRows;
+        this.maxChunkBytes = parent.maxChunkBytes;
+        this.insertParallelism = parent.insertParallelism;
+        this.insertPool = parent.insertPool;
+        this.requestPool = parent.requestPool;
+    }
+
+    @Override
+    public LegacyBigQueryWriteService forShard(int shard) {
+        if (shard == 0) {
+            return this;
+        }
+        return shards.computeIfAbsent(shard, index -> new LegacyBigQueryWriteService(this));
     }
 
     @Override
@@ -69,14 +165,13 @@ public class LegacyBigQueryWriteService implements BigQueryWriteService {
             return 0;
         }
 
-        TableId tableId = TableId.of(datasetName, tableName);
-        
+        List<PendingRow> rows = new ArrayList<>(messages.size());
         for (KafkaMessage message : messages) {
             Map<String, Object> rowContent = new HashMap<>();
             // Map to the actual BigQuery schema
             rowContent.put("uuid", message.getId());
             rowContent.put("received_timestamp", Instant.now().toString());
-            rowContent.put("raw_payload", message.getMessage());
+            rowContent.put("raw_payload", message.getRawPayloadText());
             rowContent.put("processing_timestamp", Instant.now().toString());
             rowContent.put("http_status_code", 200); // Default success
             
@@ -95,12 +190,13 @@ public class LegacyBigQueryWriteService implements BigQueryWriteService {
             rowContent.put("rx_data_id", message.getPriority() != null ? message.getPriority() : 0);
             
             InsertAllRequest.RowToInsert row = InsertAllRequest.RowToInsert.of(message.getId(), rowContent);
-            pendingRows.add(row);
+            rows.add(new PendingRow(message, row, estimateJsonBytes(rowContent)));
             
             log.debug("Mapped message to BigQuery schema: {}", rowContent);
         }
         
-        int currentCount = pendingRowCount.addAndGet(messages.size());
+        // Rows are staged in one append so a concurrent flush sees all of them or none
+        int currentCount = pendingRows.addAll(rows);
         log.debug("Added {} messages to pending rows. Current total: {}", messages.size(), currentCount);
         
         // Auto-flush when threshold is reached
@@ -115,21 +211,51 @@ public class LegacyBigQueryWriteService implements BigQueryWriteService {
 
     @Override
     public int flush() {
-        if (pendingRows.isEmpty()) {
+        AppendWatchdog.Watch watch = watchdog.watch(SINK_NAME, "waiting for a flush");
+        try {
+            return flushAsync().get(watchdog.getFlushTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while flushing to BigQuery", e);
+            return 0;
+        } catch (ExecutionException e) {
+            log.error("Unexpected error during BigQuery flush", e.getCause());
             return 0;
+        } catch (TimeoutException e) {
+            // The flush keeps running on the flush executor and requeues or spills what it cannot write
+            log.warn("Flush did not complete within {} ms", watchdog.getFlushTimeoutMs());
+            return 0;
+        } finally {
+            watch.close();
         }
-        
-        return flushWithRetry(0);
     }
     
     /**
-     * Asynchronously flushes the pending rows
+     * Asynchronously flushes the pending rows, together with any retried rows whose backoff has expired
      * This prevents blocking the calling thread (e.g., Kafka consumer)
+     * 
+     * @return Future completed with the number of rows written by this flush
      */
-    public void flushAsync() {
-        if (!pendingRows.isEmpty()) {
-            executor.submit(this::flush);
+    @Override
+    public CompletableFuture<Integer> flushAsync() {
+        // The single-thread executor drains flushes in order. A single chunk is inserted on it as well, but the
+        // chunks of a larger flush go to the insert pool, so they may still be in flight when the next flush starts
+        return CompletableFuture.supplyAsync(this::drainRows, executor)
+                .thenCompose(this::insertRows);
+    }
+    
+    private List<PendingRow> drainRows() {
+        List<PendingRow> rows = pendingRows.drain();
+        int fresh = rows.size();
+        // poll() only returns rows whose backoff has expired
+        DelayedRow retry;
+        while ((retry = retryQueue.poll()) != null) {
+            rows.add(retry.row);
+        }
+        if (rows.size() > fresh) {
+            log.debug("Merged {} retried rows into a flush of {} fresh rows", rows.size() - fresh, fresh);
         }
+        return rows;
     }
     
     /**
@@ -138,136 +264,411 @@ public class LegacyBigQueryWriteService implements BigQueryWriteService {
      */
     @Scheduled(fixedDelayString = "${bigquery.flush-interval-ms:5000}")
     public void scheduledFlush() {
-        int pendingCount = pendingRowCount.get();
-        if (pendingCount > 0) {
+        int pendingCount = pendingRows.size();
+        DelayedRow nextRetry = retryQueue.peek();
+        if (pendingCount > 0 || (nextRetry != null && nextRetry.getDelay(TimeUnit.NANOSECONDS) <= 0)) {
             log.debug("Running scheduled flush for {} pending rows", pendingCount);
             flushAsync();
         }
     }
     
     /**
-     * Recursive method to flush pending rows with retry logic
+     * Splits the rows into chunks within the insertAll limits and inserts the chunks concurrently
      * 
-     * @param attemptCount Current attempt number (0-based)
-     * @return Number of successfully written rows
+     * @param rows Rows to insert
+     * @return Future completed with the number of rows written by all chunks
      */
-    private int flushWithRetry(int attemptCount) {
-        if (pendingRows.isEmpty()) {
-            return 0;
+    private CompletableFuture<Integer> insertRows(List<PendingRow> rows) {
+        if (rows.isEmpty()) {
+            return CompletableFuture.completedFuture(0);
         }
         
+        List<List<PendingRow>> chunks = chunk(rows);
+        if (chunks.size() == 1) {
+            return CompletableFuture.completedFuture(insertChunk(rows));
+        }
+        
+        List<CompletableFuture<Integer>> results = new ArrayList<>(chunks.size());
+        for (List<PendingRow> chunk : chunks) {
+            results.add(CompletableFuture.supplyAsync(() -> insertChunk(chunk), insertPool)
+                    .exceptionally(error -> {
+                        log.error("Unexpected error inserting a chunk of {} rows", chunk.size(), error);
+                        return 0;
+                    }));
+        }
+        
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            int successCount = results.stream().mapToInt(CompletableFuture::join).sum();
+            log.info("Legacy BigQuery WriteAll: Flushed {} records in {} chunks, {} successful", 
+                    rows.size(), chunks.size(), successCount);
+            return successCount;
+        });
+    }
+    
+    /**
+     * Splits rows into consecutive chunks bounded by row count and estimated request bytes
+     */
+    private List<List<PendingRow>> chunk(List<PendingRow> rows) {
+        List<List<PendingRow>> chunks = new ArrayList<>();
+        int start = 0;
+        long chunkBytes = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            long rowBytes = rows.get(i).bytes;
+            if (i > start && (i - start >= maxChunkRows || chunkBytes + rowBytes > maxChunkBytes)) {
+                chunks.add(rows.subList(start, i));
+                start = i;
+                chunkBytes = 0;
+            }
+            chunkBytes += rowBytes;
+        }
+        chunks.add(rows.subList(start, rows.size()));
+        return chunks;
+    }
+    
+    /**
+     * Inserts one chunk as a single request and moves the rows that failed with retriable errors to the retry queue
+     * 
+     * @param rows Rows of the chunk
+     * @return Number of rows written by this request
+     */
+    private int insertChunk(List<PendingRow> rows) {
         TableId tableId = TableId.of(datasetName, tableName);
-        InsertAllRequest insertRequest = InsertAllRequest.newBuilder(tableId)
-                .setRows(pendingRows)
-                .build();
+        InsertAllRequest.Builder insertRequestBuilder = InsertAllRequest.newBuilder(tableId);
+        for (PendingRow row : rows) {
+            insertRequestBuilder.addRow(row.row);
+        }
+        InsertAllRequest insertRequest = insertRequestBuilder.build();
+        
+        try {
+            throttler.acquire(rows.size(), rows.stream().mapToLong(row -> row.bytes).sum());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for the throttler, requeueing {} rows", rows.size());
+            requeue(rows);
+            return 0;
+        }
+        
+        InsertAllResponse response;
+        try {
+            response = insertWithDeadline(insertRequest);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for insertAll, requeueing {} rows", rows.size());
+            requeue(rows);
+            return 0;
+        } catch (RejectedExecutionException e) {
+            log.warn("No request thread free for insertAll of {} rows, requeueing them", rows.size());
+            requeue(rows);
+            return 0;
+        } catch (TimeoutException e) {
+            // The abandoned request may still land; its rows carry insertIds, so the retry is deduplicated
+            log.warn("insertAll of {} rows got no response within {} ms, requeueing them",
+                    rows.size(), watchdog.getDeadlineMs());
+            watchdog.onDeadlineExceeded(SINK_NAME);
+            requeue(rows);
+            return 0;
+        } catch (BigQueryException e) {
+            // The whole request failed, retry all of its rows
+            log.warn("insertAll of {} rows failed: {}", rows.size(), e.getMessage());
+            throttler.onError(e);
+            if (retryEngine.isRetriable(e)) {
+                requeue(rows);
+            } else {
+                // A failure of the whole request says nothing about the rows, keep them for replay
+                log.error("Permanent error for insertAll of {} rows, spilling them", rows.size(), e);
+                spill(rows);
+            }
+            return 0;
+        }
         
-        InsertAllResponse response = bigQuery.insertAll(insertRequest);
         int failedRowCount = response.getInsertErrors().size();
-        int successCount = pendingRowCount.get() - failedRowCount;
+        int successCount = rows.size() - failedRowCount;
+        if (!response.hasErrors()) {
+            throttler.onSuccess();
+        }
         
-        // If there are errors but we have retries left, attempt to retry failed rows
         if (response.hasErrors()) {
-            log.warn("Errors occurred while inserting rows (attempt {}): {} failures", 
-                    attemptCount + 1, failedRowCount);
+            log.warn("Errors occurred while inserting rows: {} failures", failedRowCount);
+            response.getInsertErrors().values().forEach(throttler::onErrors);
+            requeue(retriableRows(rows, response.getInsertErrors()));
+        }
+        
+        log.info("Legacy BigQuery WriteAll: Flushed {} records, {} successful, {} failed", 
+                rows.size(), successCount, failedRowCount);
+        
+        return successCount;
+    }
+    
+    /**
+     * Sends the request and waits for it up to the deadline. With hedging enabled, a request still running
+     * after the sink's p99 latency is sent a second time and the first response wins. Both requests carry
+     * the same insertIds, so BigQuery drops the rows of whichever arrives second.
+     * 
+     * @param request The insertAll request of one chunk
+     * @return Response of the first request that succeeded
+     * @throws TimeoutException if no request succeeded within the deadline
+     * @throws BigQueryException if every request sent failed
+     * @throws RejectedExecutionException if every request thread is busy, most likely with abandoned requests
+     */
+    private InsertAllResponse insertWithDeadline(InsertAllRequest request)
+            throws InterruptedException, TimeoutException {
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(watchdog.getDeadlineMs());
+        CompletableFuture<InsertAllResponse> primary = CompletableFuture.supplyAsync(() -> bigQuery.insertAll(request), requestPool);
+        CompletableFuture<InsertAllResponse> winner = primary;
+        CompletableFuture<InsertAllResponse> hedge = null;
+        
+        try {
+            long hedgeDelayMs = watchdog.hedgeDelayMs(SINK_NAME);
+            if (hedgeDelayMs > 0) {
+                try {
+                    return record(startNanos, primary.get(hedgeDelayMs, TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    log.debug("insertAll of {} rows still running after {} ms, hedging it", request.getRows().size(), hedgeDelayMs);
+                    try {
+                        hedge = CompletableFuture.supplyAsync(() -> bigQuery.insertAll(request), requestPool);
+                        winner = firstSuccess(primary, hedge);
+                    } catch (RejectedExecutionException rejected) {
+                        log.debug("No request thread free to hedge insertAll of {} rows", request.getRows().size());
+                    }
+                }
+            }
             
-            if (attemptCount < maxRetryAttempts) {
-                return retryFailedRows(response.getInsertErrors(), attemptCount + 1);
+            InsertAllResponse response = winner.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            if (hedge != null) {
+                watchdog.onHedge(SINK_NAME, hedge.isDone() && !hedge.isCompletedExceptionally()
+                        && hedge.join() == response);
+            }
+            return record(startNanos, response);
+        } catch (ExecutionException e) {
+            if (hedge != null) {
+                watchdog.onHedge(SINK_NAME, false);
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BigQueryException(0, String.valueOf(e.getCause().getMessage()), e.getCause());
+        } catch (TimeoutException e) {
+            if (hedge != null) {
+                watchdog.onHedge(SINK_NAME, false);
+            }
+            throw e;
+        }
+    }
+    
+    private InsertAllResponse record(long startNanos, InsertAllResponse response) {
+        watchdog.recordLatency(SINK_NAME, System.nanoTime() - startNanos);
+        return response;
+    }
+    
+    /**
+     * Completes with the first of two requests that succeeds, or with the last failure if both fail
+     */
+    private static CompletableFuture<InsertAllResponse> firstSuccess(CompletableFuture<InsertAllResponse> first,
+                                                                     CompletableFuture<InsertAllResponse> second) {
+        CompletableFuture<InsertAllResponse> result = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger(0);
+        for (CompletableFuture<InsertAllResponse> request : List.of(first, second)) {
+            request.whenComplete((response, error) -> {
+                if (error == null) {
+                    result.complete(response);
+                } else if (failures.incrementAndGet() == 2) {
+                    result.completeExceptionally(error);
+                }
+            });
+        }
+        return result;
+    }
+    
+    /**
+     * Moves failed rows to the retry queue, from which a later flush picks them up once their backoff has expired.
+     * Rows that are out of attempts, or that the retry budget refuses, are spilled instead.
+     * 
+     * @param rows Rows that failed with retriable errors
+     */
+    private void requeue(List<PendingRow> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        
+        List<PendingRow> exhausted = new ArrayList<>();
+        List<PendingRow> retried = new ArrayList<>();
+        for (PendingRow row : rows) {
+            row.attempts++;
+            if (row.attempts > maxRetryAttempts) {
+                exhausted.add(row);
             } else {
-                log.error("Max retry attempts ({}) reached. Error details: {}", 
-                        maxRetryAttempts, response.getInsertErrors());
+                retried.add(row);
             }
         }
         
-        log.info("Legacy BigQuery WriteAll: Flushed {} records, {} successful, {} failed", 
-                pendingRowCount.get(), successCount, failedRowCount);
+        if (!exhausted.isEmpty()) {
+            log.error("Max retry attempts ({}) reached, spilling {} rows", maxRetryAttempts, exhausted.size());
+            spill(exhausted);
+        }
+        if (retried.isEmpty()) {
+            return;
+        }
         
-        // Clear pending rows only after final attempt
-        pendingRows.clear();
-        pendingRowCount.set(0);
+        // One budget token per failed request; rows retried together share the backoff of their highest attempt
+        int attempt = retried.stream().mapToInt(row -> row.attempts).max().orElse(1);
+        if (!retryEngine.tryAcquire(attempt)) {
+            log.error("Retry budget exhausted, spilling {} rows", retried.size());
+            spill(retried);
+            return;
+        }
         
-        return successCount;
+        long readyAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryEngine.backoffMillis(attempt));
+        for (PendingRow row : retried) {
+            retryQueue.add(new DelayedRow(row, readyAt));
+        }
+        log.info("Retry attempt {}: Queued {} rows with retriable errors", attempt, retried.size());
     }
     
     /**
-     * Retry insertion of failed rows
+     * Selects the rows of a failed request whose errors are retriable
      * 
+     * @param originalRows Rows of the failed request, indexed by the insert errors
      * @param insertErrors Map of row indices to error information from failed insertion
-     * @param attemptCount Current attempt number (1-based)
-     * @return Number of successfully written rows after retry
+     * @return Rows to insert again
      */
-    private int retryFailedRows(Map<Long, List<BigQueryError>> insertErrors, int attemptCount) {
-        List<InsertAllRequest.RowToInsert> rowsToRetry = new ArrayList<>();
-        List<InsertAllRequest.RowToInsert> originalRows = new ArrayList<>(pendingRows);
-        
-        // Clear the current pending rows
-        pendingRows.clear();
-        
-        // Add back only the rows that failed with retriable errors
+    private List<PendingRow> retriableRows(List<PendingRow> originalRows, Map<Long, List<BigQueryError>> insertErrors) {
+        List<PendingRow> rowsToRetry = new ArrayList<>();
         for (Map.Entry<Long, List<BigQueryError>> entry : insertErrors.entrySet()) {
             int rowIndex = entry.getKey().intValue(); // Convert Long to int
             List<BigQueryError> errors = entry.getValue();
             
-            if (isRetriableError(errors)) {
-                InsertAllRequest.RowToInsert failedRow = originalRows.get(rowIndex);
+            // The first error is the most relevant one
+            if (!errors.isEmpty() && retryEngine.isRetriable(errors.get(0))) {
+                PendingRow failedRow = originalRows.get(rowIndex);
                 rowsToRetry.add(failedRow);
-                pendingRows.add(failedRow);
                 
                 log.debug("Retrying row with id {}, error: {}", 
-                        failedRow.getId(), errors.get(0).getMessage());
+                        failedRow.row.getId(), errors.get(0).getMessage());
             } else {
                 log.error("Permanent error for row {}, skipping retry: {}", 
-                        rowIndex, errors.get(0).getMessage());
+                        rowIndex, errors.isEmpty() ? "unknown" : errors.get(0).getMessage());
             }
         }
-        
-        int retriedRowCount = rowsToRetry.size();
-        pendingRowCount.set(retriedRowCount);
-        
-        if (retriedRowCount > 0) {
-            log.info("Retry attempt {}: Retrying {} rows with retriable errors", 
-                    attemptCount, retriedRowCount);
-            
-            // Add a small backoff before retry (exponential backoff strategy)
-            try {
-                Thread.sleep(Math.min(100 * (1 << attemptCount), 1000));
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
+        return rowsToRetry;
+    }
+    
+    /**
+     * Writes rows that could not be delivered to the spill log for later replay
+     */
+    private void spill(List<PendingRow> rows) {
+        List<KafkaMessage> messages = new ArrayList<>(rows.size());
+        for (PendingRow row : rows) {
+            messages.add(row.message);
+        }
+        spillLog.append(SINK_NAME, messages);
+    }
+    
+    /**
+     * A failed row waiting in the retry queue until its backoff has expired
+     */
+    private static final class DelayedRow implements Delayed {
+        private final PendingRow row;
+        private final long readyAtNanos;
+
+        private DelayedRow(PendingRow row, long readyAtNanos) {
+            this.row = row;
+            this.readyAtNanos = readyAtNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+    
+    /**
+     * Estimated size of a value once serialized as JSON in the insertAll request
+     */
+    private static long estimateJsonBytes(Object value) {
+        if (value instanceof Map) {
+            long bytes = 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += String.valueOf(entry.getKey()).length() + 4 + estimateJsonBytes(entry.getValue());
             }
-            
-            return flushWithRetry(attemptCount);
+            return bytes;
         }
-        
-        // If no rows to retry, return the number of successful rows from the first attempt
-        return pendingRowCount.get() - insertErrors.size();
+        if (value instanceof List) {
+            long bytes = 2;
+            for (Object element : (List<?>) value) {
+                bytes += estimateJsonBytes(element) + 1;
+            }
+            return bytes;
+        }
+        if (value instanceof String) {
+            return ((String) value).length() + 2L;
+        }
+        return 8;
     }
     
     /**
-     * Determine if errors for a row are retriable based on the error reason
-     * 
-     * @param errors List of BigQuery errors for a particular row
-     * @return true if the errors are retriable, false otherwise
+     * A staged row together with the message it was mapped from and its estimated request size
      */
-    private boolean isRetriableError(List<BigQueryError> errors) {
-        if (errors == null || errors.isEmpty()) {
-            return false;
+    private static final class PendingRow {
+        private final KafkaMessage message;
+        private final InsertAllRequest.RowToInsert row;
+        private final long bytes;
+        private int attempts;
+
+        private PendingRow(KafkaMessage message, InsertAllRequest.RowToInsert row, long bytes) {
+            this.message = message;
+            this.row = row;
+            this.bytes = bytes;
         }
-        
-        // Get the first error (most relevant)
-        BigQueryError error = errors.get(0);
-        String reason = error.getReason();
-        String message = error.getMessage();
-        
-        // Common retriable errors
-        return "backendError".equals(reason) || 
-               "rateLimitExceeded".equals(reason) || 
-               "internalError".equals(reason) || 
-               message.contains("timeout") || 
-               message.contains("temporarily unavailable");
     }
     
+    @Override
+    public String getWarmupName() {
+        return SINK_NAME;
+    }
+
+    /**
+     * Reading the table metadata opens the HTTP connection and fetches an access token without writing a row
+     */
+    @Override
+    public void warmUp(Map<String, Long> steps) throws IOException {
+        long start = System.nanoTime();
+        Table table = bigQuery.getTable(TableId.of(datasetName, tableName));
+        if (table == null) {
+            throw new IOException("Table not found: " + datasetName + "." + tableName);
+        }
+        steps.put("connection", (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        if (insertPool instanceof ThreadPoolExecutor) {
+            ((ThreadPoolExecutor) insertPool).prestartAllCoreThreads();
+        }
+        steps.put("insertPool", (System.nanoTime() - start) / 1_000_000);
+    }
+
     @PreDestroy
     public void cleanup() {
         log.info("Shutting down Legacy BigQuery service and executor");
+        // Shards share the insert pool, which is shut down by the parent only
+        shards.values().forEach(LegacyBigQueryWriteService::closeShard);
+        closeShard();
+        insertPool.shutdown();
+        requestPool.shutdown();
+    }
+    
+    /**
+     * Stops the flush executor and keeps rows still waiting for a retry for replay after the restart
+     */
+    private void closeShard() {
         executor.shutdown();
+        List<PendingRow> waiting = new ArrayList<>();
+        retryQueue.forEach(retry -> waiting.add(retry.row));
+        retryQueue.clear();
+        spill(waiting);
     }
 }
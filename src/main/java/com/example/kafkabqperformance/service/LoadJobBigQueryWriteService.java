@@ -0,0 +1,248 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.TableId;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BigQuery write service implementation using batch load jobs
+ * 
+ * Rows are staged as newline-delimited JSON in local files that roll by size or age, and every
+ * complete file is loaded with one load job. Load jobs are free of streaming ingestion charges
+ * but subject to a daily per-table job quota, so files should stay large: a flush only submits
+ * files that have rolled and never forces a roll, except on shutdown.
+ */
+@Service("loadJobBigQueryWriteService")
+@ConditionalOnProperty(name = "bigquery.load-job.enabled", havingValue = "true")
+@Slf4j
+public class LoadJobBigQueryWriteService implements BigQueryWriteService, MetricsSource {
+
+    private final RollingFileStager stager;
+    private final LoadJobTracker tracker;
+    private final RetryEngine retryEngine;
+    private final Path failedDirectory;
+    private final int maxRetryAttempts;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final AtomicLong stagedRows = new AtomicLong(0);
+    private final AtomicLong submittedJobs = new AtomicLong(0);
+    private final AtomicLong succeededJobs = new AtomicLong(0);
+    private final AtomicLong failedJobs = new AtomicLong(0);
+    private final AtomicLong loadedRows = new AtomicLong(0);
+    private final AtomicLong loadedBytes = new AtomicLong(0);
+    private final AtomicLong failedRows = new AtomicLong(0);
+
+    @Autowired
+    public LoadJobBigQueryWriteService(
+            BigQuery bigQuery,
+            RetryEngine retryEngine,
+            @Value("${bigquery.dataset}") String datasetName,
+            @Value("${bigquery.table}") String tableName,
+            @Value("${bigquery.max-retry-attempts:3}") int maxRetryAttempts,
+            @Value("${bigquery.load-job.directory:${java.io.tmpdir}/kafka-bq-load}") String directory,
+            @Value("${bigquery.load-job.max-file-bytes:268435456}") long maxFileBytes,
+            @Value("${bigquery.load-job.max-file-age-ms:300000}") long maxFileAgeMs) throws IOException {
+        this.retryEngine = retryEngine;
+        this.maxRetryAttempts = maxRetryAttempts;
+        this.stager = new RollingFileStager(Paths.get(directory), tableName, maxFileBytes, maxFileAgeMs);
+        this.tracker = new LoadJobTracker(bigQuery, TableId.of(datasetName, tableName));
+        this.failedDirectory = Paths.get(directory, "failed");
+
+        log.info("Initialized Load Job BigQuery service staging in {} with files of up to {} bytes / {}ms", 
+                directory, maxFileBytes, maxFileAgeMs);
+    }
+
+    @Override
+    public int writeToBigQuery(List<KafkaMessage> messages) {
+        if (messages == null || messages.isEmpty()) {
+            return 0;
+        }
+
+        String now = Instant.now().toString();
+        List<String> lines = new ArrayList<>(messages.size());
+        for (KafkaMessage message : messages) {
+            lines.add(JsonStreamAppender.toJson(message, now).toString());
+        }
+
+        try {
+            stager.append(lines);
+            stagedRows.addAndGet(messages.size());
+            return messages.size();
+        } catch (IOException e) {
+            log.error("Failed to stage {} rows for loading", messages.size(), e);
+            return 0;
+        }
+    }
+
+    @Override
+    public int flush() {
+        try {
+            return flushAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while submitting load jobs", e);
+            return 0;
+        } catch (ExecutionException e) {
+            log.error("Unexpected error submitting load jobs", e.getCause());
+            return 0;
+        }
+    }
+
+    /**
+     * Rolls the current file if it is due and submits a load job for every complete file
+     * 
+     * @return Future completed with the number of rows in the files submitted
+     */
+    @Override
+    public CompletableFuture<Integer> flushAsync() {
+        return CompletableFuture.supplyAsync(() -> submitCompleted(false), executor);
+    }
+
+    private int submitCompleted(boolean forceRoll) {
+        int submittedRows = 0;
+        try {
+            if (forceRoll) {
+                stager.roll();
+            } else {
+                stager.rollIfDue();
+            }
+        } catch (IOException e) {
+            log.error("Failed to roll the staged file", e);
+        }
+
+        for (RollingFileStager.StagedFile file : stager.takeCompleted()) {
+            if (submit(file, 0)) {
+                submittedRows += file.getRows();
+            }
+        }
+        return submittedRows;
+    }
+
+    private boolean submit(RollingFileStager.StagedFile file, int attempt) {
+        if (file.getRows() == 0) {
+            deleteFile(file.getPath());
+            return false;
+        }
+        try {
+            tracker.submit(file, attempt);
+            submittedJobs.incrementAndGet();
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to submit load job for {}", file.getPath().getFileName(), e);
+            retryOrFail(file, attempt, e.getMessage(), retryEngine.isRetriable(e));
+            return false;
+        }
+    }
+
+    /**
+     * Rolls files by age and follows the running load jobs
+     */
+    @Scheduled(fixedDelayString = "${bigquery.load-job.poll-interval-ms:10000}")
+    public void pollJobs() {
+        flushAsync();
+        executor.submit(() -> {
+            for (LoadJobTracker.Outcome outcome : tracker.poll()) {
+                RollingFileStager.StagedFile file = outcome.getFile();
+                BigQueryError error = outcome.getError();
+                if (error == null) {
+                    succeededJobs.incrementAndGet();
+                    loadedRows.addAndGet(file.getRows());
+                    loadedBytes.addAndGet(file.getBytes());
+                    log.info("Loaded {} rows from {}", file.getRows(), file.getPath().getFileName());
+                    deleteFile(file.getPath());
+                } else {
+                    log.error("Load job for {} failed: {}", file.getPath().getFileName(), error);
+                    retryOrFail(file, outcome.getAttempt(), error.getMessage(), retryEngine.isRetriable(error));
+                }
+            }
+        });
+    }
+
+    /**
+     * Submits a failed file again after a backoff, or moves it aside for manual inspection
+     */
+    private void retryOrFail(RollingFileStager.StagedFile file, int attempt, String reason, boolean retriable) {
+        if (retriable && attempt < maxRetryAttempts
+                && retryEngine.schedule(attempt + 1, () -> submit(file, attempt + 1), executor)) {
+            return;
+        }
+
+        failedJobs.incrementAndGet();
+        failedRows.addAndGet(file.getRows());
+        try {
+            Files.createDirectories(failedDirectory);
+            Files.move(file.getPath(), failedDirectory.resolve(file.getPath().getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            log.error("Moved {} rows that could not be loaded to {}: {}", file.getRows(), failedDirectory, reason);
+        } catch (IOException e) {
+            log.error("Failed to move {} to {}", file.getPath(), failedDirectory, e);
+        }
+    }
+
+    private static void deleteFile(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete staged file {}", path, e);
+        }
+    }
+
+    @PreDestroy
+    public void cleanup() {
+        log.info("Shutting down Load Job BigQuery service, submitting the current staged file");
+        try {
+            // Running jobs finish on their own; their files are picked up again on the next start
+            executor.submit(() -> submitCompleted(true)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Failed to submit the last staged file", e.getCause());
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "loadJob";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("currentFileRows", stager.getCurrentRows());
+        metrics.put("currentFileBytes", stager.getCurrentBytes());
+        metrics.put("stagedRows", stagedRows.get());
+        metrics.put("runningJobs", tracker.getRunningJobs());
+        metrics.put("submittedJobs", submittedJobs.get());
+        metrics.put("succeededJobs", succeededJobs.get());
+        metrics.put("failedJobs", failedJobs.get());
+        metrics.put("loadedRows", loadedRows.get());
+        metrics.put("loadedBytes", loadedBytes.get());
+        metrics.put("failedRows", failedRows.get());
+        return metrics;
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.kafkabqperformance.service;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.TableDataWriteChannel;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.WriteChannelConfiguration;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uploads staged files as BigQuery load jobs and follows the jobs until they finish
+ * 
+ * <p>Job ids are derived from the file name and the attempt, so a file that is submitted
+ * again after a restart is rejected as a duplicate job instead of being loaded twice.</p>
+ */
+@Slf4j
+class LoadJobTracker {
+
+    private final BigQuery bigQuery;
+    private final TableId tableId;
+    private final Map<String, TrackedJob> running = new ConcurrentHashMap<>();
+
+    LoadJobTracker(BigQuery bigQuery, TableId tableId) {
+        this.bigQuery = bigQuery;
+        this.tableId = tableId;
+    }
+
+    /**
+     * Uploads the file through a resumable upload, which starts the load job
+     * 
+     * @param file The staged file
+     * @param attempt Attempt number of this file (0-based)
+     */
+    void submit(RollingFileStager.StagedFile file, int attempt) throws IOException {
+        JobId jobId = JobId.of(jobName(file, attempt));
+        WriteChannelConfiguration configuration = WriteChannelConfiguration.newBuilder(tableId)
+                .setFormatOptions(FormatOptions.json())
+                .setCreateDisposition(JobInfo.CreateDisposition.CREATE_NEVER)
+                .setWriteDisposition(JobInfo.WriteDisposition.WRITE_APPEND)
+                .build();
+
+        try {
+            TableDataWriteChannel channel = bigQuery.writer(jobId, configuration);
+            try (OutputStream out = Channels.newOutputStream(channel)) {
+                Files.copy(file.getPath(), out);
+            }
+        } catch (BigQueryException e) {
+            if (e.getError() == null || !"duplicate".equals(e.getError().getReason())) {
+                throw e;
+            }
+            // Submitted before a restart, follow the existing job instead
+            log.info("Load job {} already exists, tracking it", jobId.getJob());
+        }
+        running.put(jobId.getJob(), new TrackedJob(jobId, file, attempt));
+        log.info("Submitted load job {} for {} rows from {}", jobId.getJob(), file.getRows(), file.getPath().getFileName());
+    }
+
+    /**
+     * Checks every running job once
+     * 
+     * @return jobs that have finished since the last poll, successfully or not
+     */
+    List<Outcome> poll() {
+        List<Outcome> finished = new ArrayList<>();
+        for (TrackedJob tracked : running.values()) {
+            Job job = bigQuery.getJob(tracked.jobId);
+            if (job == null) {
+                running.remove(tracked.jobId.getJob());
+                finished.add(new Outcome(tracked.file, tracked.attempt,
+                        new BigQueryError("notFound", null, "Load job " + tracked.jobId.getJob() + " not found")));
+                continue;
+            }
+            JobStatus status = job.getStatus();
+            if (status == null || status.getState() != JobStatus.State.DONE) {
+                continue;
+            }
+            running.remove(tracked.jobId.getJob());
+            finished.add(new Outcome(tracked.file, tracked.attempt, status.getError()));
+        }
+        return finished;
+    }
+
+    int getRunningJobs() {
+        return running.size();
+    }
+
+    private static String jobName(RollingFileStager.StagedFile file, int attempt) {
+        String name = file.getPath().getFileName().toString().replaceAll("[^A-Za-z0-9_-]", "_");
+        return "kafka_bq_load_" + name + "_" + attempt;
+    }
+
+    private static final class TrackedJob {
+        private final JobId jobId;
+        private final RollingFileStager.StagedFile file;
+        private final int attempt;
+
+        private TrackedJob(JobId jobId, RollingFileStager.StagedFile file, int attempt) {
+            this.jobId = jobId;
+            this.file = file;
+            this.attempt = attempt;
+        }
+    }
+
+    /**
+     * A finished load job; the error is null if the file was loaded
+     */
+    static final class Outcome {
+        private final RollingFileStager.StagedFile file;
+        private final int attempt;
+        private final BigQueryError error;
+
+        Outcome(RollingFileStager.StagedFile file, int attempt, BigQueryError error) {
+            this.file = file;
+            this.attempt = attempt;
+            this.error = error;
+        }
+
+        RollingFileStager.StagedFile getFile() {
+            return file;
+        }
+
+        int getAttempt() {
+            return attempt;
+        }
+
+        BigQueryError getError() {
+            return error;
+        }
+    }
+}
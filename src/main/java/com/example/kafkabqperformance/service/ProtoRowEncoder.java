@@ -0,0 +1,361 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.cloud.bigquery.storage.v1.BQTableSchemaToProtoDescriptor;
+import com.google.cloud.bigquery.storage.v1.BigDecimalByteStringEncoder;
+import com.google.cloud.bigquery.storage.v1.ProtoRows;
+import com.google.cloud.bigquery.storage.v1.ProtoSchema;
+import com.google.cloud.bigquery.storage.v1.ProtoSchemaConverter;
+import com.google.cloud.bigquery.storage.v1.TableFieldSchema;
+import com.google.cloud.bigquery.storage.v1.TableSchema;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.DescriptorProtos;
+import com.google.protobuf.Descriptors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encodes {@link KafkaMessage}s straight into serialized protobuf rows for the Storage Write API
+ * 
+ * <p>The protobuf descriptor is generated once from the table schema, and every column is
+ * compiled into a field writer that knows its field number, wire type, BigQuery column type
+ * and value source.
+ * Rows are then written field by field with a {@link CodedOutputStream} into scratch buffers
+ * that are reused across the rows of a batch, without JSON or DynamicMessage in between.</p>
+ */
+public class ProtoRowEncoder {
+
+    private static final int HTTP_STATUS_OK = 200;
+    private static final int DEFAULT_ASPN_ID = 1000;
+
+    private final Descriptors.Descriptor descriptor;
+    private final ProtoSchema protoSchema;
+    private final List<FieldWriter> rowPlan;
+
+    public ProtoRowEncoder(TableSchema tableSchema) throws Descriptors.DescriptorValidationException {
+        this.descriptor = BQTableSchemaToProtoDescriptor.convertBQTableSchemaToProtoDescriptor(tableSchema);
+        this.protoSchema = ProtoSchemaConverter.convert(descriptor);
+        this.rowPlan = compile(descriptor, tableSchema.getFieldsList());
+    }
+
+    /**
+     * Restores an encoder from a protobuf schema generated earlier for the same table schema,
+     * skipping the schema-to-descriptor conversion
+     */
+    public ProtoRowEncoder(TableSchema tableSchema, ProtoSchema protoSchema) throws Descriptors.DescriptorValidationException {
+        DescriptorProtos.DescriptorProto message = protoSchema.getProtoDescriptor();
+        Descriptors.FileDescriptor file = Descriptors.FileDescriptor.buildFrom(
+                DescriptorProtos.FileDescriptorProto.newBuilder()
+                        .setName(message.getName() + ".proto")
+                        .addMessageType(message)
+                        .build(),
+                new Descriptors.FileDescriptor[0]);
+        this.descriptor = file.getMessageTypes().get(0);
+        this.protoSchema = protoSchema;
+        this.rowPlan = compile(descriptor, tableSchema.getFieldsList());
+    }
+
+    public Descriptors.Descriptor getDescriptor() {
+        return descriptor;
+    }
+
+    public ProtoSchema getProtoSchema() {
+        return protoSchema;
+    }
+
+    /**
+     * Encodes a batch of messages into ProtoRows
+     * 
+     * @param messages Messages to encode
+     * @return Serialized rows in message order
+     */
+    public ProtoRows encode(List<KafkaMessage> messages) {
+        RowContext context = new RowContext(Instant.now());
+        ProtoRows.Builder rows = ProtoRows.newBuilder();
+        try {
+            for (KafkaMessage message : messages) {
+                context.row.reset();
+                writeFields(rowPlan, message, context, context.rowOut, 0);
+                context.rowOut.flush();
+                rows.addSerializedRows(ByteString.copyFrom(context.row.buffer(), 0, context.row.size()));
+            }
+        } catch (IOException e) {
+            // Only in-memory streams are involved
+            throw new UncheckedIOException(e);
+        }
+        return rows.build();
+    }
+
+    private void writeFields(List<FieldWriter> plan, KafkaMessage message, RowContext context,
+                             CodedOutputStream out, int depth) throws IOException {
+        for (FieldWriter field : plan) {
+            if (field.nested != null) {
+                ExposedByteArrayOutputStream scratch = context.nestedScratch(depth);
+                CodedOutputStream nestedOut = context.nestedOut(depth);
+                scratch.reset();
+                writeFields(field.nested, message, context, nestedOut, depth + 1);
+                nestedOut.flush();
+                out.writeByteArray(field.number, scratch.buffer(), 0, scratch.size());
+            } else {
+                field.write(out, field.source.value(message, context.now));
+            }
+        }
+    }
+
+    private static List<FieldWriter> compile(Descriptors.Descriptor descriptor, List<TableFieldSchema> columns) {
+        // The descriptor's field names are the lower-cased column names
+        Map<String, TableFieldSchema> columnsByName = new HashMap<>();
+        for (TableFieldSchema column : columns) {
+            columnsByName.put(column.getName().toLowerCase(Locale.ROOT), column);
+        }
+
+        List<FieldWriter> plan = new ArrayList<>();
+        for (Descriptors.FieldDescriptor field : descriptor.getFields()) {
+            if (field.isRepeated()) {
+                // The only repeated column (api_response.errors) is always written empty
+                continue;
+            }
+            TableFieldSchema column = columnsByName.get(field.getName());
+            if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                List<TableFieldSchema> nested = column != null ? column.getFieldsList() : List.of();
+                plan.add(new FieldWriter(field, null, null, compile(field.getMessageType(), nested)));
+                continue;
+            }
+            ValueSource source = ValueSource.forColumn(field.getName());
+            if (source != null) {
+                plan.add(new FieldWriter(field, column != null ? column.getType() : null, source, null));
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Where a column's value comes from, keyed by the column names of the kafka_messages table
+     */
+    private enum ValueSource {
+        UUID {
+            @Override
+            Object value(KafkaMessage message, Instant now) {
+                return message.getId();
+            }
+        },
+        RAW_PAYLOAD {
+            @Override
+            Object value(KafkaMessage message, Instant now) {
+                // Original record bytes go to the wire as-is, without a String in between
+                return message.getRawPayload() != null ? message.getRawPayload() : message.getMessage();
+            }
+        },
+        NOW {
+            @Override
+            Object value(KafkaMessage message, Instant now) {
+                return now;
+            }
+        },
+        SUBMITTED_DATE {
+            @Override
+            Object value(KafkaMessage message, Instant now) {
+                return message.getTimestamp() != null ? message.getTimestamp() : now;
+            }
+        },
+        HTTP_STATUS_CODE {
+            @Override
+            Object value(KafkaMessage message, Instant now) {
+                return HTTP_STATUS_OK;
+            }
+        },
+        ASPN_ID {
+            @Override
+            Object value(KafkaMessage message, Instant now) {
+                return DEFAULT_ASPN_ID;
+            }
+        },
+        RX_DATA_ID {
+            @Override
+            Object value(KafkaMessage message, Instant now) {
+                return message.getPriority() != null ? message.getPriority() : 0;
+            }
+        };
+
+        abstract Object value(KafkaMessage message, Instant now);
+
+        static ValueSource forColumn(String column) {
+            switch (column.toLowerCase(Locale.ROOT)) {
+                case "uuid": return UUID;
+                case "raw_payload": return RAW_PAYLOAD;
+                case "received_timestamp":
+                case "processing_timestamp":
+                case "process_date": return NOW;
+                case "submitted_date": return SUBMITTED_DATE;
+                case "http_status_code": return HTTP_STATUS_CODE;
+                case "aspn_id": return ASPN_ID;
+                case "rx_data_id": return RX_DATA_ID;
+                default: return null;
+            }
+        }
+    }
+
+    /**
+     * One compiled column: field number, wire type and column type resolved once from the schema
+     */
+    private static final class FieldWriter {
+        private final int number;
+        private final Descriptors.FieldDescriptor.Type type;
+        private final TableFieldSchema.Type columnType;
+        private final ValueSource source;
+        private final List<FieldWriter> nested;
+
+        private FieldWriter(Descriptors.FieldDescriptor field, TableFieldSchema.Type columnType, ValueSource source,
+                            List<FieldWriter> nested) {
+            this.number = field.getNumber();
+            this.type = field.getType();
+            this.columnType = columnType;
+            this.source = source;
+            this.nested = nested;
+        }
+
+        private void write(CodedOutputStream out, Object value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            // Column types whose wire encoding differs from what the protobuf type alone implies
+            if (columnType != null) {
+                switch (columnType) {
+                    case NUMERIC:
+                        out.writeBytes(number, BigDecimalByteStringEncoder.encodeToNumericByteString(toBigDecimal(value)));
+                        return;
+                    case BIGNUMERIC:
+                        out.writeBytes(number, BigDecimalByteStringEncoder.encodeToBigNumericByteString(toBigDecimal(value)));
+                        return;
+                    case DATETIME:
+                        if (value instanceof Instant) {
+                            out.writeInt64(number, packDatetimeMicros(LocalDateTime.ofInstant((Instant) value, ZoneOffset.UTC)));
+                            return;
+                        }
+                        break;
+                    case TIME:
+                        if (value instanceof Instant) {
+                            out.writeInt64(number, packTimeMicros(LocalDateTime.ofInstant((Instant) value, ZoneOffset.UTC)));
+                            return;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            switch (type) {
+                case STRING:
+                case BYTES:
+                    if (value instanceof byte[]) {
+                        out.writeByteArray(number, (byte[]) value);
+                    } else {
+                        out.writeString(number, value.toString());
+                    }
+                    break;
+                case INT64:
+                    out.writeInt64(number, value instanceof Instant
+                            ? ChronoUnit.MICROS.between(Instant.EPOCH, (Instant) value)
+                            : ((Number) value).longValue());
+                    break;
+                case INT32:
+                    out.writeInt32(number, value instanceof Instant
+                            ? (int) ChronoUnit.DAYS.between(Instant.EPOCH, (Instant) value)
+                            : ((Number) value).intValue());
+                    break;
+                case DOUBLE:
+                    out.writeDouble(number, ((Number) value).doubleValue());
+                    break;
+                case FLOAT:
+                    out.writeFloat(number, ((Number) value).floatValue());
+                    break;
+                case BOOL:
+                    out.writeBool(number, value instanceof Boolean
+                            ? (Boolean) value : ((Number) value).intValue() != 0);
+                    break;
+                default:
+                    out.writeByteArray(number, value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static BigDecimal toBigDecimal(Object value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        }
+        if (value instanceof Instant) {
+            return BigDecimal.valueOf(ChronoUnit.MICROS.between(Instant.EPOCH, (Instant) value));
+        }
+        return new BigDecimal(value.toString());
+    }
+
+    /**
+     * Storage Write API civil time encoding: hour, minute and second bit fields followed by 20 bits of micros
+     */
+    static long packTimeMicros(LocalDateTime time) {
+        long seconds = ((long) time.getHour() << 12) | ((long) time.getMinute() << 6) | time.getSecond();
+        return (seconds << 20) | (time.getNano() / 1000);
+    }
+
+    /**
+     * Storage Write API civil datetime encoding: year, month and day bit fields above the packed time
+     */
+    static long packDatetimeMicros(LocalDateTime dateTime) {
+        long seconds = ((long) dateTime.getYear() << 26) | ((long) dateTime.getMonthValue() << 22)
+                | ((long) dateTime.getDayOfMonth() << 17) | ((long) dateTime.getHour() << 12)
+                | ((long) dateTime.getMinute() << 6) | dateTime.getSecond();
+        return (seconds << 20) | (dateTime.getNano() / 1000);
+    }
+
+    /**
+     * Per-batch scratch state: one output stream for rows and one per nesting level
+     */
+    private static final class RowContext {
+        private final Instant now;
+        private final ExposedByteArrayOutputStream row = new ExposedByteArrayOutputStream();
+        private final CodedOutputStream rowOut = CodedOutputStream.newInstance(row);
+        private final List<ExposedByteArrayOutputStream> nestedScratch = new ArrayList<>();
+        private final List<CodedOutputStream> nestedOut = new ArrayList<>();
+
+        private RowContext(Instant now) {
+            this.now = now;
+        }
+
+        private ExposedByteArrayOutputStream nestedScratch(int depth) {
+            while (nestedScratch.size() <= depth) {
+                ExposedByteArrayOutputStream scratch = new ExposedByteArrayOutputStream();
+                nestedScratch.add(scratch);
+                nestedOut.add(CodedOutputStream.newInstance(scratch));
+            }
+            return nestedScratch.get(depth);
+        }
+
+        private CodedOutputStream nestedOut(int depth) {
+            nestedScratch(depth);
+            return nestedOut.get(depth);
+        }
+    }
+
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        private ExposedByteArrayOutputStream() {
+            super(1024);
+        }
+
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.api.core.ApiFuture;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.BigQueryWriteClient;
+import com.google.cloud.bigquery.storage.v1.StreamWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Appends rows through a {@link StreamWriter} using protobuf rows encoded by {@link ProtoRowEncoder}
+ */
+class ProtoStreamAppender implements StreamAppender {
+
+    private final StreamWriter streamWriter;
+    private final ProtoRowEncoder encoder;
+
+    ProtoStreamAppender(String streamName, ProtoRowEncoder encoder, BigQueryWriteClient writeClient) throws IOException {
+        this.encoder = encoder;
+        this.streamWriter = StreamWriter.newBuilder(streamName, writeClient)
+                .setWriterSchema(encoder.getProtoSchema())
+                .build();
+    }
+
+    @Override
+    public ApiFuture<AppendRowsResponse> append(List<KafkaMessage> messages) {
+        return streamWriter.append(encoder.encode(messages));
+    }
+
+    @Override
+    public void close() {
+        streamWriter.close();
+    }
+}
@@ -0,0 +1,230 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.storage.v1.Exceptions;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Retry policy shared by both BigQuery sinks
+ * 
+ * <p>Errors are classified by gRPC status code, Storage Write API exception type or
+ * insertAll error reason rather than by message text. Retries are delayed with full
+ * jitter on a timer thread and then handed to the caller's executor, so no flush thread
+ * sleeps. Every retry takes a token from a global budget that refills at a fixed rate;
+ * when the budget is empty further retries are refused, so an overloaded backend is not
+ * hit by a retry storm from every sink at once.</p>
+ */
+@Component
+@Slf4j
+public class RetryEngine implements MetricsSource {
+
+    private static final Set<Status.Code> RETRIABLE_CODES = EnumSet.of(
+            Status.Code.UNAVAILABLE,
+            Status.Code.RESOURCE_EXHAUSTED,
+            Status.Code.ABORTED,
+            Status.Code.DEADLINE_EXCEEDED,
+            Status.Code.INTERNAL);
+
+    private static final Set<String> RETRIABLE_REASONS = Set.of(
+            "backendError",
+            "rateLimitExceeded",
+            "internalError");
+
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final double budgetCapacity;
+    private final double budgetRefillPerSecond;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "bigquery-retry-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private double budgetTokens;
+    private long budgetRefilledAt = System.nanoTime();
+
+    private final AtomicLong retriesScheduled = new AtomicLong(0);
+    private final AtomicLong retriesDenied = new AtomicLong(0);
+    private final Map<String, AtomicLong> errorsByCode = new ConcurrentHashMap<>();
+
+    public RetryEngine(
+            @Value("${bigquery.retry.initial-backoff-ms:100}") long initialBackoffMs,
+            @Value("${bigquery.retry.max-backoff-ms:5000}") long maxBackoffMs,
+            @Value("${bigquery.retry.budget.capacity:100}") int budgetCapacity,
+            @Value("${bigquery.retry.budget.refill-per-second:10}") double budgetRefillPerSecond) {
+        this.initialBackoffMs = Math.max(1, initialBackoffMs);
+        this.maxBackoffMs = Math.max(this.initialBackoffMs, maxBackoffMs);
+        this.budgetCapacity = Math.max(1, budgetCapacity);
+        this.budgetRefillPerSecond = Math.max(0, budgetRefillPerSecond);
+        this.budgetTokens = this.budgetCapacity;
+
+        log.info("Initialized retry engine with backoff {}-{}ms, budget of {} retries refilled at {}/s",
+                this.initialBackoffMs, this.maxBackoffMs, budgetCapacity, budgetRefillPerSecond);
+    }
+
+    /**
+     * Classifies a failed request or append
+     * 
+     * @param error The failure, possibly wrapped
+     * @return true if sending the same rows again may succeed
+     */
+    public boolean isRetriable(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            // Finalized or missing streams, schema mismatches, offset errors and bad rows fail again on retry
+            if (cause instanceof Exceptions.StorageException
+                    || cause instanceof Exceptions.AppendSerializtionError) {
+                countError(cause.getClass().getSimpleName());
+                return false;
+            }
+            if (cause instanceof ApiException) {
+                Status.Code code = Status.Code.valueOf(((ApiException) cause).getStatusCode().getCode().name());
+                countError(code.name());
+                return RETRIABLE_CODES.contains(code);
+            }
+            if (cause instanceof BigQueryException) {
+                BigQueryException bigQueryException = (BigQueryException) cause;
+                BigQueryError bigQueryError = bigQueryException.getError();
+                countError(bigQueryError != null ? bigQueryError.getReason() : "BigQueryException");
+                return bigQueryException.isRetryable() || isRetriable(bigQueryError);
+            }
+        }
+
+        Status.Code code = Status.fromThrowable(error).getCode();
+        if (code != Status.Code.UNKNOWN) {
+            countError(code.name());
+            return RETRIABLE_CODES.contains(code);
+        }
+
+        // Transport failures below gRPC, such as a reset connection
+        countError(error.getClass().getSimpleName());
+        return error instanceof IOException;
+    }
+
+    /**
+     * Classifies an insertAll row error by its reason
+     */
+    public boolean isRetriable(BigQueryError error) {
+        if (error == null) {
+            return false;
+        }
+        String message = error.getMessage();
+        return RETRIABLE_REASONS.contains(error.getReason())
+                || (message != null && (message.contains("timeout") || message.contains("temporarily unavailable")));
+    }
+
+    /**
+     * Schedules a retry after a jittered backoff if the retry budget allows it
+     * 
+     * @param attempt Retry attempt number (1-based), used for the backoff
+     * @param retry The retry to run
+     * @param executor Executor the retry is run on once the backoff has elapsed
+     * @return false if the retry budget is exhausted and the retry was not scheduled
+     */
+    public boolean schedule(int attempt, Runnable retry, Executor executor) {
+        if (!tryAcquire(attempt)) {
+            return false;
+        }
+
+        long backoffMs = backoffMillis(attempt);
+        log.info("Retry attempt {} after {}ms backoff", attempt, backoffMs);
+        timer.schedule(() -> {
+            try {
+                executor.execute(retry);
+            } catch (RejectedExecutionException e) {
+                // The owner is shutting down, finish the retry here rather than drop it
+                retry.run();
+            }
+        }, backoffMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Takes one retry from the budget, for callers that delay the retry themselves
+     * 
+     * @param attempt Retry attempt number (1-based)
+     * @return false if the retry budget is exhausted
+     */
+    public boolean tryAcquire(int attempt) {
+        if (!tryAcquireBudget()) {
+            retriesDenied.incrementAndGet();
+            log.warn("Retry budget exhausted, not retrying (attempt {})", attempt);
+            return false;
+        }
+        retriesScheduled.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Full jitter: a uniformly random delay between zero and the capped exponential backoff
+     */
+    long backoffMillis(int attempt) {
+        long ceiling = initialBackoffMs << Math.min(Math.max(attempt - 1, 0), 20);
+        return ThreadLocalRandom.current().nextLong(Math.min(ceiling, maxBackoffMs) + 1);
+    }
+
+    private synchronized boolean tryAcquireBudget() {
+        long now = System.nanoTime();
+        budgetTokens = Math.min(budgetCapacity,
+                budgetTokens + (now - budgetRefilledAt) / 1_000_000_000.0 * budgetRefillPerSecond);
+        budgetRefilledAt = now;
+        if (budgetTokens < 1) {
+            return false;
+        }
+        budgetTokens -= 1;
+        return true;
+    }
+
+    private synchronized double availableBudget() {
+        return budgetTokens;
+    }
+
+    private void countError(String code) {
+        errorsByCode.computeIfAbsent(code, ignored -> new AtomicLong()).incrementAndGet();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        timer.shutdown();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "retry";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> errors = new LinkedHashMap<>();
+        errorsByCode.forEach((code, count) -> errors.put(code, count.get()));
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("retriesScheduled", retriesScheduled.get());
+        metrics.put("retriesDenied", retriesDenied.get());
+        metrics.put("budgetAvailable", availableBudget());
+        metrics.put("budgetCapacity", budgetCapacity);
+        metrics.put("errorsByCode", errors);
+        return metrics;
+    }
+}
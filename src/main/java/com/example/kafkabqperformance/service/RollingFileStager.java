@@ -0,0 +1,195 @@
+package com.example.kafkabqperformance.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Writes rows as newline-delimited JSON into local files that roll by size or age
+ * 
+ * <p>The file being written carries a {@code .part} suffix and is renamed to
+ * {@code .ndjson} when it rolls, so only complete files are ever handed to a load job.
+ * On startup, complete files of a previous run are picked up again and interrupted
+ * {@code .part} files are cut back to their last complete line and completed.</p>
+ */
+@Slf4j
+class RollingFileStager {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String FILE_SUFFIX = ".ndjson";
+
+    private final Path directory;
+    private final String prefix;
+    private final long maxFileBytes;
+    private final long maxFileAgeMs;
+
+    private final List<StagedFile> completed = new ArrayList<>();
+    private BufferedWriter writer;
+    private Path currentFile;
+    private long currentBytes;
+    private long currentRows;
+    private long openedAt;
+    private long sequence;
+
+    RollingFileStager(Path directory, String prefix, long maxFileBytes, long maxFileAgeMs) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxFileBytes = Math.max(1, maxFileBytes);
+        this.maxFileAgeMs = Math.max(1, maxFileAgeMs);
+
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(path -> path.getFileName().toString().startsWith(prefix)).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(PART_SUFFIX)) {
+                truncateToLastLine(file);
+                Path complete = directory.resolve(name.substring(0, name.length() - PART_SUFFIX.length()) + FILE_SUFFIX);
+                Files.move(file, complete, StandardCopyOption.ATOMIC_MOVE);
+                file = complete;
+            } else if (!name.endsWith(FILE_SUFFIX)) {
+                continue;
+            }
+            completed.add(new StagedFile(file, countLines(file), Files.size(file)));
+        }
+        if (!completed.isEmpty()) {
+            log.info("Recovered {} staged files from {}", completed.size(), directory);
+        }
+    }
+
+    /**
+     * Appends rows to the current file, rolling it once it has reached the size limit
+     * 
+     * @param lines One JSON document per row, without line breaks
+     */
+    synchronized void append(List<String> lines) throws IOException {
+        if (writer == null) {
+            open();
+        }
+        for (String line : lines) {
+            writer.write(line);
+            writer.write('\n');
+            currentBytes += line.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        currentRows += lines.size();
+        if (currentBytes >= maxFileBytes) {
+            roll();
+        }
+    }
+
+    /**
+     * Rolls the current file if it is older than the age limit
+     */
+    synchronized void rollIfDue() throws IOException {
+        if (writer != null && System.currentTimeMillis() - openedAt >= maxFileAgeMs) {
+            roll();
+        }
+    }
+
+    /**
+     * Completes the current file, if it has any rows
+     */
+    synchronized void roll() throws IOException {
+        if (writer == null) {
+            return;
+        }
+        writer.close();
+        writer = null;
+
+        String name = currentFile.getFileName().toString();
+        Path complete = directory.resolve(name.substring(0, name.length() - PART_SUFFIX.length()) + FILE_SUFFIX);
+        Files.move(currentFile, complete, StandardCopyOption.ATOMIC_MOVE);
+        completed.add(new StagedFile(complete, currentRows, currentBytes));
+        log.info("Rolled staged file {} with {} rows ({} bytes)", complete.getFileName(), currentRows, currentBytes);
+    }
+
+    /**
+     * @return files completed since the last call, oldest first
+     */
+    synchronized List<StagedFile> takeCompleted() {
+        List<StagedFile> files = new ArrayList<>(completed);
+        completed.clear();
+        return files;
+    }
+
+    synchronized long getCurrentRows() {
+        return writer == null ? 0 : currentRows;
+    }
+
+    synchronized long getCurrentBytes() {
+        return writer == null ? 0 : currentBytes;
+    }
+
+    private void open() throws IOException {
+        currentFile = directory.resolve(String.format("%s-%d-%06d%s", prefix, System.currentTimeMillis(), sequence++, PART_SUFFIX));
+        writer = Files.newBufferedWriter(currentFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        currentBytes = 0;
+        currentRows = 0;
+        openedAt = System.currentTimeMillis();
+    }
+
+    private static void truncateToLastLine(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long position = raf.length();
+            while (position > 0) {
+                raf.seek(position - 1);
+                if (raf.read() == '\n') {
+                    break;
+                }
+                position--;
+            }
+            raf.setLength(position);
+        }
+    }
+
+    private static long countLines(Path file) throws IOException {
+        try (Stream<String> lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            return lines.count();
+        }
+    }
+
+    /**
+     * A complete staged file, ready to be loaded
+     */
+    static final class StagedFile {
+        private final Path path;
+        private final long rows;
+        private final long bytes;
+
+        StagedFile(Path path, long rows, long bytes) {
+            this.path = path;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getRows() {
+            return rows;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+}
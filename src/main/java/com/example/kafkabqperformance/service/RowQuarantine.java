@@ -0,0 +1,114 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded holding area for rows that BigQuery rejected individually and that will not be retried
+ * 
+ * <p>Rows are kept with their rejection reason so they can be inspected through the
+ * metrics endpoint. When the quarantine is full the oldest rows are evicted and counted.</p>
+ */
+@Component
+@Slf4j
+public class RowQuarantine implements MetricsSource {
+
+    private static final int RECENT_ROWS_IN_METRICS = 10;
+
+    private final int capacity;
+    private final Deque<QuarantinedRow> rows = new ArrayDeque<>();
+
+    private final AtomicLong quarantinedRows = new AtomicLong(0);
+    private final AtomicLong evictedRows = new AtomicLong(0);
+
+    public RowQuarantine(@Value("${bigquery.quarantine.capacity:1000}") int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Quarantines one rejected row
+     * 
+     * @param sink Name of the sink that rejected the row
+     * @param message The rejected message
+     * @param reason Error reported for the row
+     */
+    public void quarantine(String sink, KafkaMessage message, String reason) {
+        log.warn("Quarantined row {} from {} sink: {}", message.getId(), sink, reason);
+        quarantinedRows.incrementAndGet();
+        synchronized (rows) {
+            if (rows.size() >= capacity) {
+                rows.pollFirst();
+                evictedRows.incrementAndGet();
+            }
+            rows.addLast(new QuarantinedRow(sink, message, reason, Instant.now()));
+        }
+    }
+
+    public int size() {
+        synchronized (rows) {
+            return rows.size();
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "quarantine";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        List<Map<String, Object>> recent = new ArrayList<>();
+        int held;
+        synchronized (rows) {
+            held = rows.size();
+            Iterator<QuarantinedRow> newestFirst = rows.descendingIterator();
+            while (newestFirst.hasNext() && recent.size() < RECENT_ROWS_IN_METRICS) {
+                recent.add(newestFirst.next().toMetrics());
+            }
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("heldRows", held);
+        metrics.put("capacity", capacity);
+        metrics.put("quarantinedRows", quarantinedRows.get());
+        metrics.put("evictedRows", evictedRows.get());
+        metrics.put("recentRows", recent);
+        return metrics;
+    }
+
+    private static final class QuarantinedRow {
+        private final String sink;
+        private final KafkaMessage message;
+        private final String reason;
+        private final Instant quarantinedAt;
+
+        private QuarantinedRow(String sink, KafkaMessage message, String reason, Instant quarantinedAt) {
+            this.sink = sink;
+            this.message = message;
+            this.reason = reason;
+            this.quarantinedAt = quarantinedAt;
+        }
+
+        private Map<String, Object> toMetrics() {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("id", message.getId());
+            metrics.put("sink", sink);
+            metrics.put("reason", reason);
+            metrics.put("quarantinedAt", quarantinedAt.toString());
+            return metrics;
+        }
+    }
+}
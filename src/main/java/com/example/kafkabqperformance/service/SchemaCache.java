@@ -0,0 +1,139 @@
+package com.example.kafkabqperformance.service;
+
+import com.google.cloud.bigquery.storage.v1.ProtoSchema;
+import com.google.cloud.bigquery.storage.v1.TableSchema;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Local copy of the translated table schema and its protobuf schema, so a starting pod can build
+ * its writers without waiting for the table metadata
+ * 
+ * <p>One file per table, stamped with a format version and the time it was written. Whoever loads
+ * a cached schema is expected to validate it against BigQuery in the background and store the
+ * current one if it differs. Files are replaced atomically, so a crash never leaves a partial copy.</p>
+ */
+@Component
+@Slf4j
+public class SchemaCache {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final boolean enabled;
+    private final Path directory;
+
+    public SchemaCache(
+            @Value("${bigquery.schema-cache.enabled:true}") boolean enabled,
+            @Value("${bigquery.schema-cache.directory:/tmp/kafka-bq-schema-cache}") String directory) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+    }
+
+    /**
+     * @param table Table key, e.g. dataset.table
+     * @return The cached schemas, or null if there is no usable copy
+     */
+    public Entry load(String table) {
+        if (!enabled) {
+            return null;
+        }
+        Path file = fileFor(table);
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(stream)) {
+            if (in.readInt() != FORMAT_VERSION || !table.equals(in.readUTF())) {
+                return null;
+            }
+            long storedAt = in.readLong();
+            TableSchema tableSchema = TableSchema.parseFrom(readBlock(in));
+            byte[] protoSchema = readBlock(in);
+            Entry entry = new Entry(tableSchema, protoSchema.length > 0 ? ProtoSchema.parseFrom(protoSchema) : null, storedAt);
+            log.info("Loaded cached schema of {} ({} columns) from {}", table, tableSchema.getFieldsCount(), file);
+            return entry;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable schema cache {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param protoSchema Protobuf schema generated for the table schema, or null if none was built
+     */
+    public void store(String table, TableSchema tableSchema, ProtoSchema protoSchema) {
+        if (!enabled) {
+            return;
+        }
+        Path file = fileFor(table);
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try (OutputStream stream = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(stream)) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(table);
+                out.writeLong(System.currentTimeMillis());
+                writeBlock(out, tableSchema.toByteArray());
+                writeBlock(out, protoSchema != null ? protoSchema.toByteArray() : new byte[0]);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Stored schema of {} in {}", table, file);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to store the schema of {} in {}: {}", table, file, e.getMessage());
+        }
+    }
+
+    private Path fileFor(String table) {
+        return directory.resolve(table.replaceAll("[^A-Za-z0-9_.-]", "_") + ".schema");
+    }
+
+    private static byte[] readBlock(DataInputStream in) throws IOException {
+        byte[] block = new byte[in.readInt()];
+        in.readFully(block);
+        return block;
+    }
+
+    private static void writeBlock(DataOutputStream out, byte[] block) throws IOException {
+        out.writeInt(block.length);
+        out.write(block);
+    }
+
+    /**
+     * A cached table schema with the protobuf schema generated from it
+     */
+    public static final class Entry {
+        private final TableSchema tableSchema;
+        private final ProtoSchema protoSchema;
+        private final long storedAt;
+
+        private Entry(TableSchema tableSchema, ProtoSchema protoSchema, long storedAt) {
+            this.tableSchema = tableSchema;
+            this.protoSchema = protoSchema;
+            this.storedAt = storedAt;
+        }
+
+        public TableSchema getTableSchema() {
+            return tableSchema;
+        }
+
+        public ProtoSchema getProtoSchema() {
+            return protoSchema;
+        }
+
+        public long getStoredAt() {
+            return storedAt;
+        }
+    }
+}
@@ -1,14 +1,26 @@
 package com.example.kafkabqperformance.service;
 
 import com.google.cloud.bigquery.Field;
+import com.google.cloud.bigquery.FieldList;
 import com.google.cloud.bigquery.Schema;
+import com.google.cloud.bigquery.storage.v1.ProtoSchema;
 import com.google.cloud.bigquery.storage.v1.TableFieldSchema;
 import com.google.cloud.bigquery.storage.v1.TableSchema;
+import com.google.protobuf.Descriptors;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Utility class to convert between BigQuery Schema and Storage API TableSchema
+ * 
+ * <p>Nested records are translated recursively to any depth. Row encoders, which carry the
+ * protobuf descriptor and the compiled field plan, are cached per table and rebuilt only
+ * when the table's schema changes.</p>
  */
 public class SchemaTranslator {
+
+    private static final Map<String, CachedEncoder> ENCODERS = new ConcurrentHashMap<>();
     
     /**
      * Converts a BigQuery Schema to TableSchema for BigQuery Storage Write API
@@ -18,58 +30,68 @@ public class SchemaTranslator {
      */
     public static TableSchema toTableSchema(Schema bqSchema) {
         TableSchema.Builder builder = TableSchema.newBuilder();
-        
-        bqSchema.getFields().forEach(field -> {
-            TableFieldSchema.Builder fieldBuilder = TableFieldSchema.newBuilder()
-                .setName(field.getName())
-                .setType(convertType(field.getType().name()));
-            
-            if (field.getMode() != null) {
-                fieldBuilder.setMode(convertMode(field.getMode().name()));
-            } else {
-                // Always set a default mode if null to avoid NPE
-                fieldBuilder.setMode(TableFieldSchema.Mode.NULLABLE);
-            }
-            
-            if (field.getSubFields() != null && !field.getSubFields().isEmpty()) {
-                for (Field subField : field.getSubFields()) {
-                    TableFieldSchema.Builder subFieldBuilder = TableFieldSchema.newBuilder()
-                        .setName(subField.getName())
-                        .setType(convertType(subField.getType().name()));
-                    
-                    // Always set a mode for subfields to avoid NPE
-                    if (subField.getMode() != null) {
-                        subFieldBuilder.setMode(convertMode(subField.getMode().name()));
-                    } else {
-                        subFieldBuilder.setMode(TableFieldSchema.Mode.NULLABLE);
-                    }
-                    
-                    // Handle recursive nested fields if present
-                    if (subField.getSubFields() != null && !subField.getSubFields().isEmpty()) {
-                        for (Field nestedSubField : subField.getSubFields()) {
-                            TableFieldSchema.Builder nestedFieldBuilder = TableFieldSchema.newBuilder()
-                                .setName(nestedSubField.getName())
-                                .setType(convertType(nestedSubField.getType().name()));
-                                
-                            if (nestedSubField.getMode() != null) {
-                                nestedFieldBuilder.setMode(convertMode(nestedSubField.getMode().name()));
-                            } else {
-                                nestedFieldBuilder.setMode(TableFieldSchema.Mode.NULLABLE);
-                            }
-                            
-                            subFieldBuilder.addFields(nestedFieldBuilder.build());
-                        }
-                    }
-                    
-                    fieldBuilder.addFields(subFieldBuilder.build());
-                }
+        for (Field field : bqSchema.getFields()) {
+            builder.addFields(toFieldSchema(field));
+        }
+        return builder.build();
+    }
+
+    private static TableFieldSchema toFieldSchema(Field field) {
+        TableFieldSchema.Builder builder = TableFieldSchema.newBuilder()
+            .setName(field.getName())
+            .setType(convertType(field.getType().name()))
+            // Always set a mode, a null mode means NULLABLE
+            .setMode(field.getMode() != null ? convertMode(field.getMode().name()) : TableFieldSchema.Mode.NULLABLE);
+
+        if (field.getDescription() != null) {
+            builder.setDescription(field.getDescription());
+        }
+        if (field.getMaxLength() != null) {
+            builder.setMaxLength(field.getMaxLength());
+        }
+        if (field.getPrecision() != null) {
+            builder.setPrecision(field.getPrecision());
+        }
+        if (field.getScale() != null) {
+            builder.setScale(field.getScale());
+        }
+
+        FieldList subFields = field.getSubFields();
+        if (subFields != null) {
+            for (Field subField : subFields) {
+                builder.addFields(toFieldSchema(subField));
             }
-            
-            builder.addFields(fieldBuilder.build());
-        });
-        
+        }
         return builder.build();
     }
+
+    /**
+     * Returns the row encoder for a table, building it only if the table has no encoder yet
+     * or its schema differs from the one the cached encoder was built for
+     * 
+     * @param table Table the rows are written to, e.g. dataset.table
+     * @param tableSchema Current schema of the table
+     */
+    public static ProtoRowEncoder encoderFor(String table, TableSchema tableSchema) throws Descriptors.DescriptorValidationException {
+        return encoderFor(table, tableSchema, null);
+    }
+
+    /**
+     * Like {@link #encoderFor(String, TableSchema)}, restoring the descriptor from a protobuf schema
+     * generated earlier for the same table schema when the encoder has to be built
+     */
+    public static ProtoRowEncoder encoderFor(String table, TableSchema tableSchema, ProtoSchema protoSchema)
+            throws Descriptors.DescriptorValidationException {
+        CachedEncoder cached = ENCODERS.get(table);
+        if (cached != null && cached.tableSchema.equals(tableSchema)) {
+            return cached.encoder;
+        }
+        ProtoRowEncoder encoder = protoSchema != null
+                ? new ProtoRowEncoder(tableSchema, protoSchema)
+                : new ProtoRowEncoder(tableSchema);
+        ENCODERS.put(table, new CachedEncoder(tableSchema, encoder));
+        return encoder;
+    }
     
     /**
      * Convert BigQuery type names to Storage API type enum
@@ -77,6 +99,7 @@ public class SchemaTranslator {
     private static TableFieldSchema.Type convertType(String typeName) {
         switch (typeName) {
             case "STRING": return TableFieldSchema.Type.STRING;
+            case "BYTES": return TableFieldSchema.Type.BYTES;
             case "INT64": case "INTEGER": return TableFieldSchema.Type.INT64;
             case "FLOAT64": case "FLOAT": return TableFieldSchema.Type.DOUBLE;
             case "BOOL": case "BOOLEAN": return TableFieldSchema.Type.BOOL;
@@ -85,8 +108,12 @@ public class SchemaTranslator {
             case "DATE": return TableFieldSchema.Type.DATE;
             case "TIME": return TableFieldSchema.Type.TIME;
             case "NUMERIC": return TableFieldSchema.Type.NUMERIC;
+            case "BIGNUMERIC": return TableFieldSchema.Type.BIGNUMERIC;
+            case "GEOGRAPHY": return TableFieldSchema.Type.GEOGRAPHY;
+            case "JSON": return TableFieldSchema.Type.JSON;
+            case "INTERVAL": return TableFieldSchema.Type.INTERVAL;
             case "RECORD": case "STRUCT": return TableFieldSchema.Type.STRUCT;
-            default: return TableFieldSchema.Type.STRING; // Default
+            default: return TableFieldSchema.Type.STRING; // Types newer than this client
         }
     }
     
@@ -100,4 +127,14 @@ public class SchemaTranslator {
             case "NULLABLE": default: return TableFieldSchema.Mode.NULLABLE;
         }
     }
-} 
\ No newline at end of file
+
+    private static final class CachedEncoder {
+        private final TableSchema tableSchema;
+        private final ProtoRowEncoder encoder;
+
+        private CachedEncoder(TableSchema tableSchema, ProtoRowEncoder encoder) {
+            this.tableSchema = tableSchema;
+            this.encoder = encoder;
+        }
+    }
+}
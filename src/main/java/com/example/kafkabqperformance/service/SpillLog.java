@@ -0,0 +1,336 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Append-only log on local disk for batches a sink could not deliver to BigQuery
+ * 
+ * <p>The log is a sequence of fixed-size, memory-mapped segment files. Every record holds
+ * one batch of one sink, serialized as JSON and deflated, behind a header with the
+ * compressed length, the uncompressed length and a CRC32 of the compressed bytes. The
+ * unwritten tail of a segment is zero, so a zero length marks the end of its records.
+ * Full segments are sealed and handed to the {@link SpillReplayer}, which deletes them
+ * once their batches have been delivered again. Segments left over from a previous run
+ * are picked up on startup.</p>
+ */
+@Component
+@Slf4j
+public class SpillLog implements MetricsSource {
+
+    private static final int HEADER_BYTES = 12;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final ObjectMapper objectMapper;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSizeBytes;
+    private final long maxTotalBytes;
+
+    private final ConcurrentLinkedDeque<Path> sealedSegments = new ConcurrentLinkedDeque<>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private Path activeSegment;
+    private MappedByteBuffer activeBuffer;
+    private long nextSequence;
+
+    private final AtomicLong spilledBatches = new AtomicLong(0);
+    private final AtomicLong spilledRows = new AtomicLong(0);
+    private final AtomicLong rejectedRows = new AtomicLong(0);
+    private final AtomicLong corruptRecords = new AtomicLong(0);
+    private final AtomicLong diskBytes = new AtomicLong(0);
+
+    public SpillLog(
+            ObjectMapper objectMapper,
+            @Value("${performance.spill.enabled:true}") boolean enabled,
+            @Value("${performance.spill.directory:${java.io.tmpdir}/kafka-bq-spill}") String directory,
+            @Value("${performance.spill.segment-size-bytes:67108864}") int segmentSizeBytes,
+            @Value("${performance.spill.max-total-bytes:1073741824}") long maxTotalBytes) throws IOException {
+        this.objectMapper = objectMapper;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.segmentSizeBytes = Math.max(1 << 20, segmentSizeBytes);
+        this.maxTotalBytes = maxTotalBytes;
+
+        if (enabled) {
+            recover();
+        }
+        log.info("Initialized spill log (enabled: {}) in {} with {} segments to replay",
+                enabled, this.directory, sealedSegments.size());
+    }
+
+    /**
+     * Picks up the segments of a previous run, oldest first, as segments to replay
+     */
+    private void recover() throws IOException {
+        Files.createDirectories(directory);
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(SpillLog::isSegment)
+                    .sorted(Comparator.comparingLong(SpillLog::sequenceOf))
+                    .collect(Collectors.toList());
+        }
+        for (Path segment : segments) {
+            sealedSegments.addLast(segment);
+            diskBytes.addAndGet(Files.size(segment));
+            nextSequence = Math.max(nextSequence, sequenceOf(segment) + 1);
+        }
+    }
+
+    /**
+     * Appends a batch that could not be delivered
+     * 
+     * @param sink Name of the sink the batch belongs to
+     * @param messages The undelivered messages
+     * @return false if the log is disabled, full or failed, in which case the batch is lost
+     */
+    public boolean append(String sink, List<KafkaMessage> messages) {
+        if (messages.isEmpty()) {
+            return true;
+        }
+        if (!enabled) {
+            rejectedRows.addAndGet(messages.size());
+            return false;
+        }
+
+        Path segment;
+        try {
+            byte[] record = serialize(sink, messages);
+            synchronized (this) {
+                if (activeBuffer == null || activeBuffer.remaining() < record.length) {
+                    if (diskBytes.get() + segmentSizeBytes > maxTotalBytes) {
+                        log.error("Spill log is full ({} bytes on disk), dropping {} rows of {} sink",
+                                diskBytes.get(), messages.size(), sink);
+                        rejectedRows.addAndGet(messages.size());
+                        return false;
+                    }
+                    // Oversized batches get a segment of their own, with room for the end marker
+                    roll(Math.max(segmentSizeBytes, record.length + HEADER_BYTES));
+                }
+                activeBuffer.put(record);
+                segment = activeSegment;
+            }
+        } catch (IOException e) {
+            log.error("Failed to spill {} rows of {} sink", messages.size(), sink, e);
+            rejectedRows.addAndGet(messages.size());
+            return false;
+        }
+
+        spilledBatches.incrementAndGet();
+        spilledRows.addAndGet(messages.size());
+        log.warn("Spilled {} undeliverable rows of {} sink to {}", messages.size(), sink, segment);
+        return true;
+    }
+
+    /**
+     * Serializes and deflates one batch into a complete record, header included
+     */
+    private byte[] serialize(String sink, List<KafkaMessage> messages) throws IOException {
+        List<byte[]> rawPayloads = messages.stream().map(KafkaMessage::getRawPayload).collect(Collectors.toList());
+        byte[] json = objectMapper.writeValueAsBytes(new SpilledBatch(sink, messages, rawPayloads));
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 2 + 64);
+        byte[] chunk = new byte[8192];
+        synchronized (deflater) {
+            deflater.reset();
+            deflater.setInput(json);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk);
+                compressed.write(chunk, 0, length);
+            }
+        }
+        byte[] data = compressed.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + data.length);
+        record.putInt(data.length);
+        record.putInt(json.length);
+        record.putInt((int) crc.getValue());
+        record.put(data);
+        return record.array();
+    }
+
+    /**
+     * Seals the active segment and maps a new one
+     */
+    private void roll(int size) throws IOException {
+        seal();
+        Path segment = directory.resolve(SEGMENT_PREFIX + nextSequence++ + SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            activeBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        activeSegment = segment;
+        diskBytes.addAndGet(size);
+    }
+
+    private void seal() {
+        if (activeBuffer == null) {
+            return;
+        }
+        activeBuffer.force();
+        sealedSegments.addLast(activeSegment);
+        activeBuffer = null;
+        activeSegment = null;
+    }
+
+    /**
+     * Returns the oldest segment waiting for replay, sealing the active one if nothing else is waiting
+     */
+    public synchronized Path nextSegmentToReplay() {
+        if (sealedSegments.isEmpty() && activeBuffer != null && activeBuffer.position() > 0) {
+            seal();
+        }
+        return sealedSegments.peekFirst();
+    }
+
+    /**
+     * Reads the batches of a sealed segment, stopping at the end marker or at the first corrupt record
+     */
+    public List<SpilledBatch> read(Path segment) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        List<SpilledBatch> batches = new ArrayList<>();
+        Inflater inflater = new Inflater();
+        try {
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int length = buffer.getInt();
+                int uncompressedLength = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() || uncompressedLength < 0) {
+                    break;
+                }
+                byte[] compressed = new byte[length];
+                buffer.get(compressed);
+
+                CRC32 crc = new CRC32();
+                crc.update(compressed);
+                if ((int) crc.getValue() != checksum) {
+                    corruptRecords.incrementAndGet();
+                    log.error("Corrupt record in spill segment {}, skipping the rest of the segment", segment);
+                    break;
+                }
+
+                inflater.reset();
+                inflater.setInput(compressed);
+                byte[] json = new byte[uncompressedLength];
+                inflater.inflate(json);
+                SpilledBatch batch = objectMapper.readValue(json, SpilledBatch.class);
+                for (int i = 0; batch.getRawPayloads() != null && i < batch.getRawPayloads().size(); i++) {
+                    batch.getMessages().get(i).setRawPayload(batch.getRawPayloads().get(i));
+                }
+                batches.add(batch);
+            }
+        } catch (DataFormatException e) {
+            corruptRecords.incrementAndGet();
+            log.error("Corrupt compressed record in spill segment {}, skipping the rest of the segment", segment, e);
+        } finally {
+            inflater.end();
+        }
+        return batches;
+    }
+
+    /**
+     * Deletes a segment whose batches have all been replayed
+     */
+    public void delete(Path segment) throws IOException {
+        long size = Files.size(segment);
+        Files.deleteIfExists(segment);
+        sealedSegments.remove(segment);
+        diskBytes.addAndGet(-size);
+        log.info("Deleted replayed spill segment {}", segment);
+    }
+
+    public long getSpilledBatches() {
+        return spilledBatches.get();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+    }
+
+    private static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (activeBuffer != null) {
+            activeBuffer.force();
+        }
+        deflater.end();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "spillLog";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("enabled", enabled);
+        metrics.put("segmentsToReplay", sealedSegments.size());
+        metrics.put("diskBytes", diskBytes.get());
+        metrics.put("maxTotalBytes", maxTotalBytes);
+        metrics.put("spilledBatches", spilledBatches.get());
+        metrics.put("spilledRows", spilledRows.get());
+        metrics.put("rejectedRows", rejectedRows.get());
+        metrics.put("corruptRecords", corruptRecords.get());
+        return metrics;
+    }
+
+    /**
+     * One spilled batch; raw payloads are kept alongside because they are not part of the message JSON
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SpilledBatch {
+        private String sink;
+        private List<KafkaMessage> messages;
+        private List<byte[]> rawPayloads;
+    }
+}
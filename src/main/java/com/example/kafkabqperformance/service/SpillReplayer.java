@@ -0,0 +1,179 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the {@link SpillLog} back into the sinks at a controlled rate
+ * 
+ * <p>Segments are replayed oldest first, one batch at a time, through the same write
+ * service that spilled them, and deleted once all their batches have been replayed.
+ * Rows that fail again are spilled again by the sink, so a replayed batch is never lost;
+ * a new spill during replay means BigQuery has not recovered yet, and replay backs off
+ * exponentially until a pass completes without one.</p>
+ */
+@Component
+@Slf4j
+public class SpillReplayer implements MetricsSource {
+
+    private final SpillLog spillLog;
+    private final Map<String, BigQueryWriteService> sinks = new LinkedHashMap<>();
+    private final long intervalMs;
+    private final long maxBackoffMs;
+    private final int rowsPerSecond;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "spill-replayer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Path currentSegment;
+    private int replayedBatches;
+    private volatile long backoffMs;
+
+    private final AtomicLong replayedRows = new AtomicLong(0);
+    private final AtomicLong replayedSegments = new AtomicLong(0);
+    private final AtomicLong failedPasses = new AtomicLong(0);
+
+    @Autowired
+    public SpillReplayer(
+            SpillLog spillLog,
+            @Qualifier("legacyBigQueryWriteService") BigQueryWriteService legacyBigQueryWriteService,
+            @Qualifier("writeApiBigQueryWriteService") BigQueryWriteService writeApiBigQueryWriteService,
+            @Value("${performance.spill.replay-interval-ms:5000}") long intervalMs,
+            @Value("${performance.spill.replay-max-backoff-ms:300000}") long maxBackoffMs,
+            @Value("${performance.spill.replay-rows-per-second:1000}") int rowsPerSecond) {
+        this.spillLog = spillLog;
+        this.intervalMs = Math.max(100, intervalMs);
+        this.maxBackoffMs = Math.max(this.intervalMs, maxBackoffMs);
+        this.rowsPerSecond = Math.max(1, rowsPerSecond);
+        this.backoffMs = this.intervalMs;
+
+        sinks.put("legacy", legacyBigQueryWriteService);
+        sinks.put("writeApi", writeApiBigQueryWriteService);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (spillLog.isEnabled()) {
+            scheduler.schedule(this::replayOnce, intervalMs, TimeUnit.MILLISECONDS);
+            log.info("Started spill replayer at up to {} rows/s", rowsPerSecond);
+        }
+    }
+
+    private void replayOnce() {
+        long delayMs;
+        try {
+            if (replaySegment()) {
+                backoffMs = intervalMs;
+                delayMs = intervalMs;
+            } else {
+                delayMs = nextBackoff();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (Exception e) {
+            log.error("Spill replay failed", e);
+            delayMs = nextBackoff();
+        }
+
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::replayOnce, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private long nextBackoff() {
+        failedPasses.incrementAndGet();
+        long delayMs = backoffMs;
+        backoffMs = Math.min(backoffMs * 2, maxBackoffMs);
+        log.warn("BigQuery has not recovered yet, next spill replay in {}ms", delayMs);
+        return delayMs;
+    }
+
+    /**
+     * Replays the remaining batches of the oldest segment
+     * 
+     * @return false if rows were spilled again while replaying, so replay should back off
+     */
+    private boolean replaySegment() throws Exception {
+        Path segment = spillLog.nextSegmentToReplay();
+        if (segment == null) {
+            return true;
+        }
+        if (!segment.equals(currentSegment)) {
+            currentSegment = segment;
+            replayedBatches = 0;
+        }
+
+        List<SpillLog.SpilledBatch> batches = spillLog.read(segment);
+        while (replayedBatches < batches.size()) {
+            SpillLog.SpilledBatch batch = batches.get(replayedBatches);
+            BigQueryWriteService sink = sinks.get(batch.getSink());
+            if (sink == null) {
+                log.error("Dropping {} spilled rows of unknown sink {}", batch.getMessages().size(), batch.getSink());
+                replayedBatches++;
+                continue;
+            }
+
+            long spillsBefore = spillLog.getSpilledBatches();
+            long start = System.currentTimeMillis();
+            sink.writeToBigQuery(batch.getMessages());
+            sink.flushAsync().get();
+            replayedBatches++;
+            replayedRows.addAndGet(batch.getMessages().size());
+
+            if (spillLog.getSpilledBatches() > spillsBefore) {
+                return false;
+            }
+
+            // Pace the replay so it does not compete with live traffic for quota
+            long budgetMs = batch.getMessages().size() * 1000L / rowsPerSecond;
+            long sleepMs = budgetMs - (System.currentTimeMillis() - start);
+            if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+            }
+        }
+
+        spillLog.delete(segment);
+        currentSegment = null;
+        replayedSegments.incrementAndGet();
+        return true;
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "spillReplay";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("replayedRows", replayedRows.get());
+        metrics.put("replayedSegments", replayedSegments.get());
+        metrics.put("failedPasses", failedPasses.get());
+        metrics.put("currentBackoffMs", backoffMs);
+        return metrics;
+    }
+}
@@ -0,0 +1,27 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.api.core.ApiFuture;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.protobuf.Descriptors;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Appends batches of messages to a Storage Write API stream in one wire format
+ */
+interface StreamAppender extends AutoCloseable {
+
+    /**
+     * Serializes the messages and sends them as a single append request
+     * 
+     * @param messages Messages to append, in order
+     * @return Future completed with the append response
+     */
+    ApiFuture<AppendRowsResponse> append(List<KafkaMessage> messages)
+            throws IOException, Descriptors.DescriptorValidationException;
+
+    @Override
+    void close();
+}
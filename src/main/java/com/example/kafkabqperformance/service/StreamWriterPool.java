@@ -0,0 +1,370 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.api.core.ApiFuture;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.Exceptions;
+import com.google.protobuf.Descriptors;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of stream writers on the same table, each with its own gRPC connection and in-flight window
+ * 
+ * <p>Appends are dispatched to the caller's preferred writer (shard affinity) while it has
+ * room, otherwise to the least-loaded healthy writer. When every writer's window is full the
+ * pool grows up to its maximum size. Writers that fail repeatedly, or whose connection is
+ * reported unavailable, are replaced in the background; the broken writer is closed once its
+ * outstanding appends have completed. A writer that is being replaced is never handed out,
+ * callers wait for its replacement instead.</p>
+ * 
+ * <p>A closed writer does not throw on append, it fails the returned future. An append that fails
+ * because its writer was closed under it ({@link PooledWriter#isRetired()} or
+ * {@link #isWriterClosed(Throwable)}) never reached BigQuery and is for the caller to send again.</p>
+ */
+@Slf4j
+class StreamWriterPool {
+
+    /**
+     * Creates a new connected appender for the pool
+     */
+    @FunctionalInterface
+    interface AppenderFactory {
+        StreamAppender create() throws IOException, Descriptors.DescriptorValidationException, InterruptedException;
+    }
+
+    private final AppenderFactory factory;
+    private final int minSize;
+    private final int maxSize;
+    private final boolean adaptive;
+    private final int maxInflightRequests;
+    private final long maxInflightBytes;
+    private final int failureThreshold;
+
+    private static final long REPLACEMENT_WAIT_MS = 100;
+
+    private final CopyOnWriteArrayList<PooledWriter> writers = new CopyOnWriteArrayList<>();
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "stream-writer-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger nextWriterId = new AtomicInteger(0);
+    private final AtomicLong replacements = new AtomicLong(0);
+    private final AtomicLong growths = new AtomicLong(0);
+    private final AtomicLong replacementWaits = new AtomicLong(0);
+    private final Object replacementSignal = new Object();
+    private volatile boolean closed;
+
+    StreamWriterPool(AppenderFactory factory, int minSize, int maxSize, boolean adaptive,
+                     int maxInflightRequests, long maxInflightBytes, int failureThreshold)
+            throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
+        this.factory = factory;
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(1, Math.max(minSize, maxSize));
+        this.adaptive = adaptive;
+        this.maxInflightRequests = maxInflightRequests;
+        this.maxInflightBytes = maxInflightBytes;
+        this.failureThreshold = Math.max(1, failureThreshold);
+
+        for (int i = 0; i < this.minSize; i++) {
+            writers.add(newWriter());
+        }
+        log.info("Initialized stream writer pool with {} writers (max: {}, adaptive: {})",
+                writers.size(), this.maxSize, adaptive);
+    }
+
+    /**
+     * Creates a pool with the same size and window settings whose writers come from another factory,
+     * used to switch every writer over to a new table schema at once
+     */
+    StreamWriterPool withFactory(AppenderFactory replacementFactory)
+            throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
+        return new StreamWriterPool(replacementFactory, minSize, maxSize, adaptive,
+                maxInflightRequests, maxInflightBytes, failureThreshold);
+    }
+
+    private PooledWriter newWriter() throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
+        return new PooledWriter(nextWriterId.getAndIncrement(), factory.create(),
+                new InFlightWindow(maxInflightRequests, maxInflightBytes));
+    }
+
+    /**
+     * Picks a writer for an append and reserves room in its in-flight window,
+     * blocking while the chosen writer's window is full
+     * 
+     * @param bytes Estimated request size
+     * @param affinity Preferred writer index, typically the caller's shard
+     * @return Writer with reserved capacity; complete the append through it
+     */
+    PooledWriter acquire(long bytes, int affinity) throws InterruptedException {
+        PooledWriter writer = choose(affinity);
+        while (writer == null) {
+            // Every writer is being replaced; wake up on the next replacement, or check again shortly
+            replacementWaits.incrementAndGet();
+            synchronized (replacementSignal) {
+                replacementSignal.wait(REPLACEMENT_WAIT_MS);
+            }
+            writer = choose(affinity);
+        }
+        writer.window.acquire(bytes);
+        return writer;
+    }
+
+    /**
+     * @return a healthy writer, or null while all of them are being replaced
+     */
+    private PooledWriter choose(int affinity) {
+        List<PooledWriter> snapshot = writers;
+        PooledWriter preferred = snapshot.get(Math.floorMod(affinity, snapshot.size()));
+        if (closed) {
+            // The append fails on the closed writer and the caller sends it to the pool that replaced this one
+            return preferred;
+        }
+        if (preferred.isHealthy() && preferred.hasRoom()) {
+            return preferred;
+        }
+
+        PooledWriter leastLoaded = null;
+        for (PooledWriter writer : snapshot) {
+            if (!writer.isHealthy()) {
+                continue;
+            }
+            if (leastLoaded == null || writer.window.getRequests() < leastLoaded.window.getRequests()) {
+                leastLoaded = writer;
+            }
+        }
+
+        if ((leastLoaded == null || !leastLoaded.hasRoom()) && adaptive && snapshot.size() < maxSize) {
+            PooledWriter grown = grow();
+            if (grown != null) {
+                return grown;
+            }
+        }
+        return leastLoaded;
+    }
+
+    private void signalReplacement() {
+        synchronized (replacementSignal) {
+            replacementSignal.notifyAll();
+        }
+    }
+
+    private synchronized PooledWriter grow() {
+        if (writers.size() >= maxSize) {
+            return null;
+        }
+        try {
+            PooledWriter writer = newWriter();
+            writers.add(writer);
+            growths.incrementAndGet();
+            log.info("Stream writer pool grew to {} writers", writers.size());
+            return writer;
+        } catch (Exception e) {
+            log.warn("Failed to add a writer to the stream writer pool: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private void replace(PooledWriter broken) {
+        try {
+            maintenance.submit(() -> replaceNow(broken));
+        } catch (RejectedExecutionException e) {
+            // The pool has been closed, which closes the broken writer too
+        }
+    }
+
+    private void replaceNow(PooledWriter broken) {
+        try {
+            PooledWriter replacement = newWriter();
+            int index = writers.indexOf(broken);
+            if (index >= 0) {
+                writers.set(index, replacement);
+            } else {
+                writers.add(replacement);
+            }
+            replacements.incrementAndGet();
+            log.warn("Replaced broken stream writer {} with writer {}", broken.id, replacement.id);
+        } catch (Exception e) {
+            log.error("Failed to replace broken stream writer {}, will retry on the next failure", broken.id, e);
+            broken.replacing.set(false);
+            signalReplacement();
+            return;
+        }
+        signalReplacement();
+        // close() waits for the broken writer's outstanding appends; appends that picked it just before
+        // it was marked see it retired and are dispatched again
+        broken.retired = true;
+        broken.appender.close();
+    }
+
+    /**
+     * Connection-level failures break the writer immediately; other failures only count towards the threshold.
+     * An append that ran past its deadline counts as one, the connection it was sent on may be stuck,
+     * and so does a writer that closed itself.
+     */
+    private static boolean isConnectionFailure(Throwable error) {
+        Status.Code code = Status.fromThrowable(error).getCode();
+        return code == Status.Code.UNAVAILABLE || code == Status.Code.CANCELLED || code == Status.Code.DEADLINE_EXCEEDED
+                || isWriterClosed(error);
+    }
+
+    /**
+     * @return true if the append failed because its stream writer was already closed, so it was never sent
+     */
+    static boolean isWriterClosed(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof Exceptions.StreamWriterClosedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        closed = true;
+        signalReplacement();
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PooledWriter writer : writers) {
+            writer.appender.close();
+        }
+    }
+
+    Map<String, Object> getMetrics() {
+        List<Map<String, Object>> writerMetrics = new ArrayList<>();
+        long inFlight = 0;
+        long capacity = 0;
+        for (PooledWriter writer : writers) {
+            writerMetrics.add(writer.getMetrics());
+            inFlight += writer.window.getRequests();
+            capacity += writer.window.getMaxRequests();
+        }
+
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("poolSize", writerMetrics.size());
+        metrics.put("maxPoolSize", maxSize);
+        metrics.put("utilization", capacity == 0 ? 0.0 : (double) inFlight / capacity);
+        metrics.put("growths", growths.get());
+        metrics.put("replacements", replacements.get());
+        metrics.put("replacementWaits", replacementWaits.get());
+        metrics.put("writers", writerMetrics);
+        return metrics;
+    }
+
+    /**
+     * One writer in the pool with its window, health and throughput counters
+     */
+    final class PooledWriter {
+        private final int id;
+        private final StreamAppender appender;
+        private final InFlightWindow window;
+        private final long createdAt = System.currentTimeMillis();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+        private final AtomicBoolean replacing = new AtomicBoolean(false);
+        private volatile boolean retired;
+        private final AtomicLong appends = new AtomicLong(0);
+        private final AtomicLong rows = new AtomicLong(0);
+        private final AtomicLong bytes = new AtomicLong(0);
+        private final AtomicLong failures = new AtomicLong(0);
+
+        private PooledWriter(int id, StreamAppender appender, InFlightWindow window) {
+            this.id = id;
+            this.appender = appender;
+            this.window = window;
+        }
+
+        private boolean isHealthy() {
+            return !replacing.get();
+        }
+
+        /**
+         * @return true once the writer has been taken out of the pool, or the pool was closed;
+         *         an append that failed on it did not reach BigQuery and can be sent elsewhere
+         */
+        boolean isRetired() {
+            return retired || closed;
+        }
+
+        private boolean hasRoom() {
+            return window.getRequests() < window.getMaxRequests();
+        }
+
+        /**
+         * Sends the append; the window slot is released again if the request cannot be sent
+         */
+        ApiFuture<AppendRowsResponse> append(List<KafkaMessage> messages, long size)
+                throws IOException, Descriptors.DescriptorValidationException {
+            try {
+                return appender.append(messages);
+            } catch (IOException | Descriptors.DescriptorValidationException | RuntimeException e) {
+                if (isWriterClosed(e)) {
+                    // Counted like a failed call, so a writer that closed itself is replaced
+                    complete(size, 0, e);
+                } else {
+                    window.release(size);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Records the outcome of an append and releases its window slot
+         */
+        void complete(long size, int rowCount, Throwable error) {
+            window.release(size);
+            appends.incrementAndGet();
+            if (error == null) {
+                consecutiveFailures.set(0);
+                rows.addAndGet(rowCount);
+                bytes.addAndGet(size);
+                return;
+            }
+
+            failures.incrementAndGet();
+            int failed = consecutiveFailures.incrementAndGet();
+            if ((isConnectionFailure(error) || failed >= failureThreshold) && replacing.compareAndSet(false, true)) {
+                log.warn("Stream writer {} is unhealthy after {} consecutive failures: {}",
+                        id, failed, error.getMessage());
+                replace(this);
+            }
+        }
+
+        private Map<String, Object> getMetrics() {
+            double uptimeSeconds = Math.max(1, System.currentTimeMillis() - createdAt) / 1000.0;
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("id", id);
+            metrics.put("healthy", isHealthy());
+            metrics.put("inFlightRequests", window.getRequests());
+            metrics.put("appends", appends.get());
+            metrics.put("rows", rows.get());
+            metrics.put("failures", failures.get());
+            metrics.put("consecutiveFailures", consecutiveFailures.get());
+            metrics.put("rowsPerSecond", rows.get() / uptimeSeconds);
+            metrics.put("bytesPerSecond", bytes.get() / uptimeSeconds);
+            return metrics;
+        }
+    }
+}
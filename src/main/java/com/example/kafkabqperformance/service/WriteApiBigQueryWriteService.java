@@ -2,16 +2,20 @@ package com.example.kafkabqperformance.service;
 
 import com.example.kafkabqperformance.model.KafkaMessage;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.kafkabqperformance.monitoring.MetricsSource;
+import com.example.kafkabqperformance.monitoring.WarmupAware;
 import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.cloud.bigquery.BigQuery;
 import com.google.cloud.bigquery.Schema;
 import com.google.cloud.bigquery.TableId;
 import com.google.cloud.bigquery.storage.v1.*;
-import com.google.cloud.bigquery.storage.v1.JsonStreamWriter;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.Descriptors;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import lombok.extern.slf4j.Slf4j;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -19,43 +23,105 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Service("writeApiBigQueryWriteService")
 @Slf4j
-public class WriteApiBigQueryWriteService implements BigQueryWriteService {
+public class WriteApiBigQueryWriteService implements BigQueryWriteService, MetricsSource, WarmupAware {
 
     private final BigQuery bigQuery;
     private final String projectId;
     private final String datasetName;
     private final String tableName;
     private final BigQueryWriteClient writeClient;
-    private JsonStreamWriter streamWriter;
-    private final List<Map<String, Object>> pendingRows = new ArrayList<>();
-    private final AtomicInteger pendingRowCount = new AtomicInteger(0);
+    private final int shardIndex;
+    private final Map<Integer, WriteApiBigQueryWriteService> shards = new ConcurrentHashMap<>();
+    private final DoubleBuffer<KafkaMessage> pendingRows = new DoubleBuffer<>();
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final int flushThreshold;
     private final int maxRetryAttempts;
     private final ObjectMapper objectMapper;
+    private final RowQuarantine quarantine;
+    private final RetryEngine retryEngine;
+    private final SpillLog spillLog;
+    private final AdaptiveThrottler throttler;
+    private final SchemaCache schemaCache;
+    private final AppendWatchdog watchdog;
+    
+    /**
+     * Wire format for appends: "proto" encodes rows directly with a StreamWriter,
+     * "json" goes through JsonStreamWriter
+     */
+    private final String appendFormat;
+    
+    /**
+     * Table schema, row encoder and stream writer pool in use, shared by all shards and replaced as a whole
+     * when the table schema changes. Each pooled writer bounds its outstanding appends by request count and bytes.
+     */
+    private final AtomicReference<WriterGeneration> generation;
+    private final ExecutorService schemaRefresher;
+    private final AtomicBoolean schemaRefreshPending;
+    private final AtomicLong schemaRefreshes;
+    
+    /**
+     * Appends that failed with a schema mismatch on the current writers, held until a schema refresh either
+     * switches the writers or finds the schema unchanged; shared by all shards and guarded by itself
+     */
+    private final List<ParkedAppend> parkedAppends;
+    private final Set<CompletableFuture<Integer>> inFlight = ConcurrentHashMap.newKeySet();
+    private final int maxAppendRows;
+    
+    private final AtomicLong successfulRows = new AtomicLong(0);
+    private final AtomicLong failedRows = new AtomicLong(0);
+    private final AtomicLong appendNanos = new AtomicLong(0);
+    private final AtomicLong completedAppends = new AtomicLong(0);
+    private final AtomicLong rowErrorAppends = new AtomicLong(0);
+    private final AtomicLong timedOutAppends = new AtomicLong(0);
+    private final AtomicLong redispatchedAppends = new AtomicLong(0);
 
     @Autowired
     public WriteApiBigQueryWriteService(
             BigQuery bigQuery,
             BigQueryWriteClient writeClient,
             ObjectMapper objectMapper,
+            RowQuarantine quarantine,
+            RetryEngine retryEngine,
+            SpillLog spillLog,
+            AdaptiveThrottler throttler,
+            SchemaCache schemaCache,
+            AppendWatchdog watchdog,
             @Value("${bigquery.project-id}") String projectId,
             @Value("${bigquery.dataset}") String datasetName,
             @Value("${bigquery.table}") String tableName,
             @Value("${bigquery.flush-threshold:500}") int flushThreshold,
-            @Value("${bigquery.max-retry-attempts:3}") int maxRetryAttempts) throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
+            @Value("${bigquery.max-retry-attempts:3}") int maxRetryAttempts,
+            @Value("${bigquery.write-api.format:proto}") String appendFormat,
+            @Value("${bigquery.write-api.max-inflight-requests:8}") int maxInflightRequests,
+            @Value("${bigquery.write-api.max-inflight-bytes:33554432}") long maxInflightBytes,
+            @Value("${bigquery.write-api.max-append-rows:500}") int maxAppendRows,
+            @Value("${bigquery.write-api.pool.size:1}") int poolSize,
+            @Value("${bigquery.write-api.pool.max-size:4}") int maxPoolSize,
+            @Value("${bigquery.write-api.pool.adaptive:true}") boolean poolAdaptive,
+            @Value("${bigquery.write-api.pool.failure-threshold:3}") int writerFailureThreshold) throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
         this.bigQuery = bigQuery;
         this.projectId = projectId;
         this.datasetName = datasetName;
@@ -64,19 +130,111 @@ public class WriteApiBigQueryWriteService implements BigQueryWriteService {
         this.maxRetryAttempts = maxRetryAttempts;
         this.writeClient = writeClient;
         this.objectMapper = objectMapper;
+        this.quarantine = quarantine;
+        this.retryEngine = retryEngine;
+        this.spillLog = spillLog;
+        this.throttler = throttler;
+        this.schemaCache = schemaCache;
+        this.watchdog = watchdog;
+        this.appendFormat = appendFormat;
+        this.maxAppendRows = Math.max(1, maxAppendRows);
+        this.shardIndex = 0;
         
-        // Initialize the write stream
-        initializeWriteStream();
+        // Initialize the write stream, from the cached schema when there is one so startup does not wait for
+        // the table metadata; the cached copy is validated in the background below
+        SchemaCache.Entry cached = schemaCache.load(tableKey());
+        TableSchema tableSchema;
+        ProtoRowEncoder encoder;
+        if (cached != null) {
+            tableSchema = cached.getTableSchema();
+            encoder = isProtoFormat() ? SchemaTranslator.encoderFor(tableKey(), tableSchema, cached.getProtoSchema()) : null;
+        } else {
+            tableSchema = fetchTableSchema();
+            encoder = createEncoder(tableSchema);
+            schemaCache.store(tableKey(), tableSchema, encoder != null ? encoder.getProtoSchema() : null);
+        }
+        StreamWriterPool writerPool = new StreamWriterPool(() -> createAppender(tableSchema, encoder), poolSize, maxPoolSize,
+                poolAdaptive, maxInflightRequests, maxInflightBytes, writerFailureThreshold);
+        this.generation = new AtomicReference<>(new WriterGeneration(tableSchema, writerPool));
+        this.schemaRefresher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "write-api-schema-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.schemaRefreshPending = new AtomicBoolean(false);
+        this.schemaRefreshes = new AtomicLong(0);
+        this.parkedAppends = new ArrayList<>();
+        if (cached != null) {
+            requestSchemaRefresh("validating the cached schema");
+        }
+        log.info("Initialized BigQuery Storage Write API stream for {}.{} using default stream", datasetName, tableName);
+        
+        log.info("Initialized Write API BigQuery service with flush threshold: {}, max retry attempts: {}, format: {}, writer pool: {}-{}", 
+                flushThreshold, maxRetryAttempts, appendFormat, poolSize, maxPoolSize);
+    }
+
+    /**
+     * Creates a shard instance that shares the client, table schema and writer pool of its parent,
+     * appending through the pool's writer at its own index when it can,
+     * but owns its own pending buffer and flush executor
+     */
+    private WriteApiBigQueryWriteService(WriteApiBigQueryWriteService parent, int shard) {
+        this.bigQuery = parent.bigQuery;
+        this.projectId = parent.projectId;
+        this.datasetName = parent.datasetName;
+        this.tableName = parent.tableName;
+        this.flushThreshold = parent.flushThreshold;
+        this.maxRetryAttempts = parent.maxRetryAttempts;
+        this.writeClient = parent.writeClient;
+        this.objectMapper = parent.objectMapper;
+        this.quarantine = parent.quarantine;
+        this.retryEngine = parent.retryEngine;
+        this.spillLog = parent.spillLog;
+        this.throttler = parent.throttler;
+        this.schemaCache = parent.schemaCache;
+        this.watchdog = parent.watchdog;
+        this.appendFormat = parent.appendFormat;
+        this.maxAppendRows = parent.maxAppendRows;
+        this.generation = parent.generation;
+        this.schemaRefresher = parent.schemaRefresher;
+        this.schemaRefreshPending = parent.schemaRefreshPending;
+        this.schemaRefreshes = parent.schemaRefreshes;
+        this.parkedAppends = parent.parkedAppends;
+        this.shardIndex = shard;
         
-        log.info("Initialized Write API BigQuery service with flush threshold: {}, max retry attempts: {}", 
-                flushThreshold, maxRetryAttempts);
+        log.info("Initialized Write API shard {} for {}.{}", shard, datasetName, tableName);
+    }
+
+    private String defaultStreamName() {
+        return String.format("projects/%s/datasets/%s/tables/%s/streams/_default", projectId, datasetName, tableName);
+    }
+
+    private String tableKey() {
+        return datasetName + "." + tableName;
+    }
+
+    private boolean isProtoFormat() {
+        return !"json".equalsIgnoreCase(appendFormat);
+    }
+
+    private StreamAppender createAppender(TableSchema tableSchema, ProtoRowEncoder encoder)
+            throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
+        if (isProtoFormat()) {
+            return new ProtoStreamAppender(defaultStreamName(), encoder, writeClient);
+        }
+        return new JsonStreamAppender(defaultStreamName(), tableSchema, writeClient);
+    }
+
+    /**
+     * The protobuf descriptor and encoder plan are built once per schema and shared by all shards
+     * (and by the other Write API paths on the same table)
+     */
+    private ProtoRowEncoder createEncoder(TableSchema tableSchema) throws Descriptors.DescriptorValidationException {
+        return isProtoFormat() ? SchemaTranslator.encoderFor(tableKey(), tableSchema) : null;
     }
 
-    private void initializeWriteStream() throws IOException, Descriptors.DescriptorValidationException, InterruptedException {
+    private TableSchema fetchTableSchema() throws IOException {
         try {
-            // Format default stream name directly
-            String defaultStreamName = String.format("projects/%s/datasets/%s/tables/%s", projectId, datasetName, tableName);
-            
             // Get table schema directly from BigQuery
             TableId tableId = TableId.of(datasetName, tableName);
             com.google.cloud.bigquery.Table table = bigQuery.getTable(tableId);
@@ -86,18 +244,132 @@ public class WriteApiBigQueryWriteService implements BigQueryWriteService {
             
             // Convert Schema to TableSchema using our utility class
             Schema bqSchema = table.getDefinition().getSchema();
-            TableSchema tableSchema = SchemaTranslator.toTableSchema(bqSchema);
+            return SchemaTranslator.toTableSchema(bqSchema);
+        } catch (Exception e) {
+            log.error("Failed to fetch the table schema", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Schedules a background schema check unless one is already pending
+     * 
+     * @param reason Why the schema may have changed, for the log
+     */
+    private void requestSchemaRefresh(String reason) {
+        if (!schemaRefreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            schemaRefresher.execute(() -> {
+                try {
+                    refreshSchema(reason);
+                } finally {
+                    schemaRefreshPending.set(false);
+                }
+                // Appends parked while this refresh was already past its check need one of their own
+                boolean waiting;
+                synchronized (parkedAppends) {
+                    waiting = !parkedAppends.isEmpty();
+                }
+                if (waiting) {
+                    requestSchemaRefresh("appends waiting on a schema mismatch");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            schemaRefreshPending.set(false);
+        }
+    }
+
+    /**
+     * Fetches the table schema and, if it changed, builds an encoder and a writer pool for it next to the
+     * current ones and swaps them in. New appends go to the new writers right away, and so do the appends
+     * parked on a schema mismatch; the old pool is closed afterwards, which waits for the appends still in
+     * flight on it. If the schema is unchanged, or cannot be fetched, the parked appends spend an attempt.
+     */
+    private void refreshSchema(String reason) {
+        WriterGeneration current = generation.get();
+        try {
+            TableSchema tableSchema = fetchTableSchema();
+            if (tableSchema.equals(current.tableSchema)) {
+                log.debug("Table schema of {}.{} is unchanged ({})", datasetName, tableName, reason);
+                for (ParkedAppend parked : unparkAll(null)) {
+                    parked.owner.retryOrGiveUp(parked.append, parked.attemptCount, parked.error, true);
+                }
+                return;
+            }
             
-            // Create stream writer with the converted schema
-            streamWriter = JsonStreamWriter.newBuilder(defaultStreamName, tableSchema).build();
+            ProtoRowEncoder encoder = createEncoder(tableSchema);
+            StreamWriterPool writerPool = current.writerPool.withFactory(() -> createAppender(tableSchema, encoder));
+            for (ParkedAppend parked : unparkAll(new WriterGeneration(tableSchema, writerPool))) {
+                parked.owner.redispatch(parked.append, parked.attemptCount);
+            }
+            schemaRefreshes.incrementAndGet();
+            schemaCache.store(tableKey(), tableSchema, encoder != null ? encoder.getProtoSchema() : null);
+            log.info("Table schema of {}.{} changed ({}), switched to new stream writers with {} columns",
+                    datasetName, tableName, reason, tableSchema.getFieldsCount());
             
-            log.info("Initialized BigQuery Storage Write API stream for {}.{} using default stream", datasetName, tableName);
+            current.writerPool.close();
         } catch (Exception e) {
-            log.error("Failed to initialize write stream", e);
-            throw e;
+            log.warn("Unable to refresh the table schema of {}.{} ({}): {}", datasetName, tableName, reason, e.getMessage());
+            for (ParkedAppend parked : unparkAll(null)) {
+                parked.owner.retryOrGiveUp(parked.append, parked.attemptCount, parked.error, true);
+            }
+        }
+    }
+    
+    /**
+     * Holds an append that hit a schema mismatch until the next schema refresh has run
+     * 
+     * @return false if the writers were switched since the append was sent, so it can be sent again right away
+     */
+    private boolean park(PendingAppend append, int attemptCount, Throwable error) {
+        synchronized (parkedAppends) {
+            if (generation.get() != append.sentOn) {
+                return false;
+            }
+            parkedAppends.add(new ParkedAppend(this, append, attemptCount, error));
+            return true;
+        }
+    }
+    
+    /**
+     * Takes all parked appends, switching to the given generation first under the same lock so no append
+     * can park on the old writers after the switch
+     * 
+     * @param next Generation to switch to, or null to keep the current one
+     */
+    private List<ParkedAppend> unparkAll(WriterGeneration next) {
+        synchronized (parkedAppends) {
+            if (next != null) {
+                generation.set(next);
+            }
+            List<ParkedAppend> parked = new ArrayList<>(parkedAppends);
+            parkedAppends.clear();
+            return parked;
         }
     }
 
+    /**
+     * Periodic schema check, so added columns are picked up even while appends keep succeeding
+     */
+    @Scheduled(fixedDelayString = "${bigquery.write-api.schema-check-interval-ms:300000}",
+            initialDelayString = "${bigquery.write-api.schema-check-interval-ms:300000}")
+    public void checkSchema() {
+        requestSchemaRefresh("periodic check");
+    }
+
+    /**
+     * Only INVALID_ARGUMENT says nothing about which part of the request was wrong, so the description
+     * is the one place that tells a schema mismatch apart
+     */
+    private static boolean isSchemaMismatch(Throwable error) {
+        Status status = Status.fromThrowable(error);
+        return status.getCode() == Status.Code.INVALID_ARGUMENT
+                && status.getDescription() != null
+                && status.getDescription().toLowerCase(Locale.ROOT).contains("schema");
+    }
+
     @Override
     public int writeToBigQuery(List<KafkaMessage> messages) {
         if (messages == null || messages.isEmpty()) {
@@ -105,35 +377,8 @@ public class WriteApiBigQueryWriteService implements BigQueryWriteService {
         }
 
         try {
-            for (KafkaMessage message : messages) {
-                // Create a Map for the row
-                Map<String, Object> row = new HashMap<>();
-                row.put("uuid", message.getId());
-                row.put("received_timestamp", Instant.now().toString());
-                row.put("raw_payload", message.getMessage());
-                row.put("processing_timestamp", Instant.now().toString());
-                row.put("http_status_code", 200);
-                
-                // Create the nested api_response object
-                Map<String, Object> apiResponse = new HashMap<>();
-                apiResponse.put("rx_data_id", message.getPriority() != null ? message.getPriority() : 0);
-                apiResponse.put("errors", new ArrayList<String>()); // Empty array
-                apiResponse.put("submitted_date", message.getTimestamp() != null ? message.getTimestamp().toString() : Instant.now().toString());
-                apiResponse.put("process_date", Instant.now().toString());
-                apiResponse.put("aspn_id", 1000);
-                
-                // Put the api_response as a nested object
-                row.put("api_response", apiResponse);
-                row.put("submitted_date", message.getTimestamp() != null ? message.getTimestamp().toString() : Instant.now().toString());
-                row.put("process_date", Instant.now().toString());
-                row.put("aspn_id", 1000);
-                row.put("rx_data_id", message.getPriority() != null ? message.getPriority() : 0);
-                
-                pendingRows.add(row);
-                log.debug("Mapped message to BigQuery schema JSON");
-            }
-            
-            int currentCount = pendingRowCount.addAndGet(messages.size());
+            // Rows are serialized at flush time, on the flush thread
+            int currentCount = pendingRows.addAll(messages);
             log.debug("Added {} messages to pending rows. Total pending: {}", messages.size(), currentCount);
             
             // Auto-flush when threshold is reached
@@ -145,133 +390,349 @@ public class WriteApiBigQueryWriteService implements BigQueryWriteService {
             
             return messages.size();
         } catch (Exception e) {
-            log.error("Error converting messages to JSON", e);
+            log.error("Error buffering messages for the Write API", e);
             return 0;
         }
     }
 
+    @Override
+    public WriteApiBigQueryWriteService forShard(int shard) {
+        if (shard == 0) {
+            return this;
+        }
+        return shards.computeIfAbsent(shard, index -> new WriteApiBigQueryWriteService(this, index));
+    }
+
     @Override
     public int flush() {
-        if (pendingRows.isEmpty()) {
+        AppendWatchdog.Watch watch = watchdog.watch(getMetricsName(), "waiting for a flush");
+        try {
+            return flushAsync().get(watchdog.getFlushTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while flushing to BigQuery", e);
+            return 0;
+        } catch (ExecutionException e) {
+            log.error("Unexpected error during BigQuery flush", e.getCause());
             return 0;
+        } catch (TimeoutException e) {
+            // The appends keep running and complete, retry or spill on their own
+            log.warn("Flush did not complete within {} ms, {} appends still in flight",
+                    watchdog.getFlushTimeoutMs(), inFlight.size());
+            return 0;
+        } finally {
+            watch.close();
+        }
+    }
+    
+    /**
+     * Dispatches the pending rows as one or more appends without waiting for them.
+     * Dispatch only blocks while the chosen writer's in-flight window is full.
+     * 
+     * @return Future completed once every append that is in flight at the time of the call
+     *         has been acknowledged or has failed, with the number of rows those appends wrote
+     */
+    @Override
+    public CompletableFuture<Integer> flushAsync() {
+        dispatchPending();
+        
+        List<CompletableFuture<Integer>> outstanding = new ArrayList<>(inFlight);
+        return CompletableFuture.allOf(outstanding.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> outstanding.stream().mapToInt(CompletableFuture::join).sum());
+    }
+    
+    private void dispatchPending() {
+        List<KafkaMessage> rows = pendingRows.drain();
+        if (rows.isEmpty()) {
+            return;
         }
         
-        return flushWithRetry(0);
+        // Split into append-sized chunks so several requests can be on the wire at once
+        for (int i = 0; i < rows.size(); i += maxAppendRows) {
+            PendingAppend append = new PendingAppend(rows.subList(i, Math.min(i + maxAppendRows, rows.size())));
+            inFlight.add(append.result);
+            append.result.whenComplete((count, error) -> inFlight.remove(append.result));
+            appendWithRetry(append, 0);
+        }
     }
     
     /**
-     * Recursive method to flush pending rows with retry logic
+     * Sends one append and registers a completion callback that acknowledges or retries it
      * 
+     * @param append The chunk of rows to append
      * @param attemptCount Current attempt number (0-based)
-     * @return Number of successfully written rows
      */
-    private int flushWithRetry(int attemptCount) {
-        if (pendingRows.isEmpty()) {
-            return 0;
+    private void appendWithRetry(PendingAppend append, int attemptCount) {
+        WriterGeneration current = generation.get();
+        append.sentOn = current;
+        StreamWriterPool.PooledWriter writer;
+        AppendWatchdog.Watch watch = watchdog.watch(getMetricsName(), "waiting for the throttler or the in-flight window");
+        try {
+            throttler.acquire(append.rows.size(), append.bytes);
+            writer = current.writerPool.acquire(append.bytes, shardIndex);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while waiting for the throttler or the in-flight window, spilling {} rows",
+                    append.rows.size(), e);
+            // Nothing was sent, keep the rows for replay
+            failedRows.addAndGet(append.rows.size());
+            spillLog.append(getMetricsName(), append.rows);
+            append.result.complete(0);
+            return;
+        } finally {
+            watch.close();
         }
         
+        long startNanos = System.nanoTime();
+        ApiFuture<AppendRowsResponse> future;
         try {
-            // Convert rows to JSONArray for JsonStreamWriter
-            JSONArray jsonArray = new JSONArray();
-            for (Map<String, Object> row : pendingRows) {
-                jsonArray.put(new JSONObject(row));
+            future = writer.append(append.rows, append.bytes);
+        } catch (Exception e) {
+            if (redispatchIfWriterClosed(append, attemptCount, current, writer, e)) {
+                return;
             }
-            
-            // Write all pending rows in a single batch
-            ApiFuture<AppendRowsResponse> future = streamWriter.append(jsonArray);
-            
-            // Wait for the append operation to complete
-            AppendRowsResponse response = future.get();
-            int successCount = pendingRows.size();
-            
-            log.info("BigQuery Storage Write API: Flushed {} records successfully. Offset: {}", 
-                    successCount, response.getAppendResult().getOffset().getValue());
-            
-            // Clear pending rows and reset count
-            pendingRows.clear();
-            pendingRowCount.set(0);
-            
-            return successCount;
-        } catch (ExecutionException e) {
-            // Check if we should retry based on the error
-            Throwable cause = e.getCause();
-            if (isRetriableError(cause) && attemptCount < maxRetryAttempts) {
-                return retryFlush(attemptCount + 1);
-            } else {
-                log.error("Fatal error flushing records to BigQuery (attempt {}): {}", 
-                          attemptCount + 1, e.getMessage(), e);
-                // Clear the buffer on fatal errors to avoid getting stuck
-                pendingRows.clear();
-                pendingRowCount.set(0);
-                return 0;
+            // JsonStreamWriter rejects rows it cannot convert before anything is sent
+            if (handleRowErrors(append, attemptCount, rowErrors(e))) {
+                return;
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            log.error("Interrupted while flushing to BigQuery", e);
-            return 0;
-        } catch (Exception e) {
-            log.error("Unexpected error during BigQuery flush", e);
-            // Clear on fatal errors
-            pendingRows.clear();
-            pendingRowCount.set(0);
-            return 0;
+            log.error("Unexpected error during BigQuery append", e);
+            // Retried or spilled like a failed call
+            handleAppendFailure(append, attemptCount, e);
+            return;
         }
+        
+        // Whichever comes first, the response or the deadline, settles the append; the other is ignored
+        AtomicBoolean settled = new AtomicBoolean(false);
+        ScheduledFuture<?> deadline = watchdog.scheduleDeadline(() -> {
+            if (settled.compareAndSet(false, true)) {
+                onDeadlineExceeded(append, attemptCount, writer, future, startNanos);
+            }
+        });
+        
+        ApiFutures.addCallback(future, new ApiFutureCallback<AppendRowsResponse>() {
+            @Override
+            public void onSuccess(AppendRowsResponse response) {
+                if (!settle(settled, deadline)) {
+                    return;
+                }
+                recordLatency(startNanos);
+                if (response.hasError()) {
+                    Map<Integer, String> rowErrors = rowErrors(response);
+                    // Keep the status code of the in-band error so it is classified like a failed call
+                    StatusRuntimeException error = Status.fromCodeValue(response.getError().getCode())
+                            .withDescription("Append failed: " + response.getError().getMessage())
+                            .asRuntimeException();
+                    writer.complete(append.bytes, 0, rowErrors.isEmpty() ? error : null);
+                    if (!handleRowErrors(append, attemptCount, rowErrors)) {
+                        handleAppendFailure(append, attemptCount, error);
+                    }
+                    return;
+                }
+                
+                writer.complete(append.bytes, append.rows.size(), null);
+                throttler.onSuccess();
+                if (response.hasUpdatedSchema()) {
+                    requestSchemaRefresh("updated schema in append response");
+                }
+                
+                int successCount = append.rows.size();
+                successfulRows.addAndGet(successCount);
+                log.debug("BigQuery Storage Write API: Appended {} records successfully. Offset: {}", 
+                        successCount, response.getAppendResult().getOffset().getValue());
+                append.result.complete(successCount);
+            }
+            
+            @Override
+            public void onFailure(Throwable error) {
+                if (!settle(settled, deadline)) {
+                    return;
+                }
+                Map<Integer, String> rowErrors = rowErrors(error);
+                // Rejected rows say nothing about the health of the connection
+                writer.complete(append.bytes, 0, rowErrors.isEmpty() ? error : null);
+                recordLatency(startNanos);
+                if (redispatchIfWriterClosed(append, attemptCount, current, writer, error)) {
+                    return;
+                }
+                if (!handleRowErrors(append, attemptCount, rowErrors)) {
+                    handleAppendFailure(append, attemptCount, error);
+                }
+            }
+        }, MoreExecutors.directExecutor());
     }
     
     /**
-     * Perform a retry with exponential backoff
+     * An append whose writer was closed under it, by a writer replacement, a schema switch or shutdown, fails
+     * with FAILED_PRECONDITION without having reached BigQuery. It is sent again without spending an attempt,
+     * before the failure is classified, or spilled if the writers were closed for shutdown.
      * 
-     * @param attemptCount Current attempt number (1-based)
-     * @return Number of successfully written rows
+     * @return false if the writer was open and the failure must be handled as usual
      */
-    private int retryFlush(int attemptCount) {
-        // Add exponential backoff before retrying
+    private boolean redispatchIfWriterClosed(PendingAppend append, int attemptCount, WriterGeneration current,
+                                             StreamWriterPool.PooledWriter writer, Throwable error) {
+        boolean switched = generation.get() != current;
+        if (!switched && !writer.isRetired() && !StreamWriterPool.isWriterClosed(error)) {
+            return false;
+        }
+        if (!switched && current.writerPool.isClosed()) {
+            spillOnShutdown(append);
+            return true;
+        }
+        redispatch(append, attemptCount);
+        return true;
+    }
+    
+    /**
+     * Sends an append again without spending an attempt, from this shard's flush executor
+     * since the gRPC callback thread must not block on a full window
+     */
+    private void redispatch(PendingAppend append, int attemptCount) {
+        redispatchedAppends.incrementAndGet();
         try {
-            long backoffMs = Math.min(100 * (1L << (attemptCount - 1)), 5000); // Cap at 5 seconds
-            log.info("Retry attempt {} after {}ms backoff", attemptCount, backoffMs);
-            Thread.sleep(backoffMs);
-            return flushWithRetry(attemptCount);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            log.error("Interrupted during retry backoff", e);
-            return 0;
+            executor.execute(() -> appendWithRetry(append, attemptCount));
+        } catch (RejectedExecutionException e) {
+            spillOnShutdown(append);
+        }
+    }
+    
+    private void spillOnShutdown(PendingAppend append) {
+        log.warn("Writers closed for shutdown, spilling {} rows", append.rows.size());
+        failedRows.addAndGet(append.rows.size());
+        spillLog.append(getMetricsName(), append.rows);
+        append.result.complete(0);
+    }
+    
+    private static boolean settle(AtomicBoolean settled, ScheduledFuture<?> deadline) {
+        if (!settled.compareAndSet(false, true)) {
+            return false;
+        }
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+        return true;
+    }
+    
+    /**
+     * Gives up on an append that has not been answered in time. The writer is replaced, which frees the
+     * window slot and the flush thread, and the rows are retried like after an unavailable connection.
+     * The default stream has no offsets, so rows of an append that still lands late are written twice;
+     * for that reason appends are never hedged here, only bounded.
+     */
+    private void onDeadlineExceeded(PendingAppend append, int attemptCount, StreamWriterPool.PooledWriter writer,
+                                    ApiFuture<AppendRowsResponse> future, long startNanos) {
+        StatusRuntimeException error = Status.DEADLINE_EXCEEDED
+                .withDescription("No response to an append of " + append.rows.size() + " rows within "
+                        + watchdog.getDeadlineMs() + " ms")
+                .asRuntimeException();
+        log.warn(error.getMessage());
+        timedOutAppends.incrementAndGet();
+        watchdog.onDeadlineExceeded(getMetricsName());
+        writer.complete(append.bytes, 0, error);
+        future.cancel(true);
+        recordLatency(startNanos);
+        handleAppendFailure(append, attemptCount, error);
+    }
+    
+    private void recordLatency(long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        appendNanos.addAndGet(nanos);
+        completedAppends.incrementAndGet();
+        watchdog.recordLatency(getMetricsName(), nanos);
+    }
+    
+    private void handleAppendFailure(PendingAppend append, int attemptCount, Throwable error) {
+        throttler.onError(error);
+        if (isSchemaMismatch(error)) {
+            // Waits for the writers to be rebuilt for the new schema instead of spending its attempts on the backoff
+            if (park(append, attemptCount, error)) {
+                requestSchemaRefresh("schema mismatch: " + error.getMessage());
+            } else {
+                redispatch(append, attemptCount);
+            }
+            return;
         }
+        retryOrGiveUp(append, attemptCount, error, retryEngine.isRetriable(error));
     }
     
     /**
-     * Determine if an error is retriable
+     * Schedules the next attempt while the error is retriable and attempts remain, otherwise spills the rows.
+     * A failure of the whole request (permission denied, table not found, ...) says nothing about the rows,
+     * so they are kept for replay; only rows BigQuery rejected individually go to the quarantine.
+     */
+    private void retryOrGiveUp(PendingAppend append, int attemptCount, Throwable error, boolean retry) {
+        // The backoff runs on the retry engine's timer, the retry itself on the flush executor
+        if (retry && attemptCount < maxRetryAttempts
+                && retryEngine.schedule(attemptCount + 1, () -> appendWithRetry(append, attemptCount + 1), executor)) {
+            return;
+        }
+        
+        log.error("Fatal error appending {} records to BigQuery (attempt {}), spilling them: {}", 
+                  append.rows.size(), attemptCount + 1, error.getMessage(), error);
+        failedRows.addAndGet(append.rows.size());
+        spillLog.append(getMetricsName(), append.rows);
+        append.result.complete(0);
+    }
+    
+    /**
+     * Quarantines the rows BigQuery rejected individually and re-appends the rest of the chunk right away.
+     * Rows of a rejected append are never written, so the good rows can be sent again without duplicates.
      * 
-     * @param error The error to check
-     * @return true if the error is retriable, false otherwise
+     * @param append The chunk whose append failed
+     * @param attemptCount Current attempt number (0-based)
+     * @param rowErrors Error message per row index within the chunk
+     * @return false if there were no row-level errors and the failure must be handled for the whole chunk
      */
-    private boolean isRetriableError(Throwable error) {
-        String errorMessage = error.getMessage();
-        if (errorMessage == null) {
+    private boolean handleRowErrors(PendingAppend append, int attemptCount, Map<Integer, String> rowErrors) {
+        if (rowErrors.isEmpty()) {
             return false;
         }
         
-        // Check error messages that indicate retriable conditions
-        return errorMessage.contains("UNAVAILABLE") || 
-               errorMessage.contains("RESOURCE_EXHAUSTED") ||
-               errorMessage.contains("ABORTED") || 
-               errorMessage.contains("DEADLINE_EXCEEDED") ||
-               errorMessage.contains("INTERNAL") ||
-               errorMessage.contains("timeout") ||
-               errorMessage.contains("temporarily unavailable") ||
-               errorMessage.contains("Connection reset") ||
-               errorMessage.contains("Connection closed") ||
-               errorMessage.contains("socket") ||
-               error instanceof IOException;
+        List<KafkaMessage> goodRows = new ArrayList<>(append.rows.size() - rowErrors.size());
+        for (int i = 0; i < append.rows.size(); i++) {
+            String rowError = rowErrors.get(i);
+            if (rowError != null) {
+                quarantine.quarantine(getMetricsName(), append.rows.get(i), rowError);
+            } else {
+                goodRows.add(append.rows.get(i));
+            }
+        }
+        
+        int badRowCount = append.rows.size() - goodRows.size();
+        failedRows.addAndGet(badRowCount);
+        rowErrorAppends.incrementAndGet();
+        log.warn("Append of {} rows rejected {} rows, re-appending the remaining {}", 
+                append.rows.size(), badRowCount, goodRows.size());
+        
+        if (goodRows.isEmpty()) {
+            append.result.complete(0);
+            return true;
+        }
+        
+        PendingAppend remainder = new PendingAppend(goodRows);
+        remainder.result.whenComplete((count, error) -> append.result.complete(error == null ? count : 0));
+        // Dispatch from the flush executor, the gRPC callback thread must not block on a full window
+        executor.submit(() -> appendWithRetry(remainder, attemptCount));
+        return true;
     }
     
     /**
-     * Asynchronously flushes the pending rows
-     * This prevents blocking the calling thread (e.g., Kafka consumer)
+     * Row-level errors of a failed append, keyed by row index within the request
      */
-    public void flushAsync() {
-        if (!pendingRows.isEmpty()) {
-            executor.submit(this::flush);
+    private static Map<Integer, String> rowErrors(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof Exceptions.AppendSerializtionError) {
+                return ((Exceptions.AppendSerializtionError) cause).getRowIndexToErrorMessage();
+            }
+        }
+        return Collections.emptyMap();
+    }
+    
+    private static Map<Integer, String> rowErrors(AppendRowsResponse response) {
+        Map<Integer, String> rowErrors = new HashMap<>();
+        for (RowError rowError : response.getRowErrorsList()) {
+            rowErrors.put((int) rowError.getIndex(), rowError.getMessage());
         }
+        return rowErrors;
     }
     
     /**
@@ -280,7 +741,7 @@ public class WriteApiBigQueryWriteService implements BigQueryWriteService {
      */
     @Scheduled(fixedDelayString = "${bigquery.flush-interval-ms:5000}")
     public void scheduledFlush() {
-        int pendingCount = pendingRowCount.get();
+        int pendingCount = pendingRows.size();
         if (pendingCount > 0) {
             log.debug("Running scheduled flush for {} pending rows", pendingCount);
             flushAsync();
@@ -290,23 +751,150 @@ public class WriteApiBigQueryWriteService implements BigQueryWriteService {
     @PreDestroy
     public void cleanup() {
         try {
-            // Flush any remaining records
-            flush();
-            
-            // Close resources
-            if (streamWriter != null) {
-                streamWriter.close();
+            // Flush the shards first, they share the writer pool and the write client
+            for (WriteApiBigQueryWriteService shard : shards.values()) {
+                shard.closeShard();
+            }
+            closeShard();
+            schemaRefresher.shutdownNow();
+            for (ParkedAppend parked : unparkAll(null)) {
+                parked.owner.spillOnShutdown(parked.append);
             }
+            generation.get().writerPool.close();
+            
             if (writeClient != null) {
                 writeClient.close();
             }
             
-            // Shutdown executor
-            executor.shutdown();
-            
             log.info("BigQuery Storage Write API resources closed successfully");
         } catch (Exception e) {
             log.error("Error closing BigQuery Storage Write API resources", e);
         }
     }
+    
+    @Override
+    public String getWarmupName() {
+        return getMetricsName();
+    }
+
+    /**
+     * A metadata call on the default stream stands in for a test append, which would write a row:
+     * it opens the client's gRPC channel and fetches an access token on the same credentials
+     */
+    @Override
+    public void warmUp(Map<String, Long> steps) {
+        long start = System.nanoTime();
+        writeClient.getWriteStream(defaultStreamName());
+        steps.put("connection", (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        WriterGeneration current = generation.get();
+        if (current.tableSchema.getFieldsCount() == 0) {
+            throw new IllegalStateException("No table schema loaded for " + tableKey());
+        }
+        steps.put("schema", (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        Map<String, Object> pool = current.writerPool.getMetrics();
+        if (((Number) pool.get("poolSize")).intValue() == 0) {
+            throw new IllegalStateException("No stream writers in the pool");
+        }
+        steps.put("writers", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "writeApi";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>(shardMetrics());
+        metrics.put("writerPool", generation.get().writerPool.getMetrics());
+        metrics.put("schemaRefreshes", schemaRefreshes.get());
+        shards.forEach((index, shard) -> metrics.put("shard-" + index, shard.shardMetrics()));
+        return metrics;
+    }
+
+    private Map<String, Object> shardMetrics() {
+        long appends = completedAppends.get();
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("pendingRows", pendingRows.size());
+        metrics.put("successfulRows", successfulRows.get());
+        metrics.put("failedRows", failedRows.get());
+        metrics.put("appendsWithRowErrors", rowErrorAppends.get());
+        metrics.put("timedOutAppends", timedOutAppends.get());
+        metrics.put("redispatchedAppends", redispatchedAppends.get());
+        metrics.put("avgAppendLatencyMs", appends == 0 ? 0.0 : appendNanos.get() / 1_000_000.0 / appends);
+        return metrics;
+    }
+
+    /**
+     * Estimated request size of a chunk, used for the byte limit of the writers' in-flight windows
+     */
+    private static long estimateBytes(List<KafkaMessage> rows) {
+        long bytes = 0;
+        for (KafkaMessage row : rows) {
+            bytes += 128;
+            if (row.getRawPayload() != null) {
+                bytes += row.getRawPayload().length;
+            } else if (row.getMessage() != null) {
+                bytes += row.getMessage().length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The table schema and the writers built for it (with its encoder), swapped together when the schema changes
+     */
+    private static final class WriterGeneration {
+        private final TableSchema tableSchema;
+        private final StreamWriterPool writerPool;
+
+        private WriterGeneration(TableSchema tableSchema, StreamWriterPool writerPool) {
+            this.tableSchema = tableSchema;
+            this.writerPool = writerPool;
+        }
+    }
+
+    /**
+     * A chunk of rows on its way to BigQuery, completed with the number of rows written
+     */
+    private static final class PendingAppend {
+        private final List<KafkaMessage> rows;
+        private final long bytes;
+        private final CompletableFuture<Integer> result = new CompletableFuture<>();
+        private volatile WriterGeneration sentOn;
+
+        private PendingAppend(List<KafkaMessage> rows) {
+            this.rows = rows;
+            this.bytes = estimateBytes(rows);
+        }
+    }
+
+    /**
+     * An append waiting for a schema refresh, with the shard that sent it
+     */
+    private static final class ParkedAppend {
+        private final WriteApiBigQueryWriteService owner;
+        private final PendingAppend append;
+        private final int attemptCount;
+        private final Throwable error;
+
+        private ParkedAppend(WriteApiBigQueryWriteService owner, PendingAppend append, int attemptCount, Throwable error) {
+            this.owner = owner;
+            this.append = append;
+            this.attemptCount = attemptCount;
+            this.error = error;
+        }
+    }
+    
+    /**
+     * Flushes remaining records and stops the flush executor of this instance
+     */
+    private void closeShard() {
+        flush();
+        executor.shutdown();
+    }
 }
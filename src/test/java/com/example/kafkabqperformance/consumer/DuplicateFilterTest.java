@@ -0,0 +1,121 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DuplicateFilterTest {
+
+    private static final long WINDOW_MS = 1000;
+
+    @TempDir
+    Path directory;
+
+    private static DuplicateFilter filter(long windowMs, int exactCapacity, String checkpointFile) {
+        return new DuplicateFilter(true, windowMs, 10_000, 0.000001, exactCapacity, checkpointFile);
+    }
+
+    private static List<KafkaMessage> messages(String... ids) {
+        return Arrays.stream(ids).map(id -> KafkaMessage.builder().id(id).build()).collect(Collectors.toList());
+    }
+
+    private static List<String> passed(DuplicateFilter filter, String... ids) {
+        return filter.filter(messages(ids)).stream().map(KafkaMessage::getId).collect(Collectors.toList());
+    }
+
+    /**
+     * Passes the IDs through the filter and reports them as flushed by every sink
+     */
+    private static void deliver(DuplicateFilter filter, String... ids) {
+        filter.markDelivered(filter.filter(messages(ids)));
+    }
+
+    @Test
+    void deliveredIdIsAnExactDuplicate() {
+        DuplicateFilter filter = filter(600_000, 100, "");
+        deliver(filter, "a", "b");
+
+        assertThat(passed(filter, "a", "c", "b")).containsExactly("c");
+        assertThat(filter.getMetrics().get("exactDuplicatesDropped")).isEqualTo(2L);
+    }
+
+    @Test
+    void pendingIdIsDroppedUntilReleased() {
+        DuplicateFilter filter = filter(600_000, 100, "");
+        List<KafkaMessage> inFlight = filter.filter(messages("a"));
+
+        assertThat(passed(filter, "a")).isEmpty();
+
+        filter.release(inFlight);
+        assertThat(passed(filter, "a")).containsExactly("a");
+        assertThat(filter.getMetrics().get("recentIds")).isEqualTo(0);
+    }
+
+    @Test
+    void messagesWithoutIdAlwaysPass() {
+        DuplicateFilter filter = filter(600_000, 100, "");
+        deliver(filter, (String) null);
+
+        assertThat(filter.filter(messages((String) null))).hasSize(1);
+    }
+
+    @Test
+    void idEvictedFromTheExactSetIsCaughtByTheBloomFilter() {
+        DuplicateFilter filter = filter(600_000, 1, "");
+        deliver(filter, "a");
+        deliver(filter, "filler");
+
+        assertThat(passed(filter, "a")).isEmpty();
+        assertThat(filter.getMetrics().get("probableDuplicatesDropped")).isEqualTo(1L);
+    }
+
+    @Test
+    void idLeavesTheWindowAfterTwoRotations() throws InterruptedException {
+        DuplicateFilter filter = filter(WINDOW_MS, 1, "");
+        deliver(filter, "a");
+        deliver(filter, "filler");
+
+        Thread.sleep(WINDOW_MS / 2 + 100);
+        assertThat(passed(filter, "a")).isEmpty();
+        assertThat(filter.getMetrics().get("rotations")).isEqualTo(1L);
+
+        Thread.sleep(WINDOW_MS / 2 + 100);
+        assertThat(passed(filter, "a")).containsExactly("a");
+        assertThat(filter.getMetrics().get("rotations")).isEqualTo(2L);
+    }
+
+    @Test
+    void idleFilterForgetsTheWholeWindow() throws InterruptedException {
+        DuplicateFilter filter = filter(WINDOW_MS, 1, "");
+        deliver(filter, "a");
+        deliver(filter, "filler");
+
+        Thread.sleep(WINDOW_MS + 100);
+        assertThat(passed(filter, "a")).containsExactly("a");
+    }
+
+    @Test
+    void deliveredIdsSurviveARestartFromTheCheckpoint() {
+        String checkpoint = directory.resolve("dedup.bin").toString();
+        DuplicateFilter before = filter(600_000, 100, checkpoint);
+        assertThat(before.getMetrics().get("checkpointed")).isEqualTo(true);
+        deliver(before, "delivered");
+        before.filter(messages("pending"));
+        before.closeCheckpoint();
+
+        DuplicateFilter after = filter(600_000, 100, checkpoint);
+        try {
+            assertThat(passed(after, "delivered", "pending")).containsExactly("pending");
+            assertThat(after.getMetrics().get("probableDuplicatesDropped")).isEqualTo(1L);
+        } finally {
+            after.closeCheckpoint();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.service.CommittedStreamWriter;
+import com.example.kafkabqperformance.service.CommittedStreamWriter.Checkpoint;
+import com.example.kafkabqperformance.service.CommittedStreamWriter.PartitionStream;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ExactlyOnceCoordinatorTest {
+
+    private static final String STREAM = "projects/p/datasets/d/tables/t/streams/partition-0";
+    private static final TopicPartition PARTITION = new TopicPartition("events", 0);
+
+    private final CommittedStreamWriter streamWriter = mock(CommittedStreamWriter.class);
+    private final PartitionStream stream = mock(PartitionStream.class);
+    private final MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    private final ExactlyOnceCoordinator coordinator = new ExactlyOnceCoordinator(streamWriter, 1_000, 0);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(streamWriter.isEnabled()).thenReturn(true);
+        when(streamWriter.open(eq(0), any(), anyLong())).thenReturn(stream);
+        consumer.assign(List.of(PARTITION));
+        consumer.updateBeginningOffsets(Map.of(PARTITION, 0L));
+    }
+
+    private OffsetAndMetadata committed() {
+        return consumer.committed(Set.of(PARTITION)).get(PARTITION);
+    }
+
+    @Test
+    void assignedPartitionResumesFromTheCheckpointInTheCommitMetadata() throws Exception {
+        consumer.commitSync(Map.of(PARTITION, new OffsetAndMetadata(10, STREAM + ":100")));
+
+        coordinator.onPartitionsAssigned(consumer, List.of(PARTITION));
+
+        ArgumentCaptor<Checkpoint> checkpoint = ArgumentCaptor.forClass(Checkpoint.class);
+        verify(streamWriter).open(eq(0), checkpoint.capture(), eq(10L));
+        assertThat(checkpoint.getValue().getKafkaOffset()).isEqualTo(10);
+        assertThat(checkpoint.getValue().toMetadata()).isEqualTo(STREAM + ":100");
+    }
+
+    @Test
+    void onlyTheAcknowledgedCheckpointIsCommitted() throws Exception {
+        consumer.commitSync(Map.of(PARTITION, new OffsetAndMetadata(10, STREAM + ":100")));
+        coordinator.onPartitionsAssigned(consumer, List.of(PARTITION));
+        List<KafkaMessage> rows = List.of(KafkaMessage.builder().id("a").build());
+        assertThat(coordinator.append(consumer, PARTITION, rows, 20)).isTrue();
+        verify(stream).append(rows, 20);
+
+        // Rows up to offset 15 have been acknowledged, the rest are still in flight
+        when(stream.getAcknowledged()).thenReturn(new Checkpoint(15, STREAM, 105));
+        coordinator.commitAcknowledged(consumer);
+
+        assertThat(committed().offset()).isEqualTo(15);
+        assertThat(committed().metadata()).isEqualTo(STREAM + ":105");
+    }
+
+    @Test
+    void failedPartitionIsRewoundToItsCheckpoint() throws Exception {
+        coordinator.onPartitionsAssigned(consumer, List.of(PARTITION));
+        when(stream.isFailed()).thenReturn(true);
+        when(stream.rewind(anyLong())).thenReturn(new Checkpoint(12, STREAM, 102));
+
+        List<KafkaMessage> rows = List.of(KafkaMessage.builder().id("a").build());
+        assertThat(coordinator.append(consumer, PARTITION, rows, 20)).isFalse();
+
+        verify(stream, never()).append(any(), anyLong());
+        assertThat(consumer.position(PARTITION)).isEqualTo(12);
+    }
+
+    @Test
+    void revokedPartitionCommitsItsCheckpointAndClosesTheStream() throws Exception {
+        coordinator.onPartitionsAssigned(consumer, List.of(PARTITION));
+        when(stream.getAcknowledged()).thenReturn(new Checkpoint(18, STREAM, 108));
+
+        coordinator.onPartitionsRevokedBeforeCommit(consumer, List.of(PARTITION));
+
+        verify(stream).awaitPending(1_000);
+        verify(stream).close();
+        assertThat(committed().offset()).isEqualTo(18);
+        assertThat(committed().metadata()).isEqualTo(STREAM + ":108");
+        assertThat(coordinator.append(consumer, PARTITION, List.of(), 20)).isFalse();
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.kafkabqperformance.consumer;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.example.kafkabqperformance.service.BigQueryWriteService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MemoryBudgetTest {
+
+    private final MessageListenerContainer container = mock(MessageListenerContainer.class);
+    private final List<SinkPipeline> pipelines = new ArrayList<>();
+
+    @AfterEach
+    void stopPipelines() {
+        pipelines.forEach(SinkPipeline::stop);
+    }
+
+    @SuppressWarnings("unchecked")
+    private MemoryBudget budget(long highWatermarkBytes, long lowWatermarkBytes) {
+        KafkaListenerEndpointRegistry registry = mock(KafkaListenerEndpointRegistry.class);
+        when(registry.getListenerContainers()).thenReturn(List.of(container));
+        when(container.isRunning()).thenReturn(true);
+        ObjectProvider<KafkaListenerEndpointRegistry> provider = mock(ObjectProvider.class);
+        when(provider.getIfAvailable()).thenReturn(registry);
+        return new MemoryBudget(provider, true, highWatermarkBytes, lowWatermarkBytes);
+    }
+
+    private static long usedBytes(MemoryBudget budget) {
+        return (Long) budget.getMetrics().get("usedBytes");
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("condition not met within 10s").isLessThan(deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void consumptionPausesAtTheHighWatermarkAndResumesBelowTheLowOne() {
+        MemoryBudget budget = budget(1_000, 400);
+
+        budget.reserve(600);
+        assertThat(budget.isPaused()).isFalse();
+        budget.reserve(400);
+        assertThat(budget.isPaused()).isTrue();
+        verify(container).pause();
+
+        // Between the watermarks the containers stay paused
+        budget.release(500);
+        assertThat(budget.isPaused()).isTrue();
+        budget.release(100);
+        assertThat(budget.isPaused()).isFalse();
+        verify(container).resume();
+
+        assertThat(budget.getMetrics()).containsEntry("usedBytes", 400L).containsEntry("peakBytes", 1_000L)
+                .containsEntry("pauseCount", 1L);
+    }
+
+    @Test
+    void disabledBudgetOnlyCounts() {
+        @SuppressWarnings("unchecked")
+        ObjectProvider<KafkaListenerEndpointRegistry> provider = mock(ObjectProvider.class);
+        MemoryBudget budget = new MemoryBudget(provider, false, 1_000, 400);
+
+        budget.reserve(5_000);
+        assertThat(budget.isPaused()).isFalse();
+        assertThat(usedBytes(budget)).isEqualTo(5_000);
+        verify(container, never()).pause();
+    }
+
+    @Test
+    void batchSharedByAllSinksIsReservedOnceUntilTheLastSinkHasFlushedIt() throws InterruptedException {
+        MemoryBudget budget = budget(Long.MAX_VALUE, 0);
+        StubSink legacy = new StubSink();
+        StubSink writeApi = new StubSink();
+        @SuppressWarnings("unchecked")
+        ObjectProvider<BigQueryWriteService> noLoadJob = mock(ObjectProvider.class);
+        DuplicateFilter duplicateFilter = new DuplicateFilter(false, 1_000, 1_000, 0.001, 100, "");
+        SinkPipeline pipeline = new SinkPipeline(legacy, writeApi, noLoadJob, budget, duplicateFilter,
+                1, 200, 100, false, 0, false);
+        pipelines.add(pipeline);
+
+        List<KafkaMessage> batch = List.of(
+                KafkaMessage.builder().id("a").message("first").build(),
+                KafkaMessage.builder().id("b").message("second").build());
+        long batchBytes = MemoryBudget.estimateSize(batch.get(0)) + MemoryBudget.estimateSize(batch.get(1));
+
+        pipeline.submit(0, batch);
+        awaitTrue(() -> legacy.flushes.size() == 1 && writeApi.flushes.size() == 1);
+        assertThat(usedBytes(budget)).isEqualTo(batchBytes);
+
+        legacy.flushes.get(0).complete(2);
+        assertThat(usedBytes(budget)).isEqualTo(batchBytes);
+        writeApi.flushes.get(0).complete(2);
+        assertThat(usedBytes(budget)).isZero();
+    }
+
+    /**
+     * Sink whose flushes complete only when the test completes them
+     */
+    private static final class StubSink implements BigQueryWriteService {
+        private final List<CompletableFuture<Integer>> flushes = new CopyOnWriteArrayList<>();
+
+        @Override
+        public int writeToBigQuery(List<KafkaMessage> messages) {
+            return messages.size();
+        }
+
+        @Override
+        public int flush() {
+            return 0;
+        }
+
+        @Override
+        public CompletableFuture<Integer> flushAsync() {
+            CompletableFuture<Integer> flushed = new CompletableFuture<>();
+            flushes.add(flushed);
+            return flushed;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.kafkabqperformance.service;
+
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import io.grpc.Status;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveThrottlerTest {
+
+    private static AdaptiveThrottler throttler(boolean enabled, double rowsPerSecond, long cooldownMs, long burstMs) {
+        return new AdaptiveThrottler(enabled, rowsPerSecond, 10, 100_000, 1e9, 1_000, 1e10,
+                0.5, 0.1, 1, cooldownMs, burstMs);
+    }
+
+    private static long allowedRows(AdaptiveThrottler throttler) {
+        return (Long) throttler.getMetrics().get("allowedRowsPerSecond");
+    }
+
+    @Test
+    void quotaSignalsCutTheRateOncePerCooldown() {
+        AdaptiveThrottler throttler = throttler(true, 10_000, 60_000, 0);
+
+        assertThat(throttler.onError(Status.RESOURCE_EXHAUSTED.asRuntimeException())).isTrue();
+        assertThat(allowedRows(throttler)).isEqualTo(5_000);
+
+        // Requests that were already on the wire report the same overload
+        assertThat(throttler.onError(new BigQueryException(429, "Too many requests"))).isTrue();
+        assertThat(allowedRows(throttler)).isEqualTo(5_000);
+        assertThat(throttler.getMetrics()).containsEntry("throttleSignals", 2L).containsEntry("decreases", 1L);
+    }
+
+    @Test
+    void otherErrorsLeaveTheRateAlone() {
+        AdaptiveThrottler throttler = throttler(true, 10_000, 0, 0);
+
+        assertThat(throttler.onError(Status.INVALID_ARGUMENT.asRuntimeException())).isFalse();
+        assertThat(throttler.onErrors(List.of(new BigQueryError("invalid", "field", "bad value")))).isFalse();
+        assertThat(allowedRows(throttler)).isEqualTo(10_000);
+        assertThat(throttler.getMetrics()).containsEntry("throttleSignals", 0L);
+    }
+
+    @Test
+    void rowErrorWithAQuotaReasonIsASignal() {
+        AdaptiveThrottler throttler = throttler(true, 10_000, 0, 0);
+
+        assertThat(throttler.onErrors(List.of(
+                new BigQueryError("invalid", "field", "bad value"),
+                new BigQueryError("quotaExceeded", null, "Exceeded rate limits")))).isTrue();
+        assertThat(allowedRows(throttler)).isEqualTo(5_000);
+    }
+
+    @Test
+    void successesRaiseTheRateByAFixedStepAfterTheInterval() throws InterruptedException {
+        AdaptiveThrottler throttler = throttler(true, 10_000, 0, 0);
+        throttler.onError(Status.RESOURCE_EXHAUSTED.asRuntimeException());
+
+        Thread.sleep(5);
+        throttler.onSuccess();
+        // One step is a tenth of the maximum rate
+        assertThat(allowedRows(throttler)).isEqualTo(15_000);
+        assertThat(throttler.getMetrics()).containsEntry("increases", 1L);
+    }
+
+    @Test
+    void requestsBeyondTheRateArePaced() throws InterruptedException {
+        AdaptiveThrottler throttler = throttler(true, 1_000, 0, 0);
+
+        long start = System.nanoTime();
+        throttler.acquire(100, 100);
+        throttler.acquire(100, 100);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        // The second request waits for the 100 ms the first one booked
+        assertThat(elapsedMs).isGreaterThanOrEqualTo(80);
+        assertThat(throttler.getMetrics()).containsEntry("pacedRequests", 1L);
+    }
+
+    @Test
+    void disabledThrottlerNeitherPacesNorAdapts() throws InterruptedException {
+        AdaptiveThrottler throttler = throttler(false, 10, 0, 0);
+
+        long start = System.nanoTime();
+        throttler.acquire(1_000, 1_000);
+        throttler.acquire(1_000, 1_000);
+        assertThat((System.nanoTime() - start) / 1_000_000).isLessThan(1_000);
+
+        assertThat(throttler.onError(Status.RESOURCE_EXHAUSTED.asRuntimeException())).isTrue();
+        assertThat(throttler.getMetrics()).containsEntry("decreases", 0L).containsEntry("pacedRequests", 0L);
+    }
+}
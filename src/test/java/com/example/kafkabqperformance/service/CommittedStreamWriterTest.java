@@ -0,0 +1,181 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import com.google.cloud.bigquery.storage.v1.ProtoRows;
+import com.google.cloud.bigquery.storage.v1.StreamWriter;
+import com.google.cloud.bigquery.storage.v1.TableFieldSchema;
+import com.google.cloud.bigquery.storage.v1.TableSchema;
+import io.grpc.Status;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CommittedStreamWriterTest {
+
+    private static final String STREAM = "projects/p/datasets/d/tables/t/streams/partition-0";
+
+    private final AdaptiveThrottler throttler = new AdaptiveThrottler(false, 1_000, 1, 1_000, 1_000, 1, 1_000,
+            0.5, 0.1, 1_000, 1_000, 100);
+    private final StreamWriter writer = mock(StreamWriter.class);
+    private final List<Sent> sent = new CopyOnWriteArrayList<>();
+    private final AtomicInteger writersCreated = new AtomicInteger(0);
+    private ProtoRowEncoder encoder;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        encoder = new ProtoRowEncoder(TableSchema.newBuilder()
+                .addFields(TableFieldSchema.newBuilder().setName("uuid").setType(TableFieldSchema.Type.STRING)
+                        .setMode(TableFieldSchema.Mode.NULLABLE))
+                .build());
+        when(writer.append(any(ProtoRows.class), anyLong())).thenAnswer(invocation -> {
+            ProtoRows rows = invocation.getArgument(0);
+            Sent append = new Sent(invocation.getArgument(1), rows.getSerializedRowsCount());
+            sent.add(append);
+            return append.future;
+        });
+    }
+
+    /**
+     * Stream writer whose streams resume from the given checkpoint, appending through the mocked writer
+     */
+    private CommittedStreamWriter streams(int maxAppendRows) {
+        return new CommittedStreamWriter(null, null, throttler, "p", "d", "t", true, maxAppendRows, 10, 1 << 20) {
+            @Override
+            ProtoRowEncoder encoder() {
+                return encoder;
+            }
+
+            @Override
+            boolean isAppendable(String streamName) {
+                return true;
+            }
+
+            @Override
+            StreamWriter createWriter(String streamName, ProtoRowEncoder rowEncoder) {
+                writersCreated.incrementAndGet();
+                return writer;
+            }
+        };
+    }
+
+    private static List<KafkaMessage> messages(int count) {
+        List<KafkaMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            messages.add(KafkaMessage.builder().id("id-" + i).build());
+        }
+        return messages;
+    }
+
+    private static void acknowledge(Sent append) {
+        append.future.set(AppendRowsResponse.getDefaultInstance());
+    }
+
+    @Test
+    void checkpointAdvancesOnlyOnceEveryRowBeforeItIsAcknowledged() throws Exception {
+        CommittedStreamWriter.PartitionStream stream = streams(50)
+                .open(0, new CommittedStreamWriter.Checkpoint(10, STREAM, 100), 10);
+
+        // Rows may already exist after reopening, so they go one per append until one is accepted
+        stream.append(messages(3), 13);
+        assertThat(sent).extracting(append -> append.offset).containsExactly(100L, 101L, 102L);
+
+        acknowledge(sent.get(0));
+        acknowledge(sent.get(1));
+        assertThat(stream.getAcknowledged().getKafkaOffset()).isEqualTo(10);
+        acknowledge(sent.get(2));
+        assertThat(stream.getAcknowledged().getKafkaOffset()).isEqualTo(13);
+        assertThat(stream.getAcknowledged().toMetadata()).isEqualTo(STREAM + ":103");
+
+        stream.append(messages(3), 16);
+        assertThat(sent).hasSize(4);
+        assertThat(sent.get(3).offset).isEqualTo(103);
+        assertThat(sent.get(3).rows).isEqualTo(3);
+    }
+
+    @Test
+    void rowsWrittenBeforeTheRestartAreRejectedAsDuplicatesAndAcknowledged() throws Exception {
+        CommittedStreamWriter streams = streams(50);
+        CommittedStreamWriter.PartitionStream stream = streams.open(0, new CommittedStreamWriter.Checkpoint(10, STREAM, 100), 10);
+
+        stream.append(messages(2), 12);
+        sent.forEach(append -> append.future.setException(Status.ALREADY_EXISTS.asRuntimeException()));
+
+        assertThat(stream.isFailed()).isFalse();
+        assertThat(stream.getAcknowledged().toMetadata()).isEqualTo(STREAM + ":102");
+        assertThat(streams.getMetrics()).containsEntry("duplicateRowsRejected", 2L).containsEntry("appendedRows", 0L);
+    }
+
+    @Test
+    void failedAppendRewindsToTheAcknowledgedCheckpoint() throws Exception {
+        CommittedStreamWriter streams = streams(50);
+        CommittedStreamWriter.PartitionStream stream = streams.open(0, new CommittedStreamWriter.Checkpoint(10, STREAM, 100), 10);
+        stream.append(messages(1), 11);
+        acknowledge(sent.get(0));
+
+        stream.append(messages(2), 13);
+        sent.get(1).future.setException(Status.UNAVAILABLE.asRuntimeException());
+        assertThat(stream.isFailed()).isTrue();
+        assertThat(stream.getAcknowledged().getKafkaOffset()).isEqualTo(11);
+
+        CommittedStreamWriter.Checkpoint checkpoint = stream.rewind(1_000);
+        assertThat(checkpoint.getKafkaOffset()).isEqualTo(11);
+        assertThat(checkpoint.toMetadata()).isEqualTo(STREAM + ":101");
+        assertThat(stream.isFailed()).isFalse();
+        assertThat(writersCreated).hasValue(2);
+        assertThat(streams.getMetrics()).containsEntry("rewinds", 1L);
+
+        // The redelivered records are appended again at the offsets they were sent at
+        stream.append(messages(2), 13);
+        assertThat(sent.subList(2, sent.size())).extracting(append -> append.offset).containsExactly(101L, 102L);
+    }
+
+    @Test
+    void runWithoutRowsIsAcknowledgedAfterThePendingAppends() throws Exception {
+        CommittedStreamWriter.PartitionStream stream = streams(50)
+                .open(0, new CommittedStreamWriter.Checkpoint(10, STREAM, 100), 10);
+        stream.append(messages(1), 11);
+
+        // Every record of the next run was skipped
+        stream.append(List.of(), 15);
+        assertThat(stream.getAcknowledged().getKafkaOffset()).isEqualTo(10);
+
+        acknowledge(sent.get(0));
+        assertThat(stream.getAcknowledged().getKafkaOffset()).isEqualTo(15);
+        assertThat(stream.getAcknowledged().toMetadata()).isEqualTo(STREAM + ":101");
+    }
+
+    @Test
+    void checkpointRoundTripsThroughCommitMetadata() {
+        CommittedStreamWriter.Checkpoint checkpoint = new CommittedStreamWriter.Checkpoint(42, STREAM, 7);
+        CommittedStreamWriter.Checkpoint restored = CommittedStreamWriter.Checkpoint.fromMetadata(42, checkpoint.toMetadata());
+
+        assertThat(restored.getKafkaOffset()).isEqualTo(42);
+        assertThat(restored.toMetadata()).isEqualTo(STREAM + ":7");
+        assertThat(CommittedStreamWriter.Checkpoint.fromMetadata(42, null)).isNull();
+        assertThat(CommittedStreamWriter.Checkpoint.fromMetadata(42, "")).isNull();
+        assertThat(CommittedStreamWriter.Checkpoint.fromMetadata(42, STREAM + ":not-a-number")).isNull();
+    }
+
+    private static final class Sent {
+        private final long offset;
+        private final int rows;
+        private final SettableApiFuture<AppendRowsResponse> future = SettableApiFuture.create();
+
+        private Sent(long offset, int rows) {
+            this.offset = offset;
+            this.rows = rows;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.kafkabqperformance.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DoubleBufferTest {
+
+    @Test
+    void drainReturnsTheStagedItemsInOrderAndEmptiesTheBuffer() {
+        DoubleBuffer<Integer> buffer = new DoubleBuffer<>();
+        assertThat(buffer.addAll(List.of(1, 2))).isEqualTo(2);
+        assertThat(buffer.addAll(List.of(3))).isEqualTo(3);
+        assertThat(buffer.size()).isEqualTo(3);
+
+        assertThat(buffer.drain()).containsExactly(1, 2, 3);
+        assertThat(buffer.isEmpty()).isTrue();
+        assertThat(buffer.drain()).isEmpty();
+    }
+
+    @Test
+    void halvesAreReusedAfterADrain() {
+        DoubleBuffer<Integer> buffer = new DoubleBuffer<>();
+        for (int round = 0; round < 4; round++) {
+            buffer.addAll(List.of(round, round + 10));
+            assertThat(buffer.drain()).containsExactly(round, round + 10);
+        }
+        assertThat(buffer.size()).isZero();
+    }
+
+    @Test
+    void concurrentProducersAndDrainsNeitherLoseNorRepeatItems() throws Exception {
+        int producers = 4;
+        int batchesPerProducer = 2_000;
+        DoubleBuffer<Integer> buffer = new DoubleBuffer<>();
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean producing = new AtomicBoolean(true);
+
+        List<Future<?>> running = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            running.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < batchesPerProducer; i++) {
+                    int base = (producer * batchesPerProducer + i) * 2;
+                    buffer.addAll(List.of(base, base + 1));
+                }
+                return null;
+            }));
+        }
+
+        List<Integer> drained = new ArrayList<>();
+        Thread drainer = new Thread(() -> {
+            while (producing.get()) {
+                drained.addAll(buffer.drain());
+            }
+        });
+        drainer.start();
+        start.countDown();
+        for (Future<?> producer : running) {
+            producer.get(30, TimeUnit.SECONDS);
+        }
+        producing.set(false);
+        drainer.join(10_000);
+        drained.addAll(buffer.drain());
+        pool.shutdown();
+
+        int expected = producers * batchesPerProducer * 2;
+        assertThat(drained).hasSize(expected);
+        Set<Integer> distinct = new HashSet<>(drained);
+        assertThat(distinct).hasSize(expected);
+        // Each producer's items come out in the order it added them
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        for (int item : drained) {
+            int producer = item / (batchesPerProducer * 2);
+            assertThat(item).isGreaterThan(last[producer]);
+            last[producer] = item;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.kafkabqperformance.service;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.WriteChannelConfiguration;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LoadJobTrackerTest {
+
+    private static final String JOB_NAME = "kafka_bq_load_rows-1-000000_ndjson_0";
+
+    @TempDir
+    Path directory;
+
+    private final BigQuery bigQuery = mock(BigQuery.class);
+    private final LoadJobTracker tracker = new LoadJobTracker(bigQuery, TableId.of("dataset", "table"));
+
+    private RollingFileStager.StagedFile stagedFile() throws IOException {
+        Path path = Files.write(directory.resolve("rows-1-000000.ndjson"), new byte[] {'{', '}', '\n'});
+        return new RollingFileStager.StagedFile(path, 1, 3);
+    }
+
+    @Test
+    void duplicateJobAfterARestartIsTrackedInsteadOfFailing() throws IOException {
+        when(bigQuery.writer(any(JobId.class), any(WriteChannelConfiguration.class)))
+                .thenThrow(new BigQueryException(409, "Already Exists: Job " + JOB_NAME,
+                        new BigQueryError("duplicate", null, "Already Exists: Job " + JOB_NAME)));
+        RollingFileStager.StagedFile file = stagedFile();
+
+        tracker.submit(file, 0);
+        assertThat(tracker.getRunningJobs()).isEqualTo(1);
+
+        Job job = mock(Job.class);
+        JobStatus status = mock(JobStatus.class);
+        when(status.getState()).thenReturn(JobStatus.State.DONE);
+        when(job.getStatus()).thenReturn(status);
+        when(bigQuery.getJob(JobId.of(JOB_NAME))).thenReturn(job);
+
+        List<LoadJobTracker.Outcome> outcomes = tracker.poll();
+        assertThat(outcomes).hasSize(1);
+        assertThat(outcomes.get(0).getFile()).isSameAs(file);
+        assertThat(outcomes.get(0).getAttempt()).isZero();
+        assertThat(outcomes.get(0).getError()).isNull();
+        assertThat(tracker.getRunningJobs()).isZero();
+    }
+
+    @Test
+    void otherSubmitErrorsArePropagated() throws IOException {
+        when(bigQuery.writer(any(JobId.class), any(WriteChannelConfiguration.class)))
+                .thenThrow(new BigQueryException(403, "Quota exceeded",
+                        new BigQueryError("quotaExceeded", null, "Quota exceeded")));
+
+        assertThatThrownBy(() -> tracker.submit(stagedFile(), 0)).isInstanceOf(BigQueryException.class);
+        assertThat(tracker.getRunningJobs()).isZero();
+    }
+
+    @Test
+    void runningJobIsNotReportedAndMissingJobFails() throws IOException {
+        when(bigQuery.writer(any(JobId.class), any(WriteChannelConfiguration.class)))
+                .thenThrow(new BigQueryException(409, "Already Exists", new BigQueryError("duplicate", null, "Already Exists")));
+        tracker.submit(stagedFile(), 0);
+
+        Job job = mock(Job.class);
+        JobStatus status = mock(JobStatus.class);
+        when(status.getState()).thenReturn(JobStatus.State.RUNNING);
+        when(job.getStatus()).thenReturn(status);
+        when(bigQuery.getJob(JobId.of(JOB_NAME))).thenReturn(job);
+        assertThat(tracker.poll()).isEmpty();
+        assertThat(tracker.getRunningJobs()).isEqualTo(1);
+
+        when(bigQuery.getJob(JobId.of(JOB_NAME))).thenReturn(null);
+        List<LoadJobTracker.Outcome> outcomes = tracker.poll();
+        assertThat(outcomes).hasSize(1);
+        assertThat(outcomes.get(0).getError().getReason()).isEqualTo("notFound");
+        assertThat(tracker.getRunningJobs()).isZero();
+    }
+}
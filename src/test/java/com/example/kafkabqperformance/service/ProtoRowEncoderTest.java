@@ -0,0 +1,104 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.cloud.bigquery.storage.v1.BigDecimalByteStringEncoder;
+import com.google.cloud.bigquery.storage.v1.CivilTimeEncoder;
+import com.google.cloud.bigquery.storage.v1.ProtoRows;
+import com.google.cloud.bigquery.storage.v1.TableFieldSchema;
+import com.google.cloud.bigquery.storage.v1.TableSchema;
+import com.google.protobuf.DynamicMessage;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ProtoRowEncoderTest {
+
+    private static final List<LocalDateTime> SAMPLES = List.of(
+            LocalDateTime.of(1970, 1, 1, 0, 0),
+            LocalDateTime.of(2024, 2, 29, 13, 45, 30, 123_456_000),
+            LocalDateTime.of(2023, 12, 31, 23, 59, 59, 999_999_999),
+            LocalDateTime.of(1, 1, 1, 0, 0, 0, 1_000),
+            LocalDateTime.of(9999, 12, 31, 23, 59, 59, 999_999_000));
+
+    private static org.threeten.bp.LocalDateTime toThreeTen(LocalDateTime dateTime) {
+        return org.threeten.bp.LocalDateTime.of(dateTime.getYear(), dateTime.getMonthValue(), dateTime.getDayOfMonth(),
+                dateTime.getHour(), dateTime.getMinute(), dateTime.getSecond(), dateTime.getNano() / 1000 * 1000);
+    }
+
+    @Test
+    void packedDatetimeMatchesTheClientLibrary() {
+        for (LocalDateTime sample : SAMPLES) {
+            assertThat(ProtoRowEncoder.packDatetimeMicros(sample))
+                    .as("datetime %s", sample)
+                    .isEqualTo(CivilTimeEncoder.encodePacked64DatetimeMicros(toThreeTen(sample)));
+        }
+    }
+
+    @Test
+    void packedTimeMatchesTheClientLibrary() {
+        for (LocalDateTime sample : SAMPLES) {
+            assertThat(ProtoRowEncoder.packTimeMicros(sample))
+                    .as("time %s", sample)
+                    .isEqualTo(CivilTimeEncoder.encodePacked64TimeMicros(toThreeTen(sample).toLocalTime()));
+        }
+    }
+
+    @Test
+    void numericDatetimeAndTimeColumnsUseTheirWireEncodings() throws Exception {
+        TableSchema schema = TableSchema.newBuilder()
+                .addFields(column("uuid", TableFieldSchema.Type.STRING))
+                .addFields(column("aspn_id", TableFieldSchema.Type.NUMERIC))
+                .addFields(column("rx_data_id", TableFieldSchema.Type.BIGNUMERIC))
+                .addFields(column("submitted_date", TableFieldSchema.Type.DATETIME))
+                .addFields(column("process_date", TableFieldSchema.Type.TIME))
+                .addFields(column("http_status_code", TableFieldSchema.Type.INT64))
+                .build();
+        Instant timestamp = Instant.parse("2024-02-29T13:45:30.123456Z");
+        KafkaMessage message = KafkaMessage.builder().id("id-1").timestamp(timestamp).priority(7).build();
+
+        ProtoRowEncoder encoder = new ProtoRowEncoder(schema);
+        Instant before = Instant.now();
+        ProtoRows rows = encoder.encode(List.of(message));
+        Instant after = Instant.now();
+
+        assertThat(rows.getSerializedRowsCount()).isEqualTo(1);
+        DynamicMessage row = DynamicMessage.parseFrom(encoder.getDescriptor(), rows.getSerializedRows(0));
+        assertThat(row.getField(field(encoder, "uuid"))).isEqualTo("id-1");
+        assertThat(row.getField(field(encoder, "aspn_id")))
+                .isEqualTo(BigDecimalByteStringEncoder.encodeToNumericByteString(new BigDecimal("1000")));
+        assertThat(row.getField(field(encoder, "rx_data_id")))
+                .isEqualTo(BigDecimalByteStringEncoder.encodeToBigNumericByteString(new BigDecimal("7")));
+        assertThat(row.getField(field(encoder, "submitted_date")))
+                .isEqualTo(CivilTimeEncoder.encodePacked64DatetimeMicros(
+                        org.threeten.bp.LocalDateTime.of(2024, 2, 29, 13, 45, 30, 123_456_000)));
+        assertThat(row.getField(field(encoder, "http_status_code"))).isEqualTo(200L);
+
+        org.threeten.bp.LocalTime processTime = CivilTimeEncoder.decodePacked64TimeMicros(
+                (Long) row.getField(field(encoder, "process_date")));
+        LocalDateTime earliest = LocalDateTime.ofInstant(before, ZoneOffset.UTC).withNano(0);
+        LocalDateTime latest = LocalDateTime.ofInstant(after, ZoneOffset.UTC);
+        // Skip the bounds check in the unlikely case the encode straddled midnight
+        if (earliest.toLocalDate().equals(latest.toLocalDate())) {
+            assertThat(processTime.toSecondOfDay())
+                    .isBetween(earliest.toLocalTime().toSecondOfDay(), latest.toLocalTime().toSecondOfDay());
+        }
+    }
+
+    private static TableFieldSchema column(String name, TableFieldSchema.Type type) {
+        return TableFieldSchema.newBuilder()
+                .setName(name)
+                .setType(type)
+                .setMode(TableFieldSchema.Mode.NULLABLE)
+                .build();
+    }
+
+    private static com.google.protobuf.Descriptors.FieldDescriptor field(ProtoRowEncoder encoder, String name) {
+        return encoder.getDescriptor().findFieldByName(name);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.kafkabqperformance.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RollingFileStagerTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void interruptedPartFileIsCutBackToItsLastCompleteLine() throws IOException {
+        Files.write(directory.resolve("rows-1-000000.part"), "{\"a\":1}\n{\"b\":2}\n{\"partial".getBytes(StandardCharsets.UTF_8));
+
+        RollingFileStager stager = new RollingFileStager(directory, "rows", 1 << 20, 60_000);
+        List<RollingFileStager.StagedFile> files = stager.takeCompleted();
+
+        assertThat(files).hasSize(1);
+        RollingFileStager.StagedFile file = files.get(0);
+        assertThat(file.getPath().getFileName().toString()).isEqualTo("rows-1-000000.ndjson");
+        assertThat(file.getRows()).isEqualTo(2);
+        assertThat(Files.readAllLines(file.getPath())).containsExactly("{\"a\":1}", "{\"b\":2}");
+        assertThat(Files.exists(directory.resolve("rows-1-000000.part"))).isFalse();
+    }
+
+    @Test
+    void partFileWithoutACompleteLineIsTruncatedToNothing() throws IOException {
+        Files.write(directory.resolve("rows-1-000000.part"), "{\"partial".getBytes(StandardCharsets.UTF_8));
+
+        RollingFileStager stager = new RollingFileStager(directory, "rows", 1 << 20, 60_000);
+        List<RollingFileStager.StagedFile> files = stager.takeCompleted();
+
+        assertThat(files).hasSize(1);
+        assertThat(files.get(0).getRows()).isZero();
+        assertThat(files.get(0).getBytes()).isZero();
+    }
+
+    @Test
+    void completedFilesOfAPreviousRunArePickedUpAgain() throws IOException {
+        Files.write(directory.resolve("rows-1-000000.ndjson"), "{\"a\":1}\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("other-1-000000.ndjson"), "{\"b\":1}\n".getBytes(StandardCharsets.UTF_8));
+
+        RollingFileStager stager = new RollingFileStager(directory, "rows", 1 << 20, 60_000);
+
+        assertThat(stager.takeCompleted()).extracting(file -> file.getPath().getFileName().toString())
+                .containsExactly("rows-1-000000.ndjson");
+        assertThat(stager.takeCompleted()).isEmpty();
+    }
+
+    @Test
+    void fileRollsOnceItReachesTheSizeLimit() throws IOException {
+        RollingFileStager stager = new RollingFileStager(directory, "rows", 16, 60_000);
+
+        stager.append(List.of("{\"a\":1}"));
+        assertThat(stager.takeCompleted()).isEmpty();
+        assertThat(stager.getCurrentRows()).isEqualTo(1);
+
+        stager.append(List.of("{\"b\":2}"));
+        List<RollingFileStager.StagedFile> files = stager.takeCompleted();
+        assertThat(files).hasSize(1);
+        assertThat(files.get(0).getRows()).isEqualTo(2);
+        assertThat(files.get(0).getBytes()).isEqualTo(16);
+        assertThat(files.get(0).getPath().getFileName().toString()).endsWith(".ndjson");
+        assertThat(Files.readAllLines(files.get(0).getPath())).containsExactly("{\"a\":1}", "{\"b\":2}");
+        assertThat(stager.getCurrentRows()).isZero();
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpillLogTest {
+
+    private static final int SEGMENT_BYTES = 1 << 20;
+
+    @TempDir
+    Path directory;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final List<SpillLog> logs = new ArrayList<>();
+
+    @AfterEach
+    void closeLogs() {
+        logs.forEach(SpillLog::close);
+    }
+
+    private SpillLog open(long maxTotalBytes) throws IOException {
+        SpillLog spillLog = new SpillLog(objectMapper, true, directory.toString(), SEGMENT_BYTES, maxTotalBytes);
+        logs.add(spillLog);
+        return spillLog;
+    }
+
+    private static List<KafkaMessage> messages(String prefix, int count) {
+        List<KafkaMessage> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            KafkaMessage message = KafkaMessage.builder().id(prefix + i).message("message " + i).priority(i).build();
+            message.setRawPayload(("{\"id\":\"" + prefix + i + "\"}").getBytes(StandardCharsets.UTF_8));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    @Test
+    void appendedBatchesAreReadBackWithTheirRawPayloads() throws IOException {
+        SpillLog spillLog = open(Long.MAX_VALUE);
+        assertThat(spillLog.append("legacy", messages("a", 3))).isTrue();
+        assertThat(spillLog.append("writeApi", messages("b", 2))).isTrue();
+
+        Path segment = spillLog.nextSegmentToReplay();
+        List<SpillLog.SpilledBatch> batches = spillLog.read(segment);
+
+        assertThat(batches).hasSize(2);
+        assertThat(batches.get(0).getSink()).isEqualTo("legacy");
+        assertThat(batches.get(0).getMessages()).extracting(KafkaMessage::getId).containsExactly("a0", "a1", "a2");
+        assertThat(batches.get(0).getMessages().get(1).getRawPayloadText()).isEqualTo("{\"id\":\"a1\"}");
+        assertThat(batches.get(1).getSink()).isEqualTo("writeApi");
+        assertThat(batches.get(1).getMessages()).extracting(KafkaMessage::getId).containsExactly("b0", "b1");
+    }
+
+    @Test
+    void oversizedBatchRollsIntoASegmentOfItsOwn() throws IOException {
+        SpillLog spillLog = open(Long.MAX_VALUE);
+        spillLog.append("legacy", messages("small", 1));
+
+        // Random bytes do not compress, so this record is larger than a whole segment
+        byte[] payload = new byte[2 * SEGMENT_BYTES];
+        new Random(42).nextBytes(payload);
+        KafkaMessage large = KafkaMessage.builder().id("large").build();
+        large.setRawPayload(payload);
+        assertThat(spillLog.append("legacy", List.of(large))).isTrue();
+
+        Path first = spillLog.nextSegmentToReplay();
+        assertThat(spillLog.read(first)).extracting(batch -> batch.getMessages().get(0).getId()).containsExactly("small0");
+        spillLog.delete(first);
+
+        Path second = spillLog.nextSegmentToReplay();
+        assertThat(second).isNotEqualTo(first);
+        List<SpillLog.SpilledBatch> batches = spillLog.read(second);
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0).getMessages().get(0).getRawPayload()).isEqualTo(payload);
+        spillLog.delete(second);
+
+        assertThat(spillLog.nextSegmentToReplay()).isNull();
+        assertThat(spillLog.getMetrics().get("diskBytes")).isEqualTo(0L);
+    }
+
+    @Test
+    void segmentsOfAPreviousRunAreRecoveredOnRestart() throws IOException {
+        SpillLog before = new SpillLog(objectMapper, true, directory.toString(), SEGMENT_BYTES, Long.MAX_VALUE);
+        before.append("legacy", messages("a", 2));
+        before.close();
+
+        SpillLog after = open(Long.MAX_VALUE);
+        assertThat(after.getMetrics().get("segmentsToReplay")).isEqualTo(1);
+        Path recovered = after.nextSegmentToReplay();
+        assertThat(after.read(recovered)).extracting(batch -> batch.getMessages().size()).containsExactly(2);
+
+        // New batches go to a new segment after the recovered one
+        after.append("legacy", messages("b", 1));
+        after.delete(recovered);
+        Path next = after.nextSegmentToReplay();
+        assertThat(next).isNotEqualTo(recovered);
+        assertThat(after.read(next)).extracting(batch -> batch.getMessages().get(0).getId()).containsExactly("b0");
+    }
+
+    @Test
+    void readStopsAtACorruptRecord() throws IOException {
+        SpillLog spillLog = open(Long.MAX_VALUE);
+        spillLog.append("legacy", messages("a", 2));
+        spillLog.append("legacy", messages("b", 2));
+        Path segment = spillLog.nextSegmentToReplay();
+
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            int firstLength = header.flip().getInt();
+            // First data byte of the second record, behind its 12-byte header
+            long position = 12L + firstLength + 12L;
+            ByteBuffer data = ByteBuffer.allocate(1);
+            channel.read(data, position);
+            data.put(0, (byte) (data.get(0) ^ 0xFF)).rewind();
+            channel.write(data, position);
+        }
+
+        List<SpillLog.SpilledBatch> batches = spillLog.read(segment);
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0).getMessages()).extracting(KafkaMessage::getId).containsExactly("a0", "a1");
+        assertThat(spillLog.getMetrics().get("corruptRecords")).isEqualTo(1L);
+    }
+
+    @Test
+    void fullLogRejectsTheBatch() throws IOException {
+        SpillLog spillLog = open(SEGMENT_BYTES);
+        assertThat(spillLog.append("legacy", messages("a", 1))).isTrue();
+
+        byte[] payload = new byte[SEGMENT_BYTES];
+        new Random(7).nextBytes(payload);
+        KafkaMessage large = KafkaMessage.builder().id("large").build();
+        large.setRawPayload(payload);
+
+        assertThat(spillLog.append("legacy", List.of(large))).isFalse();
+        assertThat(spillLog.getMetrics().get("rejectedRows")).isEqualTo(1L);
+    }
+}
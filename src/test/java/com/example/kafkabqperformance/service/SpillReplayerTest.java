@@ -0,0 +1,98 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SpillReplayerTest {
+
+    @TempDir
+    Path directory;
+
+    private SpillLog spillLog;
+    private SpillReplayer replayer;
+
+    @AfterEach
+    void stop() {
+        if (replayer != null) {
+            replayer.stop();
+        }
+        if (spillLog != null) {
+            spillLog.close();
+        }
+    }
+
+    @Test
+    void batchSpilledAgainDuringReplayIsReplayedOnALaterPass() throws Exception {
+        spillLog = new SpillLog(new ObjectMapper().findAndRegisterModules(), true, directory.toString(), 1 << 20, Long.MAX_VALUE);
+        StubSink legacy = new StubSink(spillLog, "legacy", 1);
+        StubSink writeApi = new StubSink(spillLog, "writeApi", 0);
+        replayer = new SpillReplayer(spillLog, legacy, writeApi, 100, 100, 100_000);
+
+        List<KafkaMessage> batch = List.of(
+                KafkaMessage.builder().id("a").message("first").build(),
+                KafkaMessage.builder().id("b").message("second").build());
+        spillLog.append("legacy", batch);
+        replayer.start();
+
+        awaitTrue(() -> legacy.delivered.size() == 2 && spillLog.nextSegmentToReplay() == null);
+
+        assertThat(legacy.writes).isEqualTo(2);
+        assertThat(legacy.delivered).extracting(KafkaMessage::getId).containsExactly("a", "b");
+        assertThat(writeApi.writes).isZero();
+        assertThat((Long) replayer.getMetrics().get("failedPasses")).isGreaterThanOrEqualTo(1L);
+        assertThat(replayer.getMetrics().get("replayedRows")).isEqualTo(4L);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("condition not met within 10s").isLessThan(deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Sink that spills its first failures back to the log, like a sink whose BigQuery is still down
+     */
+    private static final class StubSink implements BigQueryWriteService {
+        private final SpillLog spillLog;
+        private final String name;
+        private int failuresLeft;
+        private volatile int writes;
+        private final List<KafkaMessage> delivered = Collections.synchronizedList(new ArrayList<>());
+
+        private StubSink(SpillLog spillLog, String name, int failures) {
+            this.spillLog = spillLog;
+            this.name = name;
+            this.failuresLeft = failures;
+        }
+
+        @Override
+        public synchronized int writeToBigQuery(List<KafkaMessage> messages) {
+            writes++;
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                spillLog.append(name, messages);
+                return 0;
+            }
+            delivered.addAll(messages);
+            return messages.size();
+        }
+
+        @Override
+        public int flush() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.kafkabqperformance.service;
+
+import com.example.kafkabqperformance.model.KafkaMessage;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.bigquery.storage.v1.AppendRowsResponse;
+import io.grpc.Status;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StreamWriterPoolTest {
+
+    private static final List<KafkaMessage> ROWS = List.of(KafkaMessage.builder().id("a").build());
+
+    private final List<StubAppender> appenders = new CopyOnWriteArrayList<>();
+    private final List<StreamWriterPool> pools = new ArrayList<>();
+
+    @AfterEach
+    void closePools() {
+        pools.forEach(StreamWriterPool::close);
+    }
+
+    private StreamWriterPool open(int size, StreamWriterPool.AppenderFactory factory) throws Exception {
+        StreamWriterPool pool = new StreamWriterPool(factory, size, size, false, 10, 1 << 20, 3);
+        pools.add(pool);
+        return pool;
+    }
+
+    private StubAppender newAppender() {
+        StubAppender appender = new StubAppender();
+        appenders.add(appender);
+        return appender;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("condition not met within 10s").isLessThan(deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void appendOnAClosedPoolFailsTheFutureOfARetiredWriter() throws Exception {
+        StreamWriterPool pool = open(1, this::newAppender);
+        pool.close();
+
+        StreamWriterPool.PooledWriter writer = pool.acquire(10, 0);
+        ApiFuture<AppendRowsResponse> future = writer.append(ROWS, 10);
+
+        assertThat(pool.isClosed()).isTrue();
+        assertThat(writer.isRetired()).isTrue();
+        assertThatThrownBy(future::get).isInstanceOf(ExecutionException.class)
+                .satisfies(e -> assertThat(Status.fromThrowable(e).getCode()).isEqualTo(Status.Code.FAILED_PRECONDITION));
+    }
+
+    @Test
+    void brokenWriterIsRetiredAndItsReplacementIsHandedOut() throws Exception {
+        StreamWriterPool pool = open(1, this::newAppender);
+        StreamWriterPool.PooledWriter broken = pool.acquire(10, 0);
+        broken.complete(10, 0, Status.UNAVAILABLE.asRuntimeException());
+
+        awaitTrue(() -> appenders.get(0).closed);
+        assertThat(broken.isRetired()).isTrue();
+        // An append that picked the broken writer just before it was closed fails without reaching BigQuery
+        assertThatThrownBy(() -> broken.append(ROWS, 10).get()).isInstanceOf(ExecutionException.class);
+
+        StreamWriterPool.PooledWriter replacement = pool.acquire(10, 0);
+        assertThat(replacement).isNotSameAs(broken);
+        assertThat(replacement.isRetired()).isFalse();
+        assertThat(replacement.append(ROWS, 10).get()).isNotNull();
+        assertThat(pool.getMetrics().get("replacements")).isEqualTo(1L);
+    }
+
+    @Test
+    void acquireWaitsForTheReplacementInsteadOfHandingOutTheBrokenWriter() throws Exception {
+        CountDownLatch connect = new CountDownLatch(1);
+        StreamWriterPool pool = open(1, () -> {
+            if (!appenders.isEmpty()) {
+                connect.await();
+            }
+            return newAppender();
+        });
+        StreamWriterPool.PooledWriter broken = pool.acquire(10, 0);
+        broken.complete(10, 0, Status.UNAVAILABLE.asRuntimeException());
+
+        CompletableFuture<StreamWriterPool.PooledWriter> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return pool.acquire(10, 0);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(300);
+        assertThat(waiting).isNotDone();
+
+        connect.countDown();
+        StreamWriterPool.PooledWriter replacement = waiting.get(10, TimeUnit.SECONDS);
+        assertThat(replacement).isNotSameAs(broken);
+        assertThat((Long) pool.getMetrics().get("replacementWaits")).isPositive();
+    }
+
+    @Test
+    void writerIsReplacedAfterConsecutiveFailures() throws Exception {
+        StreamWriterPool pool = open(1, this::newAppender);
+        StreamWriterPool.PooledWriter writer = pool.acquire(10, 0);
+        writer.complete(10, 0, Status.INTERNAL.asRuntimeException());
+        assertThat(pool.acquire(10, 0)).isSameAs(writer);
+        writer.complete(10, 0, Status.INTERNAL.asRuntimeException());
+        assertThat(pool.acquire(10, 0)).isSameAs(writer);
+        assertThat(writer.isRetired()).isFalse();
+
+        writer.complete(10, 0, Status.INTERNAL.asRuntimeException());
+        awaitTrue(writer::isRetired);
+        assertThat(appenders).hasSize(2);
+    }
+
+    /**
+     * Appender that succeeds until it is closed and then fails the future, like the client's stream writer
+     */
+    private static final class StubAppender implements StreamAppender {
+        private volatile boolean closed;
+
+        @Override
+        public ApiFuture<AppendRowsResponse> append(List<KafkaMessage> messages) {
+            if (closed) {
+                return ApiFutures.immediateFailedFuture(
+                        Status.FAILED_PRECONDITION.withDescription("Stream writer is closed").asRuntimeException());
+            }
+            return ApiFutures.immediateFuture(AppendRowsResponse.getDefaultInstance());
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}